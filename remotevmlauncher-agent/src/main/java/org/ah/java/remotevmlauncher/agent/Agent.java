@@ -18,6 +18,7 @@
  */
 package org.ah.java.remotevmlauncher.agent;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
@@ -46,6 +47,15 @@ public class Agent implements ChannelProcessor {
     private Selector selector;
     private ServerSocketChannel commandServerSocket;
     private static Agent currentAgent;
+    private boolean classDataSharingEnabled = true;
+    private ClassDataSharing classDataSharing;
+    private int launcherPoolSize = 0;
+    private LauncherPool launcherPool;
+    private boolean inAgentAllowed = false;
+    private LaunchHistory launchHistory;
+    private boolean agentCache = false;
+    private int selectorWorkerCount = Runtime.getRuntime().availableProcessors();
+    private SelectorWorker[] selectorWorkers;
 
     protected static int nextSessionId = 1;
 
@@ -76,6 +86,81 @@ public class Agent implements ChannelProcessor {
         this.javaExecutablePathString = javaExecutablePathString;
     }
 
+    public boolean isClassDataSharingEnabled() {
+        return classDataSharingEnabled;
+    }
+
+    /**
+     * @param classDataSharingEnabled if true launched VMs share archive of classes previous VM of the same classpath loaded
+     */
+    public void setClassDataSharingEnabled(boolean classDataSharingEnabled) {
+        this.classDataSharingEnabled = classDataSharingEnabled;
+    }
+
+    public int getLauncherPoolSize() {
+        return launcherPoolSize;
+    }
+
+    /**
+     * @param launcherPoolSize number of VMs started ahead of time for sessions that don't need VM arguments; 0 for none
+     */
+    public void setLauncherPoolSize(int launcherPoolSize) {
+        this.launcherPoolSize = launcherPoolSize;
+    }
+
+    public boolean isInAgentAllowed() {
+        return inAgentAllowed;
+    }
+
+    /**
+     * @param inAgentAllowed if true clients can ask for applications to be run inside of agent's VM. They share
+     *                       its standard output and error and cannot exit it; see {@link InAgentExecution}.
+     *                       Agent doesn't start if VM doesn't let it stop them from exiting
+     */
+    public void setInAgentAllowed(boolean inAgentAllowed) {
+        this.inAgentAllowed = inAgentAllowed;
+    }
+
+    public boolean isSpeculativeStart() {
+        return launchHistory != null;
+    }
+
+    /**
+     * @param speculativeStart if true VM is started for client as soon as it connects, the same way it was started
+     *                         for it last time; VM is started again if client asks for it differently
+     */
+    public void setSpeculativeStart(boolean speculativeStart) {
+        if (!speculativeStart) {
+            launchHistory = null;
+        } else if (launchHistory == null) {
+            launchHistory = new LaunchHistory();
+        }
+    }
+
+    public boolean isAgentCache() {
+        return agentCache;
+    }
+
+    /**
+     * @param agentCache if true agent brings cache up to date with the client while VM boots and VM
+     *                   gets only classpath of application to start
+     */
+    public void setAgentCache(boolean agentCache) {
+        this.agentCache = agentCache;
+    }
+
+    public int getSelectorWorkerCount() {
+        return selectorWorkerCount;
+    }
+
+    /**
+     * @param selectorWorkerCount number of threads, each with selector of its own, sessions are shared between.
+     *                            Default is number of processors
+     */
+    public void setSelectorWorkerCount(int selectorWorkerCount) {
+        this.selectorWorkerCount = selectorWorkerCount;
+    }
+
     public void setup() throws IOException {
 
         LOGGER.info("Starting agent at " + listeningSocketAddress.getAddress() + ":" + listeningSocketAddress.getPort());
@@ -90,11 +175,33 @@ public class Agent implements ChannelProcessor {
     }
 
     public void start() throws IOException {
+        if (inAgentAllowed) {
+            InAgentExecution.installExitGuard();
+        }
         selector = Selector.open();
+        if (classDataSharingEnabled) {
+            // Launcher keeps its cache in the same dir
+            classDataSharing = new ClassDataSharing(new File(new File(".remotevm"), ".cds"), javaExecutablePathString);
+            Thread probeThread = new Thread(new Runnable() { public void run() {
+                classDataSharing.probe();
+            }});
+            probeThread.setName("ClassDataSharingProbe");
+            probeThread.setDaemon(true);
+            probeThread.start();
+        }
+        if (launcherPoolSize > 0) {
+            launcherPool = new LauncherPool(launcherPoolSize, javaExecutablePathString);
+            launcherPool.start();
+        }
+        selectorWorkers = new SelectorWorker[Math.max(selectorWorkerCount, 1)];
+        for (int i = 0; i < selectorWorkers.length; i++) {
+            selectorWorkers[i] = new SelectorWorker(i + 1);
+            selectorWorkers[i].start();
+        }
         try {
             setup();
 
-            int count = 0;
+            // This thread only accepts clients; their sessions are proxied by selector workers
             while (!stop) {
                 int readyKeys = selector.select(250); // 1/4 second
                 if (readyKeys > 0) {
@@ -105,20 +212,15 @@ public class Agent implements ChannelProcessor {
                         processKey(key);
                         iterator.remove();
                     }
-                    count = 0;
-                } else {
-                    // We are here probably because one side of the proxy has data waiting to be read
-                    // but we are not ready to read them yet (waiting for Launcher to connect back to us.
-                    count++;
-                    if (count > 1) { // This is to let two goes before we go sleeping.
-                        try {
-                            Thread.sleep(10); // Randomly picked number
-                        } catch (InterruptedException ignore) { }
-                        count = 0;
-                    }
                 }
             }
         } finally {
+            for (SelectorWorker selectorWorker : selectorWorkers) {
+                selectorWorker.stop();
+            }
+            if (launcherPool != null) {
+                launcherPool.stop();
+            }
             commandServerSocket.close();
         }
     }
@@ -139,19 +241,19 @@ public class Agent implements ChannelProcessor {
         if (key.isAcceptable()) {
             SocketChannel clientChannel = ((ServerSocketChannel)key.channel()).accept();
             if (clientChannel != null) {
-                try {
-                    int sessionId = 0;
-                    synchronized (this) {
-                        sessionId = nextSessionId;
-                        nextSessionId = nextSessionId + 1;
-                    }
-                    ClientSession session = new ClientSession(sessionId, clientChannel, javaExecutablePathString);
-                    session.setup(selector);
-                    session.start();
-                } catch (IOException e) {
-                    writeErrorBack(clientChannel, e);
-                    clientChannel.close();
+                int sessionId = 0;
+                synchronized (this) {
+                    sessionId = nextSessionId;
+                    nextSessionId = nextSessionId + 1;
                 }
+                ClientSession session = new ClientSession(sessionId, clientChannel, javaExecutablePathString);
+                session.setClassDataSharing(classDataSharing);
+                session.setLauncherPool(launcherPool);
+                session.setInAgentAllowed(inAgentAllowed);
+                session.setLaunchHistory(launchHistory);
+                session.setAgentCache(agentCache);
+                // Sessions are shared between workers in turn; worker sets session up on its own thread
+                selectorWorkers[sessionId % selectorWorkers.length].addSession(session);
             } else {
                 // This is strange, again. Why channel is acceptable without anything to accept?!
             }
@@ -183,6 +285,8 @@ public class Agent implements ChannelProcessor {
         boolean debugSwitch = false;
         boolean listeningPortSwitch = false;
         boolean executableSwitch = false;
+        boolean poolSwitch = false;
+        boolean workersSwitch = false;
         boolean allRead = false;
         for (String arg : args) {
             if (!allRead) {
@@ -197,6 +301,12 @@ public class Agent implements ChannelProcessor {
                 } else if (executableSwitch) {
                     agent.setJavaExecutablePathString(arg);
                     executableSwitch = false;
+                } else if (workersSwitch) {
+                    agent.setSelectorWorkerCount(Integer.parseInt(arg));
+                    workersSwitch = false;
+                } else if (poolSwitch) {
+                    agent.setLauncherPoolSize(Integer.parseInt(arg));
+                    poolSwitch = false;
                 } else if (debugSwitch) {
                     debugLevel = Integer.parseInt(arg);
                     debugSwitch = false;
@@ -206,6 +316,18 @@ public class Agent implements ChannelProcessor {
                     debugSwitch = true;
                 } else if ("-e".equals(arg) || "--executable".equals(arg)) {
                     executableSwitch = true;
+                } else if ("-sw".equals(arg) || "--selector-workers".equals(arg)) {
+                    workersSwitch = true;
+                } else if ("-p".equals(arg) || "--pool".equals(arg)) {
+                    poolSwitch = true;
+                } else if ("-s".equals(arg) || "--speculative".equals(arg)) {
+                    agent.setSpeculativeStart(true);
+                } else if ("-ac".equals(arg) || "--agent-cache".equals(arg)) {
+                    agent.setAgentCache(true);
+                } else if ("-ia".equals(arg) || "--in-agent".equals(arg)) {
+                    agent.setInAgentAllowed(true);
+                } else if ("-ncds".equals(arg) || "--no-class-data-sharing".equals(arg)) {
+                    agent.setClassDataSharingEnabled(false);
                 } else if ("-h".equals(arg) || "?".equals(arg) || "--help".equals(arg)) {
                     printHelp();
                     System.exit(0);
@@ -223,6 +345,15 @@ public class Agent implements ChannelProcessor {
             }
         }
 
+        if (agent.isInAgentAllowed()) {
+            try {
+                InAgentExecution.installExitGuard();
+            } catch (UnsupportedOperationException e) {
+                System.out.println("ERROR: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
         JavaLoggingUtils.setupSimpleConsoleLogging(debugLevel);
 
         currentAgent = agent;
@@ -239,6 +370,25 @@ public class Agent implements ChannelProcessor {
         System.out.println("");
         System.out.println("  -l|--listen [address:]port  listen on defined address and port. Default: 0.0.0.0:8999");
         System.out.println("  -e|--executable path        path to java executable. Default: java (it must be in path)");
+        System.out.println("  -sw|--selector-workers number");
+        System.out.println("                              number of threads sessions are shared between.");
+        System.out.println("                              Default: number of processors");
+        System.out.println("  -p|--pool size              number of VMs started ahead of time for clients that don't");
+        System.out.println("                              pass VM arguments. Default: 0");
+        System.out.println("  -s|--speculative            VM is started as soon as client connects, the same way it");
+        System.out.println("                              was started for the client last time.");
+        System.out.println("  -ac|--agent-cache           agent brings cache up to date with client while VM boots;");
+        System.out.println("                              VM gets only classpath of application to start.");
+        System.out.println("  -ia|--in-agent              clients can ask for applications to be run inside of");
+        System.out.println("                              agent's VM. Their standard output and error are sent");
+        System.out.println("                              to client together and System.exit ends only the thread");
+        System.out.println("                              that called it. Default: applications are always run");
+        System.out.println("                              in VMs of their own. Not supported where VM doesn't let");
+        System.out.println("                              security manager be installed; from Java 18 agent must");
+        System.out.println("                              be started with -Djava.security.manager=allow.");
+        System.out.println("  -ncds|--no-class-data-sharing");
+        System.out.println("                              launched VMs don't share archives of classes previous");
+        System.out.println("                              VMs of the same classpath loaded.");
         System.out.println("  -d|--debug level            debug level from 0 to 4. Default: 1");
         System.out.println("  -h|--help                   this help.");
         System.out.println("");
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2013 Creative Sphere Limited.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.ah.java.remotevmlauncher.agent;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.ah.java.remotevmlauncher.launcher.Launcher;
+
+/**
+ * Brings cache up to date with the client inside of agent's VM while VM application is to run in boots.
+ * Launcher run inside of agent talks to the client as launcher in that VM would, but once cache is up to date
+ * it gives main class, local classpath and arguments to the VM, started with '-r', instead of starting
+ * application itself. Launcher is let go once the VM exits.
+ * <p>
+ * Only applications that are loaded from cache brought up to date before they start can be started this way.
+ *
+ * @author Daniel Sendula
+ */
+public class AgentSync implements Runnable {
+
+    public static Logger LOGGER = Logger.getLogger("Sync");
+
+    private int sessionId;
+    private List<String> launcherArgs;
+    private Process process;
+    private boolean handedOver = false;
+
+    /**
+     * @param sessionId id of session cache is brought up to date for
+     * @param launcherArgs launcher arguments, as launched VM would get them
+     * @param process VM started with '-r' that waits for application
+     */
+    public AgentSync(int sessionId, List<String> launcherArgs, Process process) {
+        this.sessionId = sessionId;
+        this.launcherArgs = launcherArgs;
+        this.process = process;
+    }
+
+    public void start() {
+        Thread thread = new Thread(this);
+        thread.setName("Sync-" + sessionId);
+        thread.start();
+    }
+
+    public void run() {
+        try {
+            Launcher launcher = new Launcher() {
+                @Override protected void launchApplication() throws Exception {
+                    handOver(this);
+                }
+            };
+            launcher.applyArguments(launcherArgs.toArray(new String[launcherArgs.size()]));
+            launcher.setInProcess(true);
+            try {
+                launcher.setup();
+                launcher.start();
+                if (handedOver) {
+                    process.waitFor();
+                } else {
+                    // Application cannot be started without classpath
+                    process.destroy();
+                }
+            } finally {
+                launcher.close();
+            }
+        } catch (Throwable t) {
+            LOGGER.log(Level.SEVERE, "Cannot bring cache up to date for session " + sessionId, t);
+            process.destroy();
+        }
+    }
+
+    private void handOver(Launcher launcher) throws IOException {
+        URL[] classpath = launcher.getLocalClasspath();
+        if (classpath == null) {
+            throw new IOException("Application's classes are not loaded from cache");
+        }
+        launcher.logStatistics();
+        if (LOGGER.isLoggable(Level.FINE)) { LOGGER.fine("Cache of session " + sessionId + " is up to date; starting " + launcher.getMainClass()); }
+        Launcher.writeApplication(new DataOutputStream(process.getOutputStream()), launcher.getMainClass(), classpath, launcher.getArguments());
+        handedOver = true;
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2013 Creative Sphere Limited.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.ah.java.remotevmlauncher.agent;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.ah.java.remotevmlauncher.DigestUtils;
+
+/**
+ * Dynamic class data sharing archives of launched VMs. First VM launched for a classpath fingerprint
+ * dumps classes it loaded to an archive when it exits; VMs launched for the same fingerprint after that
+ * map those classes from the archive instead of loading them again.
+ * <p>
+ * Dynamic archives need Java 13 or newer, so java executable is asked for its version first. Until that is
+ * known, or if it is older, VMs are launched as they are. VM cannot dump archive if there are directories on
+ * its classpath and only classes loaded from jars get into archives.
+ *
+ * @author Daniel Sendula
+ */
+public class ClassDataSharing {
+
+    public static final int MIN_JAVA_VERSION = 13;
+
+    // Least recently used archives are removed when there are more of them
+    public static final int MAX_ARCHIVES = 8;
+
+    public static Logger LOGGER = Logger.getLogger("CDS");
+
+    // Archiving warns about each class it skips and VM doesn't say anything useful when archive cannot be used
+    private static final List<String> QUIET_ARGS = Arrays.asList("-Xlog:cds=off", "-Xlog:cds+dynamic=off");
+
+    private File archiveDir;
+    private String javaExecutablePathString;
+    private volatile String javaVersion;
+    private volatile boolean supported = false;
+
+    // Names of archives being dumped by VMs that haven't exited yet
+    private Set<String> dumping = new HashSet<String>();
+
+    public ClassDataSharing(File archiveDir, String javaExecutablePathString) {
+        this.archiveDir = archiveDir;
+        this.javaExecutablePathString = javaExecutablePathString;
+    }
+
+    /**
+     * Asks java executable for its version. It is to be invoked once, before any VM is launched,
+     * and not on selector thread as it waits for java executable to finish.
+     */
+    public void probe() {
+        try {
+            ProcessBuilder processBuilder = new ProcessBuilder(javaExecutablePathString, "-version");
+            processBuilder.redirectErrorStream(true);
+            Process process = processBuilder.start();
+            String versionLine = null;
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            try {
+                String line = reader.readLine();
+                while (line != null) {
+                    if (versionLine == null && line.indexOf(" version \"") >= 0) {
+                        versionLine = line;
+                    }
+                    line = reader.readLine();
+                }
+            } finally {
+                reader.close();
+            }
+            process.waitFor();
+            if (versionLine != null) {
+                javaVersion = versionLine;
+                supported = majorVersion(versionLine) >= MIN_JAVA_VERSION;
+            }
+            if (LOGGER.isLoggable(Level.FINE)) { LOGGER.fine("Java executable " + javaExecutablePathString + " is " + versionLine + (supported ? "" : "; archives are not going to be used")); }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot find out version of " + javaExecutablePathString, e);
+        } catch (InterruptedException ignore) {
+        }
+    }
+
+    /**
+     * @param versionLine line of 'java -version' output with version in quotes
+     * @return major version or 0 if it cannot be found out
+     */
+    public static int majorVersion(String versionLine) {
+        int i = versionLine.indexOf('"');
+        int j = versionLine.indexOf('"', i + 1);
+        if (i < 0 || j < 0) {
+            return 0;
+        }
+        String version = versionLine.substring(i + 1, j);
+        if (version.startsWith("1.")) {
+            version = version.substring(2);
+        }
+        int k = 0;
+        while (k < version.length() && Character.isDigit(version.charAt(k))) {
+            k++;
+        }
+        if (k == 0) {
+            return 0;
+        }
+        return Integer.parseInt(version.substring(0, k));
+    }
+
+    public boolean isSupported() {
+        return supported;
+    }
+
+    /**
+     * Adds VM arguments for archive of given fingerprint to the command. If there is no archive yet, VM is asked
+     * to dump one, unless another VM is already doing it.
+     *
+     * @param fingerprint fingerprint of classpath of application VM is going to launch
+     * @param classpath classpath VM is launched with
+     * @param vmArgs arguments VM is launched with
+     * @param command command VM is launched with so far
+     * @param sessionId id of session VM is launched for
+     * @return archive VM is going to dump which is to be passed to {@link #finished(Dump, int)} once VM exits,
+     *         or null
+     */
+    public synchronized Dump prepare(String fingerprint, String classpath, List<String> vmArgs, List<String> command, int sessionId) {
+        if (!supported) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder(fingerprint);
+        for (String path : classpath.split(File.pathSeparator)) {
+            if (new File(path).isDirectory()) {
+                return null;
+            }
+            key.append('\n').append(path);
+        }
+        for (String arg : vmArgs) {
+            if (arg.startsWith("-Xshare") || arg.startsWith("-XX:SharedArchiveFile") || arg.startsWith("-XX:ArchiveClassesAtExit")) {
+                // User has already decided about class data sharing of the VM
+                return null;
+            }
+            key.append('\n').append(arg);
+        }
+        String name = archiveName(key.toString());
+        File archive = new File(archiveDir, name + ".jsa");
+        if (archive.exists()) {
+            archive.setLastModified(System.currentTimeMillis());
+            command.add("-XX:SharedArchiveFile=" + archive.getAbsolutePath());
+            command.addAll(QUIET_ARGS);
+            return null;
+        }
+        if (dumping.contains(name)) {
+            return null;
+        }
+        if (!archiveDir.exists() && !archiveDir.mkdirs()) {
+            LOGGER.warning("Cannot create dir " + archiveDir.getAbsolutePath());
+            return null;
+        }
+        dumping.add(name);
+        File temp = new File(archiveDir, name + "-" + sessionId + ".tmp");
+        command.add("-XX:ArchiveClassesAtExit=" + temp.getAbsolutePath());
+        command.addAll(QUIET_ARGS);
+        return new Dump(name, temp, archive);
+    }
+
+    /**
+     * Keeps archive dumped by VM if VM has finished successfully.
+     *
+     * @param dump archive VM was asked to dump
+     * @param exitValue exit value of VM
+     */
+    public synchronized void finished(Dump dump, int exitValue) {
+        dumping.remove(dump.name);
+        if (exitValue == 0 && dump.temp.exists()) {
+            if (dump.temp.renameTo(dump.archive)) {
+                if (LOGGER.isLoggable(Level.INFO)) { LOGGER.info("Created class data sharing archive " + dump.archive.getName() + " of " + dump.archive.length() + " bytes"); }
+                removeOldArchives();
+                return;
+            }
+            LOGGER.warning("Cannot rename " + dump.temp.getAbsolutePath() + " to " + dump.archive.getAbsolutePath());
+        }
+        if (dump.temp.exists() && !dump.temp.delete()) {
+            LOGGER.warning("Cannot delete " + dump.temp.getAbsolutePath());
+        }
+    }
+
+    private void removeOldArchives() {
+        File[] files = archiveDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> archives = new ArrayList<File>();
+        for (File file : files) {
+            if (file.getName().endsWith(".jsa")) {
+                archives.add(file);
+            }
+        }
+        Collections.sort(archives, new Comparator<File>() {
+            public int compare(File o1, File o2) {
+                long l1 = o1.lastModified();
+                long l2 = o2.lastModified();
+                return l1 < l2 ? -1 : (l1 > l2 ? 1 : 0);
+            }
+        });
+        for (int i = 0; i < archives.size() - MAX_ARCHIVES; i++) {
+            if (!archives.get(i).delete()) {
+                LOGGER.warning("Cannot delete " + archives.get(i).getAbsolutePath());
+            }
+        }
+    }
+
+    private String archiveName(String key) {
+        byte[] bytes;
+        try {
+            bytes = (javaExecutablePathString + "\n" + javaVersion + "\n" + key).getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return DigestUtils.toHex(DigestUtils.digest(bytes, 0, bytes.length));
+    }
+
+    /**
+     * Archive VM was asked to dump when it exits.
+     */
+    public static class Dump {
+        private String name;
+        private File temp;
+        private File archive;
+
+        private Dump(String name, File temp, File archive) {
+            this.name = name;
+            this.temp = temp;
+            this.archive = archive;
+        }
+    }
+}
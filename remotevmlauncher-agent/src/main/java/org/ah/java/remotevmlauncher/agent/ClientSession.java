@@ -18,7 +18,6 @@
  */
 package org.ah.java.remotevmlauncher.agent;
 
-import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -33,6 +32,7 @@ import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -41,8 +41,10 @@ import org.ah.java.remotevmlauncher.ClasspathUtils;
 import org.ah.java.remotevmlauncher.DebugUtils;
 import org.ah.java.remotevmlauncher.JavaLoggingUtils;
 import org.ah.java.remotevmlauncher.launcher.Launcher;
+import org.ah.java.remotevmlauncher.protocol.LaunchKeyProcessor;
 import org.ah.java.remotevmlauncher.protocol.ProtocolStateMachine;
 import org.ah.java.remotevmlauncher.protocol.StartRemoteVMProcessor;
+import org.ah.java.remotevmlauncher.protocol.StreamProcessor;
 
 /**
  * Class that handles command session
@@ -51,6 +53,8 @@ import org.ah.java.remotevmlauncher.protocol.StartRemoteVMProcessor;
  */
 public class ClientSession implements Runnable {
 
+    private static final byte[] STREAM_ID = StreamProcessor.ID.getBytes();
+
     public Logger AGENT_LOGGER;
     public Logger CLIENT_LOGGER;
     public Logger LAUNCHER_LOGGER;
@@ -93,14 +97,34 @@ public class ClientSession implements Runnable {
     private boolean launcherToClientBufferReady = false;
 
     private ByteBuffer clientToLauncherBuffer;
+    private boolean clientToLauncherBufferReady = false;
 
     private ProtocolStateMachine stateMachine;
 
     private StartRemoteVMProcessor startRemoteVMProcessor;
-    private BufferToInputStream bufferToInputStream = new BufferToInputStream();
 
     private ThroughputStateProcessor throughputStateProcessor = new ThroughputStateProcessor();
 
+    private ClassDataSharing classDataSharing;
+
+    private LauncherPool launcherPool;
+
+    private boolean inAgentAllowed = false;
+
+    private boolean agentCache = false;
+
+    private String clientAddress;
+    // Client address and key client sent for the launch, if any
+    private String launchKey;
+    private LaunchHistory launchHistory;
+    // VM started before client asked for one and how it was started
+    private StartRemoteVMProcessor speculativeVM;
+    private Process speculativeProcess;
+    private List<String> speculativeCommand;
+    private boolean waitForLauncher = false;
+    // Class data sharing archive next started VM is to dump
+    private ClassDataSharing.Dump dump;
+
     public ClientSession(int sessionId, SocketChannel commandChannel, String javaExecutablePathString) {
         this.sessionId = sessionId;
         this.clientSocketChannel = commandChannel;
@@ -111,10 +135,48 @@ public class ClientSession implements Runnable {
         LAUNCHER_LOGGER = Logger.getLogger("[" + sessionId + "] <<");
         
         InetSocketAddress remoteAddress = (InetSocketAddress)commandChannel.socket().getRemoteSocketAddress();
+        clientAddress = remoteAddress.getAddress().getHostAddress();
+        launchKey = clientAddress;
         
         AGENT_LOGGER.info("Got client from " + remoteAddress.getHostName() + ":" + remoteAddress.getPort() + " address.");
     }
 
+    /**
+     * @param classDataSharing archives of classes VMs are launched with or null if they are not to be used
+     */
+    public void setClassDataSharing(ClassDataSharing classDataSharing) {
+        this.classDataSharing = classDataSharing;
+    }
+
+    /**
+     * @param launcherPool pool of VMs started ahead of time or null if VMs are always to be started for the session
+     */
+    public void setLauncherPool(LauncherPool launcherPool) {
+        this.launcherPool = launcherPool;
+    }
+
+    /**
+     * @param inAgentAllowed if true client can ask for application to be run inside of agent's VM
+     */
+    public void setInAgentAllowed(boolean inAgentAllowed) {
+        this.inAgentAllowed = inAgentAllowed;
+    }
+
+    /**
+     * @param agentCache if true cache is brought up to date inside of agent's VM while VM application is to run in boots
+     */
+    public void setAgentCache(boolean agentCache) {
+        this.agentCache = agentCache;
+    }
+
+    /**
+     * @param launchHistory how VMs were started for clients, so VM can be started before client asks for it,
+     *                      or null if VMs are to be started only once clients ask for them
+     */
+    public void setLaunchHistory(LaunchHistory launchHistory) {
+        this.launchHistory = launchHistory;
+    }
+
     public void setup(final Selector selector) throws IOException {
         this.selector = selector;
 
@@ -127,21 +189,14 @@ public class ClientSession implements Runnable {
                 }
             };
             stateMachine.register(startRemoteVMProcessor);
-
-            final DataInputStream startupDataInputStream = new DataInputStream(bufferToInputStream);
-
-            Thread startupThread = new Thread(new Runnable() {
-                public void run() {
-                    // Needed only for StartRemoveVMProcessor
-                    try {
-                        stateMachine.processInput(startupDataInputStream);
-                    } catch (IOException e) {
-                        AGENT_LOGGER.log(Level.SEVERE, "State machine processing exception", e);
-                        System.exit(1);
+            stateMachine.register(new LaunchKeyProcessor() {
+                @Override public void keyReceived() throws IOException {
+                    launchKey = clientAddress + "/" + getLaunchKey();
+                    if (launchHistory != null && speculativeProcess == null && !vmIsStarted) {
+                        startSpeculativeVM();
                     }
                 }
             });
-            startupThread.start();
         }
         processInputBuffer = ByteBuffer.allocateDirect(1024);
         launcherToClientBuffer = ByteBuffer.allocateDirect(1024);
@@ -165,17 +220,18 @@ public class ClientSession implements Runnable {
                         if (r > 0) {
                             clientToLauncherBuffer.flip();
                             DebugUtils.debug(CLIENT_LOGGER, clientToLauncherBuffer);
-                            if (vmIsStarted) {
-                                clientSocketChannelKey.interestOps(clientSocketChannelKey.interestOps() & ~SelectionKey.OP_READ); 
-                                launcherSocketChannelKey.interestOps(launcherSocketChannelKey.interestOps() | SelectionKey.OP_WRITE);
-                            } else {
-                                bufferToInputStream.process(clientToLauncherBuffer);
-                                if (clientToLauncherBuffer.remaining() > 0) {
-                                    clientSocketChannelKey.interestOps(clientSocketChannelKey.interestOps() & ~SelectionKey.OP_READ); 
+                            // Start of VM is processed here, on selector thread, and everything after it goes to the launcher
+                            while (!vmIsStarted && clientToLauncherBuffer.remaining() > 0) {
+                                stateMachine.processInput(clientToLauncherBuffer);
+                            }
+                            if (clientToLauncherBuffer.remaining() > 0) {
+                                clientToLauncherBufferReady = true;
+                                changeClientInterestOps(0, SelectionKey.OP_READ);
+                                if (launcherSocketChannelKey != null) {
                                     launcherSocketChannelKey.interestOps(launcherSocketChannelKey.interestOps() | SelectionKey.OP_WRITE);
-                                } else {
-                                    clientToLauncherBuffer.clear();
                                 }
+                            } else {
+                                clientToLauncherBuffer.clear();
                             }
                             if (CLIENT_LOGGER.isLoggable(Level.FINER)) { CLIENT_LOGGER.finer("Client send " + r + " bytes to launcher"); }
                         } else if (r < 0) {
@@ -193,6 +249,8 @@ public class ClientSession implements Runnable {
                                 if (LAUNCHER_LOGGER.isLoggable(Level.FINEST)) { LAUNCHER_LOGGER.finest("Selected stream buffer"); }
                             } else if (launcherToClientBufferReady) {
                                 launcherToClientCurrentBuffer = launcherToClientBuffer;
+                                // Buffer is going to be sent completely before anything else is selected
+                                throughputStateProcessor.process(launcherToClientBuffer);
                                 if (LAUNCHER_LOGGER.isLoggable(Level.FINEST)) { LAUNCHER_LOGGER.finest("Selected client buffer"); }
                             } else {
                                 if (LAUNCHER_LOGGER.isLoggable(Level.FINEST)) { LAUNCHER_LOGGER.finest("Selected new buffers; streamBuffer ready=" + processInputBufferReady + ", throughput ready=" + throughputStateProcessor.isIdle() + ", launcherToClientBufferReady=" + launcherToClientBufferReady); }
@@ -201,15 +259,24 @@ public class ClientSession implements Runnable {
                                 DebugUtils.debug(LAUNCHER_LOGGER, launcherToClientCurrentBuffer);
                             }
                         }
+                        boolean writeRemoved = false;
                         if (launcherToClientCurrentBuffer == null) {
-                            if (LAUNCHER_LOGGER.isLoggable(Level.FINEST)) { LAUNCHER_LOGGER.finest("Removing WRITE from client channel"); }
-                            clientSocketChannelKey.interestOps(clientSocketChannelKey.interestOps() & ~SelectionKey.OP_WRITE);
+                            synchronized (processInputBuffer) {
+                                // Stream thread might have queued its buffer since it was looked at
+                                if (!processInputBufferReady || !throughputStateProcessor.isIdle()) {
+                                    if (LAUNCHER_LOGGER.isLoggable(Level.FINEST)) { LAUNCHER_LOGGER.finest("Removing WRITE from client channel"); }
+                                    clientSocketChannelKey.interestOps(clientSocketChannelKey.interestOps() & ~SelectionKey.OP_WRITE);
+                                    writeRemoved = true;
+                                }
+                            }
+                        }
+                        if (writeRemoved) {
                             clientHasOutgoingTransmission = false;
                             if (clientSideCloseScheduled) {
                                 if (LAUNCHER_LOGGER.isLoggable(Level.FINEST)) { LAUNCHER_LOGGER.finest("Client side close scheduled, so we closing now"); }
                                 closeClientSide();
                             }
-                        } else {
+                        } else if (launcherToClientCurrentBuffer != null) {
                             if (launcherToClientCurrentBuffer.remaining() == 0) {
                                 if (LAUNCHER_LOGGER.isLoggable(Level.FINEST)) { LAUNCHER_LOGGER.finest("Buffer is completely sent. Finishing it..."); }
                                 launcherToClientCurrentBuffer.clear();
@@ -226,10 +293,6 @@ public class ClientSession implements Runnable {
                                 }
                                 launcherToClientCurrentBuffer = null;
                             } else {
-                                if (launcherToClientCurrentBuffer == launcherToClientBuffer) {
-                                    throughputStateProcessor.process(launcherToClientBuffer);
-                                }
-
                                 int w = clientSocketChannel.write(launcherToClientCurrentBuffer);
                                 if (w < 0) {
                                     clientSocketChannel.close();
@@ -285,7 +348,12 @@ public class ClientSession implements Runnable {
                                 launcherSocketChannelKey = newClientChannel.register(selector, SelectionKey.OP_READ);
                                 launcherSocketChannelKey.attach(this);
                                 launcherSocketChannel = newClientChannel;
-                                clientSocketChannelKey.interestOps(clientSocketChannelKey.interestOps() | SelectionKey.OP_READ);
+                                if (clientToLauncherBufferReady) {
+                                    // Client has already sent something after start of VM
+                                    launcherSocketChannelKey.interestOps(launcherSocketChannelKey.interestOps() | SelectionKey.OP_WRITE);
+                                } else {
+                                    changeClientInterestOps(SelectionKey.OP_READ, 0);
+                                }
                                 if (LAUNCHER_LOGGER.isLoggable(Level.FINER)) { LAUNCHER_LOGGER.finer("Launcher connected back to us"); }
 
                                 // We have already received connection from the launcher - so we don't care about any others.
@@ -301,7 +369,7 @@ public class ClientSession implements Runnable {
                             if (r > 0) {
                                 launcherToClientBuffer.flip();
                                 launcherSocketChannelKey.interestOps(launcherSocketChannelKey.interestOps() & ~SelectionKey.OP_READ); 
-                                clientSocketChannelKey.interestOps(clientSocketChannelKey.interestOps() | SelectionKey.OP_WRITE);
+                                changeClientInterestOps(SelectionKey.OP_WRITE, 0);
                                 launcherToClientBufferReady = true;
                                 if (LAUNCHER_LOGGER.isLoggable(Level.FINER)) { LAUNCHER_LOGGER.finer("Launcher sent " + r + " bytes to client "); }
                             } else if (r < 0) {
@@ -312,8 +380,9 @@ public class ClientSession implements Runnable {
                         if (key.isWritable()) {
                             if (clientToLauncherBuffer.remaining() == 0) {
                                 clientToLauncherBuffer.clear();
+                                clientToLauncherBufferReady = false;
                                 launcherSocketChannelKey.interestOps(launcherSocketChannelKey.interestOps() & ~SelectionKey.OP_WRITE);
-                                clientSocketChannelKey.interestOps(clientSocketChannelKey.interestOps() | SelectionKey.OP_READ);
+                                changeClientInterestOps(SelectionKey.OP_READ, 0);
                             } else {
                                 int w = launcherSocketChannel.write(clientToLauncherBuffer);
                                 if (w < 0) {
@@ -347,21 +416,9 @@ public class ClientSession implements Runnable {
     }
 
     public void startRemoteVM() throws IOException {
-        ProcessBuilder processBuilder = new ProcessBuilder();
-        ArrayList<String> command = new ArrayList<String>();
-        command.add(javaExecutablePathString);
-        if (startRemoteVMProcessor.getRemoteDebugPort() > 0) {
-            command.add("-Xdebug");
-            command.add("-Xrunjdwp:transport=dt_socket,server=y,suspend=" + (startRemoteVMProcessor.isRemoteDebugSuspendAtStart() ? "y" : "n") + ",address=" + startRemoteVMProcessor.getRemoteDebugPort());
-        }
-        
         boolean debugLevelFlag = false;
         int clientDebugLevel = -1;
-        
-        String initialClasspath = ClasspathUtils.obtainInitialPath();
-        if (AGENT_LOGGER.isLoggable(Level.INFO)) { AGENT_LOGGER.info("Launching with classpath: " + initialClasspath); }
-        command.add("-cp");
-        command.add(initialClasspath);
+
         for (String remoteVMArg : startRemoteVMProcessor.getVmArgs()) {
             if (debugLevelFlag) { 
                 clientDebugLevel = Integer.parseInt(remoteVMArg); 
@@ -369,9 +426,8 @@ public class ClientSession implements Runnable {
             } else if ("-d".equals(remoteVMArg)) { 
                 debugLevelFlag = true;
             }
-            command.add(remoteVMArg);
         }
-        command.add(Launcher.class.getName());
+        ArrayList<String> launcherArgs = new ArrayList<String>();
         for (String remoteArg : startRemoteVMProcessor.getLauncherArgs()) {
             if (debugLevelFlag) { 
                 clientDebugLevel = Integer.parseInt(remoteArg); 
@@ -379,37 +435,178 @@ public class ClientSession implements Runnable {
             } else if ("-d".equals(remoteArg)) { 
                 debugLevelFlag = true;
             }
-            command.add(remoteArg);
+            launcherArgs.add(remoteArg);
+        }
+        if (startRemoteVMProcessor.isOpcodes()) {
+            launcherArgs.add("-op");
+        }
+        launcherArgs.add(Integer.toString(launcherServerSocketPort));
+
+        // Application in watch mode never finishes, so it is not to be run inside of agent
+        boolean inAgent = inAgentAllowed && isDefaultVM(startRemoteVMProcessor) && startRemoteVMProcessor.isInAgent() && !launcherArgs.contains("-w");
+        if (launchHistory != null) {
+            launchHistory.put(launchKey, startRemoteVMProcessor);
+        }
+        // Only application loaded from cache that is up to date before it starts can be given its classpath
+        boolean sync = agentCache && !inAgent && !launcherArgs.contains("-w") && !launcherArgs.contains("-clt");
+        List<String> vmLauncherArgs = sync ? Arrays.asList("-r") : launcherArgs;
+
+        String commandString;
+        if (speculativeVM != null) {
+            if (!inAgent && LaunchHistory.sameVM(speculativeVM, startRemoteVMProcessor)) {
+                process = speculativeProcess;
+                // Launcher's line saying it waits for arguments is not for the client
+                waitForLauncher = true;
+            } else {
+                if (AGENT_LOGGER.isLoggable(Level.INFO)) { AGENT_LOGGER.info("Client asked for different VM than the one started for it"); }
+                speculativeProcess.destroy();
+            }
+            speculativeVM = null;
+            speculativeProcess = null;
+        }
+        if (process == null && !inAgent && launcherPool != null && isDefaultVM(startRemoteVMProcessor)) {
+            process = launcherPool.take();
+        }
+
+        if (inAgent) {
+            commandString = "agent's VM: " + Launcher.class.getName() + " " + createCommandString(launcherArgs);
+
+            if (AGENT_LOGGER.isLoggable(Level.INFO)) { AGENT_LOGGER.info("Running in " + commandString); }
+
+            inputStream = new InAgentExecution(sessionId, launcherArgs).start();
+        } else if (process != null) {
+            ArrayList<String> command = new ArrayList<String>(waitForLauncher ? speculativeCommand : launcherPool.getCommand());
+            command.addAll(vmLauncherArgs);
+            commandString = createCommandString(command);
+
+            if (AGENT_LOGGER.isLoggable(Level.INFO)) { AGENT_LOGGER.info("Using " + (waitForLauncher ? "VM started ahead for the client: " : "pooled VM: ") + commandString); }
+
+            StringBuilder line = new StringBuilder();
+            for (String launcherArg : vmLauncherArgs) {
+                line.append(launcherArg).append(' ');
+            }
+            line.append('\n');
+            OutputStream processOutputStream = process.getOutputStream();
+            processOutputStream.write(line.toString().getBytes("UTF-8"));
+            processOutputStream.flush();
+        } else {
+            List<String> command = vmCommand(startRemoteVMProcessor);
+            command.addAll(vmLauncherArgs);
+
+            commandString = createCommandString(command);
+
+            if (AGENT_LOGGER.isLoggable(Level.INFO)) { AGENT_LOGGER.info("Launching command: " + commandString); }
+
+            process = startProcess(command);
         }
-        command.add(Integer.toString(launcherServerSocketPort));
 
-        String commandString = createCommandString(command);
-        
-        if (AGENT_LOGGER.isLoggable(Level.INFO)) { AGENT_LOGGER.info("Launching command: " + commandString); }
-        
         if (clientDebugLevel >= 2) {
             sendLogStringBackToClient(new SimpleDateFormat(JavaLoggingUtils.TIME_FORMATTER).format(System.currentTimeMillis()) + "  Agent: Starting new VM with " + commandString);
         } else if (clientDebugLevel > 0) {
             sendLogStringBackToClient("Agent: Starting new VM with " + commandString);
         }
-        
-        processBuilder.command(command);
-        processBuilder.redirectErrorStream(true);
-        process = processBuilder.start();
 
-        inputStream = process.getInputStream();
-        outputStream = process.getOutputStream();
+        if (process != null) {
+            inputStream = process.getInputStream();
+            outputStream = process.getOutputStream();
+        }
+        if (sync) {
+            if (AGENT_LOGGER.isLoggable(Level.INFO)) { AGENT_LOGGER.info("Bringing cache up to date in agent's VM with launcher arguments: " + createCommandString(launcherArgs)); }
+            new AgentSync(sessionId, launcherArgs, process).start();
+        }
 
         Thread processThread = new Thread(this);
         processThread.start();
         vmIsStarted = true;
     }
 
+    /**
+     * Starts VM the same way it was started for the launch last time, without launcher arguments, so it boots
+     * while client is still getting ready to ask for it. VM waits for launcher arguments on its standard input.
+     * VM that is debugged is not started ahead as it would hold debug port VM client asks for needs.
+     */
+    private void startSpeculativeVM() throws IOException {
+        StartRemoteVMProcessor lastVM = launchHistory.get(launchKey);
+        if (lastVM == null || lastVM.getRemoteDebugPort() > 0 || (lastVM.isInAgent() && inAgentAllowed) || (launcherPool != null && isDefaultVM(lastVM))) {
+            return;
+        }
+        speculativeCommand = vmCommand(lastVM);
+        List<String> command = new ArrayList<String>(speculativeCommand);
+        command.add("-wait");
+
+        if (AGENT_LOGGER.isLoggable(Level.INFO)) { AGENT_LOGGER.info("Starting VM ahead for the client: " + createCommandString(command)); }
+
+        speculativeVM = lastVM;
+        speculativeProcess = startProcess(command);
+    }
+
+    /**
+     * @return true if VM doesn't need arguments of its own, so pooled VM or agent's VM can be used
+     */
+    private static boolean isDefaultVM(StartRemoteVMProcessor vm) {
+        return vm.getVmArgs().isEmpty() && vm.getRemoteDebugPort() <= 0;
+    }
+
+    /**
+     * @return command to start VM with, up to launcher arguments
+     */
+    private List<String> vmCommand(StartRemoteVMProcessor vm) throws IOException {
+        ArrayList<String> command = new ArrayList<String>();
+        command.add(javaExecutablePathString);
+        if (vm.getRemoteDebugPort() > 0) {
+            command.add("-Xdebug");
+            command.add("-Xrunjdwp:transport=dt_socket,server=y,suspend=" + (vm.isRemoteDebugSuspendAtStart() ? "y" : "n") + ",address=" + vm.getRemoteDebugPort());
+        }
+
+        String initialClasspath = ClasspathUtils.obtainInitialPath();
+        if (AGENT_LOGGER.isLoggable(Level.INFO)) { AGENT_LOGGER.info("Launching with classpath: " + initialClasspath); }
+        command.add("-cp");
+        command.add(initialClasspath);
+        dump = null;
+        if (classDataSharing != null && vm.getClasspathFingerprint() != null) {
+            dump = classDataSharing.prepare(vm.getClasspathFingerprint(), initialClasspath, vm.getVmArgs(), command, sessionId);
+        }
+        command.addAll(vm.getVmArgs());
+        command.add(Launcher.class.getName());
+        return command;
+    }
+
+    /**
+     * Starts VM with given command. If it is to dump class data sharing archive, archive is kept once it exits.
+     */
+    private Process startProcess(List<String> command) throws IOException {
+        ProcessBuilder processBuilder = new ProcessBuilder();
+        processBuilder.command(command);
+        processBuilder.redirectErrorStream(true);
+        final Process startedProcess = processBuilder.start();
+
+        if (dump != null) {
+            final ClassDataSharing.Dump finalDump = dump;
+            dump = null;
+            Thread dumpThread = new Thread(new Runnable() { public void run() {
+                int exitValue = -1;
+                try {
+                    exitValue = startedProcess.waitFor();
+                } catch (InterruptedException ignore) { }
+                classDataSharing.finished(finalDump, exitValue);
+            }});
+            dumpThread.setName("ClassDataSharing-" + sessionId);
+            dumpThread.setDaemon(true);
+            dumpThread.start();
+        }
+        return startedProcess;
+    }
+
     public void closeClientSide() throws IOException {
         if (!clientSideClosed) {
             clientSideClosed = true;
             if (CLIENT_LOGGER.isLoggable(Level.FINER)) { CLIENT_LOGGER.finer("Closing client side"); }
             closeChannel(clientSocketChannel);
+            if (speculativeProcess != null) {
+                // Client has gone before asking for VM
+                speculativeProcess.destroy();
+                speculativeProcess = null;
+            }
         }
     }
 
@@ -477,37 +674,72 @@ public class ClientSession implements Runnable {
         return command.toString();
     }
 
-    private void sendLogStringBackToClient(String str) {
-        try {
-            processInputBuffer.clear();
+    /**
+     * Puts stream frame header in process input buffer. Length of the frame is left to be filled in
+     * by {@link #finishStreamFrame()}. Opcode is used instead of id if client understands it.
+     */
+    private void startStreamFrame() {
+        processInputBuffer.clear();
+        processInputBuffer.position(4);
+        if (startRemoteVMProcessor.isOpcodes()) {
+            processInputBuffer.put((byte) StreamProcessor.OPCODE);
+        } else {
             processInputBuffer.putShort((short) 2);
-            processInputBuffer.put("S0".getBytes());
-            processInputBuffer.putShort((short) str.length());
-            processInputBuffer.put(str.getBytes(), 0, str.length());
-            processInputBuffer.flip();
-            synchronized (processInputBuffer) {
-                clientSocketChannelKey.interestOps(clientSocketChannelKey.interestOps() | SelectionKey.OP_WRITE);
-                processInputBufferReady = true;
-                if (LAUNCHER_LOGGER.isLoggable(Level.FINEST)) {
-                    LAUNCHER_LOGGER.finest("Waiting on stream data to be sent back...");
-                }
-                processInputBuffer.wait();
-                if (LAUNCHER_LOGGER.isLoggable(Level.FINEST)) {
-                    LAUNCHER_LOGGER.finest("Waiting on stream data was sent back.");
-                }
-            }
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+            processInputBuffer.put(STREAM_ID);
         }
     }
-        
+
+    /**
+     * Changes interest ops of client channel. Stream thread adds WRITE to them too, so they are changed
+     * under the same lock it uses.
+     */
+    private void changeClientInterestOps(int add, int remove) {
+        synchronized (processInputBuffer) {
+            clientSocketChannelKey.interestOps((clientSocketChannelKey.interestOps() | add) & ~remove);
+        }
+    }
+
+    private void finishStreamFrame() {
+        processInputBuffer.putInt(0, processInputBuffer.position() - 4);
+        processInputBuffer.flip();
+    }
+
+    /**
+     * Queues string to be sent to the client. It is invoked on selector thread, before process
+     * thread starts, so it doesn't wait for string to be sent.
+     */
+    private void sendLogStringBackToClient(String str) {
+        byte[] bytes = str.getBytes();
+        if (bytes.length > 65535) {
+            bytes = Arrays.copyOf(bytes, 65535);
+        }
+        if (processInputBuffer.capacity() < bytes.length + 10) {
+            processInputBuffer = ByteBuffer.allocateDirect(bytes.length + 10);
+        }
+        startStreamFrame();
+        processInputBuffer.putShort((short) bytes.length);
+        processInputBuffer.put(bytes);
+        finishStreamFrame();
+        synchronized (processInputBuffer) {
+            processInputBufferReady = true;
+            clientSocketChannelKey.interestOps(clientSocketChannelKey.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
     public void run() {
+        if (waitForLauncher && !LauncherPool.waitForLauncher(process)) {
+            LAUNCHER_LOGGER.severe("VM started ahead for the client has exited");
+        }
         byte[] buffer = new byte[1000];
         while (!stop) {
             try {
-                processInputBuffer.clear();
-                processInputBuffer.putShort((short) 2);
-                processInputBuffer.put("S0".getBytes());
+                synchronized (processInputBuffer) {
+                    // Log string from the agent might be still on its way to the client
+                    while (processInputBufferReady) {
+                        processInputBuffer.wait();
+                    }
+                }
+                startStreamFrame();
                 int size = inputStream.read(buffer, 0, 1);
                 if (size > 0) {
                     int available = inputStream.available();
@@ -523,13 +755,15 @@ public class ClientSession implements Runnable {
                     if (!clientSideClosed) {
                         processInputBuffer.putShort((short) size);
                         processInputBuffer.put(buffer, 0, size);
-                        processInputBuffer.flip();
+                        finishStreamFrame();
                         if (LAUNCHER_LOGGER.isLoggable(Level.FINER)) {
                             LAUNCHER_LOGGER.finer("Waiting to send back stream data:\n" + new String(buffer, 0, size));
                         }
                         synchronized (processInputBuffer) {
                             clientSocketChannelKey.interestOps(clientSocketChannelKey.interestOps() | SelectionKey.OP_WRITE);
                             processInputBufferReady = true;
+                            // Worker's selector doesn't see new interest ops until it selects again
+                            clientSocketChannelKey.selector().wakeup();
                             if (LAUNCHER_LOGGER.isLoggable(Level.FINEST)) {
                                 LAUNCHER_LOGGER.finest("Waiting on stream data to be sent back...");
                             }
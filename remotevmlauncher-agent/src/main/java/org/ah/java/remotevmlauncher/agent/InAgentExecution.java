@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2013 Creative Sphere Limited.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.ah.java.remotevmlauncher.agent;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.security.Permission;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.ah.java.remotevmlauncher.launcher.Launcher;
+
+/**
+ * Runs launcher inside of agent's VM instead of starting new VM for it. Launcher and application run in
+ * thread group of their own; what threads of that group print to standard output and error is given to the
+ * session in place of output of launched VM. Launcher loads application in class loader of its own, the same
+ * way it does in launched VM, and it is let go once all non daemon threads of the group have finished.
+ * <p>
+ * Standard output and error of agent's VM are replaced for as long as it runs; what application prints
+ * to either of them is sent to the client as one stream. System.exit called by a thread of a session ends
+ * only that thread; it is stopped by security manager, so running applications inside of agent is not supported
+ * where VM doesn't let one be installed - from Java 18 unless agent's VM is started with
+ * -Djava.security.manager=allow. Java 17 prints warning that security manager is deprecated when it is installed.
+ * Daemon threads application leaves behind are not stopped.
+ *
+ * @author Daniel Sendula
+ */
+public class InAgentExecution implements Runnable {
+
+    public static Logger LOGGER = Logger.getLogger("InAgent");
+
+    // Thread group -> output of the session
+    private static Map<ThreadGroup, OutputStream> outputs;
+
+    private int sessionId;
+    private List<String> launcherArgs;
+    private ThreadGroup threadGroup;
+    private Pipe pipe;
+    private OutputStream output;
+
+    /**
+     * @param sessionId id of session launcher is run for
+     * @param launcherArgs launcher arguments, as launched VM would get them
+     */
+    public InAgentExecution(int sessionId, List<String> launcherArgs) {
+        this.sessionId = sessionId;
+        this.launcherArgs = launcherArgs;
+    }
+
+    /**
+     * Starts launcher in thread group of its own.
+     *
+     * @return output of launcher and application
+     */
+    public InputStream start() throws IOException {
+        installOutputs();
+        pipe = Pipe.open();
+        output = Channels.newOutputStream(pipe.sink());
+        threadGroup = new ThreadGroup("Session-" + sessionId);
+        outputs.put(threadGroup, output);
+
+        Thread thread = new Thread(threadGroup, this);
+        thread.setName("Launcher-" + sessionId);
+        thread.start();
+
+        // Session reads as much as is available at once
+        return new BufferedInputStream(Channels.newInputStream(pipe.source()));
+    }
+
+    public void run() {
+        try {
+            Launcher launcher = new Launcher();
+            launcher.applyArguments(launcherArgs.toArray(new String[launcherArgs.size()]));
+            launcher.setInProcess(true);
+            try {
+                launcher.setup();
+                launcher.start();
+                waitForApplication();
+            } finally {
+                launcher.close();
+            }
+        } catch (Throwable t) {
+            t.printStackTrace();
+        } finally {
+            outputs.remove(threadGroup);
+            try {
+                output.close();
+            } catch (IOException ignore) { }
+            if (LOGGER.isLoggable(Level.FINE)) { LOGGER.fine("Session " + sessionId + " finished in agent"); }
+        }
+    }
+
+    /**
+     * Waits for all non daemon threads of the group, apart from this one, to finish - as VM would before exiting.
+     */
+    private void waitForApplication() throws InterruptedException {
+        Thread current = Thread.currentThread();
+        boolean waited = true;
+        while (waited) {
+            waited = false;
+            Thread[] threads = new Thread[threadGroup.activeCount() + 8];
+            int count = threadGroup.enumerate(threads, true);
+            for (int i = 0; i < count; i++) {
+                if (threads[i] != current && !threads[i].isDaemon() && threads[i].isAlive()) {
+                    threads[i].join();
+                    waited = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces standard output and error of agent's VM with streams that give what is printed by threads
+     * of sessions run inside of agent to those sessions, and the rest to the original streams. Also stops
+     * threads of sessions from exiting agent's VM.
+     */
+    private static synchronized void installOutputs() {
+        if (outputs == null) {
+            outputs = new ConcurrentHashMap<ThreadGroup, OutputStream>();
+            System.setOut(new PrintStream(new SessionOutputStream(System.out), true));
+            System.setErr(new PrintStream(new SessionOutputStream(System.err), true));
+            installExitGuard();
+        }
+    }
+
+    /**
+     * Installs security manager that stops threads of sessions from exiting agent's VM. Does nothing if it is
+     * already installed.
+     *
+     * @throws UnsupportedOperationException if VM doesn't let it be installed or other security manager is
+     *                                       installed already; applications cannot be run inside of agent then
+     */
+    @SuppressWarnings("removal")
+    public static synchronized void installExitGuard() {
+        Object securityManager = System.getSecurityManager();
+        if (securityManager instanceof ExitGuard) {
+            return;
+        }
+        if (securityManager != null) {
+            throw new UnsupportedOperationException("Applications cannot be run inside of agent as other security manager is installed");
+        }
+        try {
+            System.setSecurityManager(new ExitGuard());
+        } catch (UnsupportedOperationException e) {
+            UnsupportedOperationException notSupported = new UnsupportedOperationException(
+                    "Applications cannot be run inside of agent as VM doesn't let security manager be installed;"
+                    + " start agent with -Djava.security.manager=allow");
+            notSupported.initCause(e);
+            throw notSupported;
+        }
+    }
+
+    /**
+     * @return output of session given thread is run for or null if it is not a thread of a session
+     */
+    private static OutputStream sessionOutput(Thread thread) {
+        ThreadGroup group = thread.getThreadGroup();
+        while (group != null) {
+            OutputStream output = outputs.get(group);
+            if (output != null) {
+                return output;
+            }
+            group = group.getParent();
+        }
+        return null;
+    }
+
+    /**
+     * Doesn't let threads of sessions exit the VM. Everything else is allowed.
+     */
+    @SuppressWarnings("removal")
+    private static class ExitGuard extends SecurityManager {
+
+        @Override public void checkExit(int status) {
+            if (sessionOutput(Thread.currentThread()) != null) {
+                throw new SecurityException("Application run inside of agent cannot exit agent's VM; status " + status);
+            }
+        }
+
+        @Override public void checkPermission(Permission permission) {
+        }
+
+        @Override public void checkPermission(Permission permission, Object context) {
+        }
+    }
+
+    private static class SessionOutputStream extends OutputStream {
+        private OutputStream original;
+
+        private SessionOutputStream(OutputStream original) {
+            this.original = original;
+        }
+
+        private OutputStream current() {
+            OutputStream output = sessionOutput(Thread.currentThread());
+            return output != null ? output : original;
+        }
+
+        @Override public void write(int b) throws IOException {
+            current().write(b);
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            current().write(b, off, len);
+        }
+
+        @Override public void flush() throws IOException {
+            current().flush();
+        }
+    }
+}
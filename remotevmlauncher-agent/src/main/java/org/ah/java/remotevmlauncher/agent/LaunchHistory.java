@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2013 Creative Sphere Limited.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.ah.java.remotevmlauncher.agent;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.ah.java.remotevmlauncher.protocol.StartRemoteVMProcessor;
+
+/**
+ * How VM was last started for each launch - client address and key client sent for it, so different users and
+ * applications behind the same address don't replace each other's VMs. Client is likely to ask for VM the same
+ * way next time, so VM can be started before it asks for it. Only launches that happened most recently are kept.
+ *
+ * @author Daniel Sendula
+ */
+public class LaunchHistory {
+
+    private static final int MAX_LAUNCHES = 1000;
+
+    // Launch key -> VM as client asked for it last time, least recently used first
+    private Map<String, StartRemoteVMProcessor> lastVMs = new LinkedHashMap<String, StartRemoteVMProcessor>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override protected boolean removeEldestEntry(Map.Entry<String, StartRemoteVMProcessor> eldest) {
+            return size() > MAX_LAUNCHES;
+        }
+    };
+
+    /**
+     * @param launchKey client address and key client sent for the launch
+     * @return how VM was last started for the launch or null if client hasn't asked for VM for it yet
+     */
+    public synchronized StartRemoteVMProcessor get(String launchKey) {
+        return lastVMs.get(launchKey);
+    }
+
+    /**
+     * Records how client asked for VM. Only what goes to command VM is started with is kept.
+     *
+     * @param launchKey client address and key client sent for the launch
+     * @param vm VM as client asked for it
+     */
+    public synchronized void put(String launchKey, StartRemoteVMProcessor vm) {
+        StartRemoteVMProcessor copy = new StartRemoteVMProcessor();
+        copy.setRemoteDebugPort(vm.getRemoteDebugPort());
+        copy.setRemoteDebugSuspendAtStart(vm.isRemoteDebugSuspendAtStart());
+        copy.getVmArgs().addAll(vm.getVmArgs());
+        copy.setClasspathFingerprint(vm.getClasspathFingerprint());
+        copy.setInAgent(vm.isInAgent());
+        lastVMs.put(launchKey, copy);
+    }
+
+    /**
+     * @return true if VM started for one is started with the same command as VM started for the other,
+     *         apart from launcher arguments
+     */
+    public static boolean sameVM(StartRemoteVMProcessor one, StartRemoteVMProcessor other) {
+        if (one.getRemoteDebugPort() != other.getRemoteDebugPort()) {
+            return false;
+        }
+        if (one.getRemoteDebugPort() > 0 && one.isRemoteDebugSuspendAtStart() != other.isRemoteDebugSuspendAtStart()) {
+            return false;
+        }
+        if (one.getClasspathFingerprint() == null ? other.getClasspathFingerprint() != null : !one.getClasspathFingerprint().equals(other.getClasspathFingerprint())) {
+            return false;
+        }
+        return one.getVmArgs().equals(other.getVmArgs());
+    }
+}
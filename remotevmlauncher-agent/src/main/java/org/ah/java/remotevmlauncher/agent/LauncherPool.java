@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2013 Creative Sphere Limited.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.ah.java.remotevmlauncher.agent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.ah.java.remotevmlauncher.ClasspathUtils;
+import org.ah.java.remotevmlauncher.launcher.Launcher;
+
+/**
+ * Pool of launcher VMs started ahead of time, so sessions don't have to wait for VM to boot. Pooled VMs are
+ * started without any VM arguments and wait for the rest of launcher arguments on their standard input.
+ * Only sessions that don't ask for VM arguments of their own can be given pooled VM. Pool is filled again
+ * in the background each time VM is taken from it.
+ * <p>
+ * Pooled VMs exit when standard input is closed, so they don't outlive the agent.
+ *
+ * @author Daniel Sendula
+ */
+public class LauncherPool implements Runnable {
+
+    public static Logger LOGGER = Logger.getLogger("Pool");
+
+    private int size;
+    private String javaExecutablePathString;
+    private List<String> command;
+
+    private boolean stop = false;
+    private int starting = 0;
+    private LinkedList<Process> idle = new LinkedList<Process>();
+
+    /**
+     * @param size number of idle VMs to keep
+     * @param javaExecutablePathString java executable to start VMs with
+     */
+    public LauncherPool(int size, String javaExecutablePathString) {
+        this.size = size;
+        this.javaExecutablePathString = javaExecutablePathString;
+    }
+
+    public void start() throws IOException {
+        command = new ArrayList<String>();
+        command.add(javaExecutablePathString);
+        command.add("-cp");
+        command.add(ClasspathUtils.obtainInitialPath());
+        command.add(Launcher.class.getName());
+        command.add("-wait");
+
+        Thread thread = new Thread(this);
+        thread.setName("LauncherPool");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        synchronized (this) {
+            stop = true;
+            notifyAll();
+        }
+        Process process = take();
+        while (process != null) {
+            process.destroy();
+            process = take();
+        }
+    }
+
+    /**
+     * @return command pooled VMs are started with, without the arguments given to them later
+     */
+    public List<String> getCommand() {
+        return command;
+    }
+
+    /**
+     * @return idle VM that waits for launcher arguments or null if there is none at the moment
+     */
+    public synchronized Process take() {
+        while (!idle.isEmpty()) {
+            Process process = idle.removeFirst();
+            notifyAll();
+            if (isAlive(process)) {
+                return process;
+            }
+        }
+        return null;
+    }
+
+    public void run() {
+        while (true) {
+            int missing = 0;
+            synchronized (this) {
+                while (!stop && idle.size() + starting >= size) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ignore) { }
+                }
+                if (stop) {
+                    return;
+                }
+                missing = size - idle.size() - starting;
+                starting = starting + missing;
+            }
+            // All missing VMs boot at the same time, as many sessions might have started at once
+            List<Process> started = new ArrayList<Process>();
+            for (int i = 0; i < missing; i++) {
+                try {
+                    ProcessBuilder processBuilder = new ProcessBuilder(command);
+                    processBuilder.redirectErrorStream(true);
+                    started.add(processBuilder.start());
+                } catch (IOException e) {
+                    LOGGER.log(Level.SEVERE, "Cannot start VM for the pool", e);
+                }
+            }
+            for (Process process : started) {
+                boolean ready = waitForLauncher(process);
+                synchronized (this) {
+                    if (ready && !stop) {
+                        idle.add(process);
+                    } else {
+                        process.destroy();
+                    }
+                }
+            }
+            synchronized (this) {
+                starting = starting - missing;
+            }
+            if (started.size() < missing) {
+                // Don't try starting VMs again straight away if they cannot be started at all
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ignore) { }
+            }
+            if (LOGGER.isLoggable(Level.FINE)) { LOGGER.fine("Pool has " + idle.size() + " idle VMs"); }
+        }
+    }
+
+    /**
+     * Reads what VM prints until launcher says it is waiting for arguments. Reading is done byte by byte
+     * so nothing printed after that is taken from the stream session is going to read.
+     */
+    static boolean waitForLauncher(Process process) {
+        InputStream in = process.getInputStream();
+        StringBuilder line = new StringBuilder();
+        try {
+            int b = in.read();
+            while (b >= 0) {
+                if (b == '\n') {
+                    if (Launcher.WAITING_FOR_ARGUMENTS.equals(line.toString().trim())) {
+                        return true;
+                    }
+                    if (LOGGER.isLoggable(Level.FINE)) { LOGGER.fine("Pooled VM: " + line); }
+                    line.setLength(0);
+                } else {
+                    line.append((char)b);
+                }
+                b = in.read();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot read from pooled VM", e);
+        }
+        return false;
+    }
+
+    private static boolean isAlive(Process process) {
+        try {
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+}
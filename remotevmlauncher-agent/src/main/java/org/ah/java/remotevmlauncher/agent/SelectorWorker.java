@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2013 Creative Sphere Limited.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.ah.java.remotevmlauncher.agent;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Thread with selector of its own that proxies channels of sessions given to it. Agent shares sessions between
+ * number of workers so busy session holds back only sessions of the same worker.
+ *
+ * @author Daniel Sendula
+ */
+public class SelectorWorker implements Runnable {
+
+    public static Logger LOGGER = Logger.getLogger("");
+
+    private int workerId;
+    private Selector selector;
+    private volatile boolean stop = false;
+    private LinkedList<ClientSession> newSessions = new LinkedList<ClientSession>();
+
+    public SelectorWorker(int workerId) {
+        this.workerId = workerId;
+    }
+
+    public void start() throws IOException {
+        selector = Selector.open();
+        Thread thread = new Thread(this);
+        thread.setName("SelectorWorker-" + workerId);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        stop = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Gives session to the worker. Session's channels are registered with worker's selector on worker's thread,
+     * as registering blocks while selector is selecting.
+     */
+    public void addSession(ClientSession session) {
+        synchronized (newSessions) {
+            newSessions.add(session);
+        }
+        selector.wakeup();
+    }
+
+    public void run() {
+        try {
+            while (!stop) {
+                setupNewSessions();
+                // Nothing is selected only when it times out or worker is woken up for new sessions or to stop;
+                // either way it goes straight back to selecting
+                int readyKeys = selector.select(250); // 1/4 second
+                if (readyKeys > 0) {
+                    Set<SelectionKey> selectedKeys = selector.selectedKeys();
+                    Iterator<SelectionKey> iterator = selectedKeys.iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        processKey(key);
+                        iterator.remove();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Selector worker " + workerId + " failed", e);
+        } finally {
+            try {
+                selector.close();
+            } catch (IOException ignore) { }
+        }
+    }
+
+    private void setupNewSessions() {
+        while (true) {
+            ClientSession session;
+            synchronized (newSessions) {
+                if (newSessions.isEmpty()) {
+                    return;
+                }
+                session = newSessions.removeFirst();
+            }
+            try {
+                session.setup(selector);
+                session.start();
+            } catch (IOException e) {
+                Agent.writeErrorBack(session.getCommandChannel(), e);
+                try {
+                    session.getCommandChannel().close();
+                } catch (IOException ignore) { }
+            }
+        }
+    }
+
+    protected void processKey(SelectionKey key) throws IOException {
+        ChannelProcessor processor = (ChannelProcessor)key.attachment();
+        processor.process(key);
+    }
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright (c) 2013 Creative Sphere Limited.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.ah.java.remotevmlauncher.launcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of application's cache dir: which local dir each classpath entry is cached in and digest, length
+ * and time of each resource as it was received. Resources with the same digest and length on the client
+ * are up to date and file system doesn't need to be asked about them.
+ * <p>
+ * Index is kept in a memory mapped file. Records are appended at the end and resource records are updated
+ * in place; records that are not needed any more are only marked as removed until there are more of them
+ * than of those in use.
+ * <pre>
+ * header:      int magic, int version, int end of records, int bytes of removed records
+ * translation: byte 1, short+bytes remote path, short+bytes local path
+ * resource:    byte 2, short+bytes key, long digest, long length, long last modified
+ * </pre>
+ * Removed records have top bit of their type set.
+ * Index that cannot be read is started again, empty.
+ * <p>
+ * Only one launcher at a time updates the index; it holds a lock of the file from open to close. Launchers
+ * of the same application that run alongside of it work on a private copy of the index that is
+ * not written back - resources they received are compared with the file system again next time.
+ *
+ * @author Daniel Sendula
+ */
+public class CacheIndex {
+
+    public static final String INDEX_FILE = ".index";
+
+    private static final int MAGIC = 0x52564d49;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int INITIAL_SIZE = 65536;
+    private static final long MAX_SIZE = Integer.MAX_VALUE;
+
+    private static final byte REMOVED = (byte)0x80;
+    private static final byte TRANSLATION = 1;
+    private static final byte RESOURCE = 2;
+
+    private File file;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private FileLock lock;
+    private ByteBuffer buffer;
+    private int end = HEADER_SIZE;
+    private int removed = 0;
+
+    // RemotePath -> position of record
+    private Map<String, Integer> translationPositions = new HashMap<String, Integer>();
+    // RemotePath -> LocalPath
+    private Map<String, String> translations = new LinkedHashMap<String, String>();
+    // Key -> resource
+    private Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    public CacheIndex(File file) {
+        this.file = file;
+    }
+
+    public synchronized void open() throws IOException {
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+        lock = tryLock();
+        long size = channel.size();
+        if (size > MAX_SIZE) {
+            // Not written by this index; cannot be mapped either
+            if (lock != null) {
+                channel.truncate(0);
+            }
+            size = 0;
+        }
+        map(size < INITIAL_SIZE ? INITIAL_SIZE : (int)size);
+        if (lock == null) {
+            channel.close();
+            randomAccessFile.close();
+        }
+        if (size < HEADER_SIZE || !read()) {
+            clear();
+        } else if (removed > end / 2) {
+            compact();
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (lock != null) {
+            ((MappedByteBuffer)buffer).force();
+            lock.release();
+            channel.close();
+            randomAccessFile.close();
+        }
+        buffer = null;
+    }
+
+    /**
+     * @return true if changes of this index are kept, false if other launcher has the index and this one
+     *         works on a private copy of it
+     */
+    public synchronized boolean isLocked() {
+        return lock != null;
+    }
+
+    /**
+     * @return local paths by remote paths of classpath entries, in order they were recorded
+     */
+    public synchronized Map<String, String> getTranslations() {
+        return new LinkedHashMap<String, String>(translations);
+    }
+
+    /**
+     * Records local paths of classpath entries. Entries not among given ones are removed.
+     *
+     * @param newTranslations local paths by remote paths
+     */
+    public synchronized void setTranslations(Map<String, String> newTranslations) {
+        Iterator<Map.Entry<String, String>> iterator = translations.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, String> translation = iterator.next();
+            if (!translation.getValue().equals(newTranslations.get(translation.getKey()))) {
+                remove(translationPositions.remove(translation.getKey()));
+                iterator.remove();
+            }
+        }
+        for (Map.Entry<String, String> translation : newTranslations.entrySet()) {
+            if (!translations.containsKey(translation.getKey())) {
+                byte[] remotePath = bytes(translation.getKey());
+                byte[] localPath = bytes(translation.getValue());
+                int position = allocate(1 + 2 + remotePath.length + 2 + localPath.length);
+                buffer.position(position);
+                buffer.put(TRANSLATION);
+                putBytes(remotePath);
+                putBytes(localPath);
+                commit();
+                translationPositions.put(translation.getKey(), position);
+                translations.put(translation.getKey(), translation.getValue());
+            }
+        }
+    }
+
+    public synchronized Entry get(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Records resource as it was received. Record of the resource is updated in place if there is one.
+     */
+    public synchronized void put(String key, long digest, long length, long lastModified) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            byte[] keyBytes = bytes(key);
+            int position = allocate(1 + 2 + keyBytes.length + 24);
+            buffer.position(position);
+            buffer.put(RESOURCE);
+            putBytes(keyBytes);
+            entry = new Entry(position, buffer.position());
+            entries.put(key, entry);
+            write(entry, digest, length, lastModified);
+            commit();
+        } else {
+            write(entry, digest, length, lastModified);
+        }
+    }
+
+    /**
+     * Removes resources with keys not among given ones.
+     */
+    public synchronized void retain(Set<String> keys) {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry> entry = iterator.next();
+            if (!keys.contains(entry.getKey())) {
+                remove(entry.getValue().position);
+                iterator.remove();
+            }
+        }
+    }
+
+    private void write(Entry entry, long digest, long length, long lastModified) {
+        buffer.putLong(entry.dataPosition, digest);
+        buffer.putLong(entry.dataPosition + 8, length);
+        buffer.putLong(entry.dataPosition + 16, lastModified);
+        entry.digest = digest;
+        entry.length = length;
+        entry.lastModified = lastModified;
+    }
+
+    private void remove(int position) {
+        int recordEnd = skip(position);
+        buffer.put(position, (byte)(buffer.get(position) | REMOVED));
+        removed = removed + recordEnd - position;
+        buffer.putInt(12, removed);
+    }
+
+    /**
+     * @return end of record at given position
+     */
+    private int skip(int position) {
+        buffer.position(position);
+        byte type = (byte)(buffer.get() & ~REMOVED);
+        skipBytes();
+        if (type == TRANSLATION) {
+            skipBytes();
+        } else {
+            buffer.position(buffer.position() + 24);
+        }
+        return buffer.position();
+    }
+
+    private boolean read() {
+        try {
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                return false;
+            }
+            end = buffer.getInt(8);
+            removed = buffer.getInt(12);
+            if (end < HEADER_SIZE || end > buffer.capacity() || removed < 0 || removed > end) {
+                return false;
+            }
+            buffer.position(HEADER_SIZE);
+            while (buffer.position() < end) {
+                int position = buffer.position();
+                byte type = buffer.get();
+                if (type == TRANSLATION) {
+                    String remotePath = getString();
+                    String localPath = getString();
+                    translationPositions.put(remotePath, position);
+                    translations.put(remotePath, localPath);
+                } else if (type == RESOURCE) {
+                    String key = getString();
+                    Entry entry = new Entry(position, buffer.position());
+                    entry.digest = buffer.getLong();
+                    entry.length = buffer.getLong();
+                    entry.lastModified = buffer.getLong();
+                    entries.put(key, entry);
+                } else if ((type & REMOVED) != 0) {
+                    skip(position);
+                } else {
+                    return false;
+                }
+            }
+            return buffer.position() == end;
+        } catch (BufferUnderflowException e) {
+            return false;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private void clear() {
+        translationPositions.clear();
+        translations.clear();
+        entries.clear();
+        end = HEADER_SIZE;
+        removed = 0;
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, end);
+        buffer.putInt(12, removed);
+    }
+
+    private void compact() {
+        Map<String, String> liveTranslations = new LinkedHashMap<String, String>(translations);
+        List<String> keys = new ArrayList<String>(entries.keySet());
+        List<Entry> liveEntries = new ArrayList<Entry>();
+        for (String key : keys) {
+            liveEntries.add(entries.get(key));
+        }
+        clear();
+        setTranslations(liveTranslations);
+        for (int i = 0; i < keys.size(); i++) {
+            Entry entry = liveEntries.get(i);
+            put(keys.get(i), entry.digest, entry.length, entry.lastModified);
+        }
+    }
+
+    private int allocate(int size) {
+        long required = (long)end + size;
+        if (required > buffer.capacity()) {
+            if (required > MAX_SIZE) {
+                throw new RuntimeException("Cache index is full; " + file.getAbsolutePath());
+            }
+            try {
+                map((int)Math.min(Math.max(buffer.capacity() * 2L, required), MAX_SIZE));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        int position = end;
+        end = end + size;
+        return position;
+    }
+
+    /**
+     * Makes record(s) allocated so far part of the index. Until then they are beyond its end.
+     */
+    private void commit() {
+        buffer.putInt(8, end);
+    }
+
+    private void map(int size) throws IOException {
+        if (lock != null) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } else if (buffer != null) {
+            ByteBuffer copy = ByteBuffer.allocate(size);
+            ByteBuffer old = buffer.duplicate();
+            old.clear();
+            copy.put(old);
+            buffer = copy;
+        } else {
+            buffer = ByteBuffer.allocate(size);
+            int r = channel.read(buffer, 0);
+            while (r > 0 && buffer.hasRemaining()) {
+                r = channel.read(buffer, buffer.position());
+            }
+        }
+    }
+
+    /**
+     * Lock is taken of a region past any content so that it doesn't stop others from reading the file
+     * where locks are mandatory.
+     *
+     * @return lock or null if other launcher, in this or other VM, holds it
+     */
+    private FileLock tryLock() throws IOException {
+        try {
+            return channel.tryLock(Long.MAX_VALUE - 1, 1, false);
+        } catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
+    private void skipBytes() {
+        int length = buffer.getShort() & 0xffff;
+        buffer.position(buffer.position() + length);
+    }
+
+    private String getString() {
+        byte[] bytes = new byte[buffer.getShort() & 0xffff];
+        buffer.get(bytes);
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void putBytes(byte[] bytes) {
+        buffer.putShort((short)bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static byte[] bytes(String string) {
+        try {
+            byte[] bytes = string.getBytes("UTF-8");
+            if (bytes.length > 65535) {
+                throw new RuntimeException("Path is too long; " + bytes.length);
+            }
+            return bytes;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Resource as it was received.
+     */
+    public static class Entry {
+        private int position;
+        private int dataPosition;
+        private long digest;
+        private long length;
+        private long lastModified;
+
+        private Entry(int position, int dataPosition) {
+            this.position = position;
+            this.dataPosition = dataPosition;
+        }
+
+        public long getDigest() {
+            return digest;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2013 Creative Sphere Limited.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.ah.java.remotevmlauncher.launcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps cache of all applications on this machine within its size. Files that application doesn't have any more
+ * are removed from its cache dir. If cache is still bigger than maximum size after that, content no application
+ * links to is removed first and then cache dirs of least recently used applications.
+ * <p>
+ * Files of cache dirs are mostly links to content shared between applications, so only files that are the
+ * only link to their content are counted in size of the cache. Where file system cannot tell number of links,
+ * each file is counted.
+ *
+ * @author Daniel Sendula
+ */
+public class CacheManager {
+
+    public static final long DEFAULT_MAX_SIZE = 1024L * 1024L * 1024L;
+
+    public static final String LAST_USED_FILE = ".last-used";
+
+    // Applications used more recently than this might still be running and files written more recently
+    // than this might still be being written to; they are left alone.
+    private static final long PROTECTION_TIME = 60L * 60L * 1000L;
+
+    private File globalCacheDir;
+    private File blobsDir;
+    private long maxSize;
+
+    private long size = 0;
+    private long reclaimedBytes = 0;
+    private int deletedFiles = 0;
+    private int deletedDirs = 0;
+    private int evictedApplications = 0;
+
+    /**
+     * @param globalCacheDir dir with cache dirs of all applications
+     * @param blobsDir dir with content shared between applications
+     * @param maxSize maximum number of bytes cache is allowed to take
+     */
+    public CacheManager(File globalCacheDir, File blobsDir, long maxSize) {
+        this.globalCacheDir = globalCacheDir;
+        this.blobsDir = blobsDir;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Records that application of given cache dir is being used now.
+     *
+     * @param cacheDir cache dir of application
+     * @throws IOException if time of use cannot be recorded
+     */
+    public static void markUsed(File cacheDir) throws IOException {
+        File lastUsed = new File(cacheDir, LAST_USED_FILE);
+        if (!lastUsed.exists() && !lastUsed.createNewFile()) {
+            throw new IOException("Cannot create " + lastUsed.getAbsolutePath());
+        }
+        lastUsed.setLastModified(System.currentTimeMillis());
+    }
+
+    /**
+     * Removes files and dirs from application's cache dir that are not expected there, along with dirs that
+     * are left empty.
+     *
+     * @param cacheDir cache dir of application
+     * @param expectedFiles files and dirs that are to stay
+     */
+    public void removeOldFiles(File cacheDir, Set<File> expectedFiles) {
+        // Dirs of expected files are kept, too, as files might be just about to be written to them
+        Set<File> keep = new HashSet<File>();
+        for (File file : expectedFiles) {
+            while (file != null && !file.equals(cacheDir) && keep.add(file)) {
+                file = file.getParentFile();
+            }
+        }
+        long before = System.currentTimeMillis() - PROTECTION_TIME;
+        File[] files = cacheDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                removeOldFiles(file, keep, before);
+            }
+        }
+    }
+
+    private boolean removeOldFiles(File file, Set<File> keep, long before) {
+        if (file.isDirectory()) {
+            boolean empty = true;
+            File[] files = file.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    if (!removeOldFiles(f, keep, before)) {
+                        empty = false;
+                    }
+                }
+            }
+            if (empty && !keep.contains(file) && file.delete()) {
+                deletedDirs = deletedDirs + 1;
+                return true;
+            }
+            return false;
+        }
+        if (keep.contains(file) || file.lastModified() > before) {
+            return false;
+        }
+        return deleteFile(file);
+    }
+
+    /**
+     * Brings cache within maximum size, if it has grown over it.
+     *
+     * @param currentCacheDir cache dir of application being launched; it is never evicted
+     */
+    public void collect(File currentCacheDir) {
+        long now = System.currentTimeMillis();
+        long before = now - PROTECTION_TIME;
+        size = 0;
+
+        List<File> blobs = new ArrayList<File>();
+        File[] blobDirs = blobsDir.listFiles();
+        if (blobDirs != null) {
+            for (File dir : blobDirs) {
+                File[] files = dir.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        if (file.getName().endsWith(".tmp")) {
+                            // Left behind by launcher that didn't finish storing content
+                            long length = file.length();
+                            if (file.lastModified() < before && file.delete()) {
+                                deletedFiles = deletedFiles + 1;
+                                reclaimedBytes = reclaimedBytes + length;
+                            }
+                        } else if (file.isFile()) {
+                            blobs.add(file);
+                            size = size + file.length();
+                        }
+                    }
+                }
+            }
+        }
+
+        List<Application> applications = new ArrayList<Application>();
+        File[] dirs = globalCacheDir.listFiles();
+        if (dirs != null) {
+            for (File dir : dirs) {
+                // Content shared between applications is in dirs starting with dot
+                if (dir.isDirectory() && !dir.getName().startsWith(".")) {
+                    File lastUsed = new File(dir, LAST_USED_FILE);
+                    Application application = new Application(dir, lastUsed.exists() ? lastUsed.lastModified() : dir.lastModified());
+                    applications.add(application);
+                    size = size + ownSize(dir);
+                }
+            }
+        }
+
+        if (size <= maxSize) {
+            return;
+        }
+
+        Collections.sort(blobs, new Comparator<File>() {
+            public int compare(File o1, File o2) {
+                long l1 = o1.lastModified();
+                long l2 = o2.lastModified();
+                return l1 < l2 ? -1 : (l1 > l2 ? 1 : 0);
+            }
+        });
+        removeUnlinkedBlobs(blobs);
+
+        Collections.sort(applications);
+        Iterator<Application> iterator = applications.iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Application application = iterator.next();
+            if (!application.dir.equals(currentCacheDir) && application.lastUsed < before) {
+                deleteTree(application.dir);
+                evictedApplications = evictedApplications + 1;
+                removeUnlinkedBlobs(blobs);
+            }
+        }
+    }
+
+    private void removeUnlinkedBlobs(List<File> blobs) {
+        Iterator<File> iterator = blobs.iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            File blob = iterator.next();
+            if (linkCount(blob) <= 1) {
+                if (deleteFile(blob)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private long ownSize(File file) {
+        if (file.isDirectory()) {
+            long s = 0;
+            File[] files = file.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    s = s + ownSize(f);
+                }
+            }
+            return s;
+        }
+        if (linkCount(file) <= 1) {
+            return file.length();
+        }
+        return 0;
+    }
+
+    private void deleteTree(File file) {
+        if (file.isDirectory()) {
+            File[] files = file.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    deleteTree(f);
+                }
+            }
+            if (file.delete()) {
+                deletedDirs = deletedDirs + 1;
+            }
+        } else {
+            deleteFile(file);
+        }
+    }
+
+    private boolean deleteFile(File file) {
+        long length = file.length();
+        boolean last = linkCount(file) <= 1;
+        if (!file.delete()) {
+            return false;
+        }
+        deletedFiles = deletedFiles + 1;
+        if (last) {
+            size = size - length;
+            reclaimedBytes = reclaimedBytes + length;
+        }
+        return true;
+    }
+
+    private static int linkCount(File file) {
+        try {
+            Object count = Files.getAttribute(file.toPath(), "unix:nlink");
+            if (count instanceof Integer) {
+                return (Integer)count;
+            }
+        } catch (UnsupportedOperationException ignore) {
+        } catch (IllegalArgumentException ignore) {
+        } catch (IOException ignore) {
+        }
+        return 1;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public long getReclaimedBytes() {
+        return reclaimedBytes;
+    }
+
+    public int getDeletedFiles() {
+        return deletedFiles;
+    }
+
+    public int getDeletedDirs() {
+        return deletedDirs;
+    }
+
+    public int getEvictedApplications() {
+        return evictedApplications;
+    }
+
+    private static class Application implements Comparable<Application> {
+        private File dir;
+        private long lastUsed;
+
+        private Application(File dir, long lastUsed) {
+            this.dir = dir;
+            this.lastUsed = lastUsed;
+        }
+
+        public int compareTo(Application o) {
+            return lastUsed < o.lastUsed ? -1 : (lastUsed > o.lastUsed ? 1 : 0);
+        }
+    }
+}
@@ -18,43 +18,81 @@
  */
 package org.ah.java.remotevmlauncher.launcher;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.FilterOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.Socket;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
-import org.ah.java.remotevmlauncher.AppClassLoader;
+import org.ah.java.remotevmlauncher.ChannelStreams;
 import org.ah.java.remotevmlauncher.ClassLoaderType;
+import org.ah.java.remotevmlauncher.DigestUtils;
 import org.ah.java.remotevmlauncher.JavaLoggingUtils;
+import org.ah.java.remotevmlauncher.XXHash64;
+import org.ah.java.remotevmlauncher.delta.BlockSignatures;
+import org.ah.java.remotevmlauncher.delta.DeltaDecoder;
+import org.ah.java.remotevmlauncher.protocol.ApplicationFinishedProcessor;
+import org.ah.java.remotevmlauncher.protocol.ArchiveProcessor;
+import org.ah.java.remotevmlauncher.protocol.ArchiveRequestProcessor;
 import org.ah.java.remotevmlauncher.protocol.ArgumentsProcessor;
 import org.ah.java.remotevmlauncher.protocol.CacheResponseProcessor;
 import org.ah.java.remotevmlauncher.protocol.CacheResponseProcessor.ResourceResponse;
+import org.ah.java.remotevmlauncher.protocol.DataProcessor;
+import org.ah.java.remotevmlauncher.protocol.DeltaProcessor;
+import org.ah.java.remotevmlauncher.protocol.DeltaRequestProcessor;
 import org.ah.java.remotevmlauncher.protocol.LocalClasspathProcessor;
 import org.ah.java.remotevmlauncher.protocol.MainClassProcessor;
 import org.ah.java.remotevmlauncher.protocol.ProtocolStateMachine;
 import org.ah.java.remotevmlauncher.protocol.ReadyProcessor;
 import org.ah.java.remotevmlauncher.protocol.RemoteClasspathProcessor;
+import org.ah.java.remotevmlauncher.protocol.ResourceListRequestProcessor;
 import org.ah.java.remotevmlauncher.protocol.ResourceProcessor;
-import org.ah.java.remotevmlauncher.protocol.ResourceRequestProcessor;
 import org.ah.java.remotevmlauncher.protocol.StartApplicationProcessor;
+import org.ah.java.remotevmlauncher.protocol.TransferTarget;
+import org.ah.java.remotevmlauncher.protocol.codec.ResourceCodec;
+import org.ah.java.remotevmlauncher.protocol.codec.ResourceCodecs;
 
 /**
  * The Launcher.
@@ -67,12 +105,36 @@ import org.ah.java.remotevmlauncher.protocol.StartApplicationProcessor;
  */
 public class Launcher {
 
+    /**
+     * Line launcher started with '-wait' prints once it is ready to be given the rest of its arguments
+     * on its standard input.
+     */
+    public static final String WAITING_FOR_ARGUMENTS = "Launcher waiting for arguments";
+
     private static final String UNDEFINED = "---";
+    // Number of resources recorded in load order that are requested at once while prefetching
+    private static final int PREFETCH_BATCH_SIZE = 64;
+    // Smaller stale resources are fetched whole - signatures would be as big as savings
+    private static final long DELTA_MIN_SIZE = 65536;
+    // Stale resources of a directory classpath entry are fetched as one archive if there are at least this many
+    private static final int ARCHIVE_MIN_RESOURCES = 2;
+    // Largest resource that can be kept in memory - largest array VM can allocate
+    private static final long MAX_MEMORY_RESOURCE_SIZE = Integer.MAX_VALUE - 8;
     public static Logger LOGGER = Logger.getLogger("");
 
     private int port;
     private int debugLevel = 0;
+    private boolean delta = true;
+    private boolean archive = true;
+    // Client understands opcodes
+    private boolean opcodes = false;
+    // Application is started again each time client asks for it
+    private boolean watch = false;
+    // Launcher runs inside of another VM which doesn't exit when application finishes
+    private boolean inProcess = false;
+    private volatile boolean closed = false;
 
+    private SocketChannel socketChannel;
     private Socket socket;
     private InputStream inputStream;
     private DataInputStream dataInputStream;
@@ -89,26 +151,68 @@ public class Launcher {
     private CacheResponseProcessor cacheResponseProcessor;
     private ResourceProcessor resourceProcessor;
     private ReadyProcessor readyProcessor;
-    private ResourceRequestProcessor resourceRequestProcessor;
+    private ResourceListRequestProcessor resourceListRequestProcessor;
+    private DeltaRequestProcessor deltaRequestProcessor;
+    private DeltaProcessor deltaProcessor;
+    private ArchiveRequestProcessor archiveRequestProcessor;
+    private ArchiveProcessor archiveProcessor;
+    private DataProcessor dataProcessor;
+    private ApplicationFinishedProcessor applicationFinishedProcessor;
 
     private Thread clientResponseProcessorThread;
     private Thread appThread;
     private Class<?> mainClass;
     private ClassLoader contextClassLoader;
+    // Class loader over cache created for last start of application
+    private URLClassLoader cacheClassLoader;
     private File globalCacheDir;
     private File cacheDir;
+    // Content of resources of all applications, by digest; files in cache dirs are links to it
+    private File blobsDir;
 
-    // TODO there must be better way of sorting this out.
-    private FileOutputStream sideEffectFileOutputStream;
+    // Resources requested from the client but not received yet - in order of requests
+    private LinkedList<PendingResource> pendingResources = new LinkedList<PendingResource>();
+    // Why nothing more is going to be received from the client; guarded by pendingResources
+    private IOException receiveFailure;
 
     // RemotePath -> LocalId(LocalPath)
     private Map<String, String> localPathTranslation = new LinkedHashMap<String, String>();
 
+    // LocalPath/ResourceName -> digest of content as it was received, along with local paths of classpath entries
+    private CacheIndex cacheIndex;
+
+    // ResourceName -> stale resource of directory classpath entry that is fetched only when class loader asks for it
+    private Map<String, PendingResource> lazyResources = new ConcurrentHashMap<String, PendingResource>();
+    private boolean saveLoadOrderOnExit = false;
+    // Names of resources of directory classpath entries
+    private Set<String> directoryResourceNames = new HashSet<String>();
+    // Resources of directory classpath entries in order application asked for them
+    private List<String> loadOrder = new ArrayList<String>();
+    private Set<String> loadOrderNames = new HashSet<String>();
+    private Thread prefetchThread;
+
+    // Content of client's resources when they are not cached on the disk
+    private MemoryResourceStore memoryStore;
+    private long memoryStoreSize = MemoryResourceStore.DEFAULT_MAX_SIZE;
+    // PathId/ResourceName -> resource of directory classpath entry
+    private Map<String, ResourceResponse> memoryResources = new HashMap<String, ResourceResponse>();
+    // PathId -> jar classpath entry
+    private Map<String, ResourceResponse> memoryJars = new HashMap<String, ResourceResponse>();
+    // PathId#Digest -> names of entries of jar, once jar was fetched
+    private Map<String, Set<String>> jarEntries = new ConcurrentHashMap<String, Set<String>>();
+
+    // Maximum number of bytes cache of all applications is allowed to take
+    private long cacheSize = CacheManager.DEFAULT_MAX_SIZE;
+    private Thread cacheCollectionThread;
+
     private boolean applicationStarted = false;
 
     private Logger logger = Logger.getLogger("< Launcher: ");
 
-    private Statistics statistics = new Statistics();
+    // Replaced on each start (watch mode) while prefetch and class loading threads of previous one might update it
+    private volatile Statistics statistics = new Statistics();
+    // Data received before application was started last time
+    private long receivedBefore = 0;
 
     public Launcher() {
     }
@@ -129,48 +233,133 @@ public class Launcher {
         this.debugLevel = debugLevel;
     }
 
+    public boolean isDelta() {
+        return delta;
+    }
+
+    public void setDelta(boolean delta) {
+        this.delta = delta;
+    }
+
+    public ClassLoaderType getClassLoaderType() {
+        return classLoaderType;
+    }
+
+    public void setClassLoaderType(ClassLoaderType classLoaderType) {
+        this.classLoaderType = classLoaderType;
+    }
+
+    public long getMemoryStoreSize() {
+        return memoryStoreSize;
+    }
+
+    /**
+     * @param memoryStoreSize maximum number of bytes of client's resources kept in memory with {@link ClassLoaderType#REMOTE_RESOURCES}
+     */
+    public void setMemoryStoreSize(long memoryStoreSize) {
+        this.memoryStoreSize = memoryStoreSize;
+    }
+
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * @param cacheSize maximum number of bytes cache of all applications on this machine is allowed to take
+     */
+    public void setCacheSize(long cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    public boolean isArchive() {
+        return archive;
+    }
+
+    public void setArchive(boolean archive) {
+        this.archive = archive;
+    }
+
+    public boolean isWatch() {
+        return watch;
+    }
+
+    public void setWatch(boolean watch) {
+        this.watch = watch;
+    }
+
+    public boolean isInProcess() {
+        return inProcess;
+    }
+
+    /**
+     * @param inProcess if true launcher doesn't set up logging or exit VM, as VM is not its own, and
+     *                  {@link #close()} is to be invoked once application finishes
+     */
+    public void setInProcess(boolean inProcess) {
+        this.inProcess = inProcess;
+    }
+
+    public boolean isOpcodes() {
+        return opcodes;
+    }
+
+    public void setOpcodes(boolean opcodes) {
+        this.opcodes = opcodes;
+    }
+
     public void setup() throws IOException {
-        socket = new Socket("127.0.0.1", port);
+        socketChannel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+        socket = socketChannel.socket();
 
-        inputStream = socket.getInputStream();
+        // Not buffered so resource content can be taken straight from the channel
+        inputStream = ChannelStreams.newInputStream(socketChannel);
         dataInputStream = new DataInputStream(inputStream);
 
-        outputStream = socket.getOutputStream();
+        outputStream = ChannelStreams.newOutputStream(socketChannel);
         dataOutputStream = new DataOutputStream(outputStream);
 
         if (debugLevel > 0) {
-            JavaLoggingUtils.setupSimpleConsoleLogging(debugLevel);
+            if (!inProcess) {
+                JavaLoggingUtils.setupSimpleConsoleLogging(debugLevel);
+            }
 
             stateMachine = new ProtocolStateMachine(logger);
         } else {
             stateMachine = new ProtocolStateMachine();
         }
+        stateMachine.setChannel(socketChannel);
 
-        resourceRequestProcessor = new ResourceRequestProcessor();
+        resourceListRequestProcessor = new ResourceListRequestProcessor();
+        deltaRequestProcessor = new DeltaRequestProcessor();
+        archiveRequestProcessor = new ArchiveRequestProcessor();
         readyProcessor = new ReadyProcessor();
+        readyProcessor.getCodecs().addAll(ResourceCodecs.getCodecNames());
+        readyProcessor.setOpcodes(true);
+        readyProcessor.setSendOpcode(opcodes);
+        resourceListRequestProcessor.setSendOpcode(opcodes);
+        deltaRequestProcessor.setSendOpcode(opcodes);
+        archiveRequestProcessor.setSendOpcode(opcodes);
+        applicationFinishedProcessor = new ApplicationFinishedProcessor();
+        applicationFinishedProcessor.setSendOpcode(opcodes);
         cacheResponseProcessor = new CacheResponseProcessor();
         mainClassProcessor = new  MainClassProcessor();
         argumentsProcessor = new ArgumentsProcessor();
         remoteClasspathProcessor = new RemoteClasspathProcessor();
         localClasspathProcessor = new LocalClasspathProcessor();
-        resourceProcessor = new ResourceProcessor() {
-            @Override public void loadResource(DataInputStream dis, int size) throws IOException {
-                byte[] buffer = new byte[10240];
-                while (size > 0) {
-                    int s = size;
-                    if (size > buffer.length) { s = buffer.length; }
-                    int r = dis.read(buffer, 0, s);
-                    if (r > 0) {
-                        size = size - r;
-                    } else {
-                        // TODO add more to this error!!!
-                        throw new RuntimeException("Premature end of file ");
-                    }
-                    sideEffectFileOutputStream.write(buffer, 0, r);
-                }
-                synchronized (sideEffectFileOutputStream) {
-                    sideEffectFileOutputStream.notifyAll();
-                }
+        dataProcessor = new DataProcessor();
+        resourceProcessor = new ResourceProcessor(dataProcessor) {
+            @Override public OutputStream loadResource(long size, ResourceCodec codec) throws IOException {
+                return receiveResource(nextPendingResource(false), size);
+            }
+        };
+        deltaProcessor = new DeltaProcessor(dataProcessor) {
+            @Override public OutputStream loadDelta(long size, int blockSize) throws IOException {
+                return receiveDelta(nextPendingResource(true), size, blockSize);
+            }
+        };
+        archiveProcessor = new ArchiveProcessor(dataProcessor) {
+            @Override public OutputStream loadEntry(int index, long size) throws IOException {
+                return receiveResource(nextPendingResource(false), size);
             }
         };
 
@@ -183,8 +372,6 @@ public class Launcher {
             }
         };
 
-        globalCacheDir = gloabalCacheDir();
-
         stateMachine.getProcessorMap().put(CacheResponseProcessor.ID, cacheResponseProcessor);
         stateMachine.getProcessorMap().put(StartApplicationProcessor.ID, startProcessor);
         stateMachine.getProcessorMap().put(MainClassProcessor.ID, mainClassProcessor);
@@ -192,6 +379,9 @@ public class Launcher {
         stateMachine.getProcessorMap().put(RemoteClasspathProcessor.ID, remoteClasspathProcessor);
         stateMachine.getProcessorMap().put(LocalClasspathProcessor.ID, localClasspathProcessor);
         stateMachine.getProcessorMap().put(ResourceProcessor.ID, resourceProcessor);
+        stateMachine.getProcessorMap().put(DeltaProcessor.ID, deltaProcessor);
+        stateMachine.getProcessorMap().put(ArchiveProcessor.ID, archiveProcessor);
+        stateMachine.getProcessorMap().put(DataProcessor.ID, dataProcessor);
 
         clientResponseProcessorThread = new Thread(new Runnable() { public void run() { processStarterLoop(); }});
         clientResponseProcessorThread.setDaemon(true);
@@ -213,6 +403,9 @@ public class Launcher {
     }
 
     private File cacheDir() {
+        if (globalCacheDir == null) {
+            globalCacheDir = gloabalCacheDir();
+        }
         File dir = new File(globalCacheDir, mainClassProcessor.getMainClass());
         if (dir.exists() && dir.isFile()) {
             if (!dir.delete()) {
@@ -229,18 +422,50 @@ public class Launcher {
 
     public void start() {
         clientResponseProcessorThread.start();
-        synchronized (startProcessor) {
-            try {
-                startProcessor.wait();
-            } catch (InterruptedException ignore) { }
-        }
-        prepareForStartApplication();
-        synchronized (this) {
-            try {
-                while (!applicationStarted) {
-                    wait();
+        do {
+            synchronized (startProcessor) {
+                try {
+                    while (!startProcessor.isStart()) {
+                        startProcessor.wait();
+                    }
+                } catch (InterruptedException ignore) { }
+                startProcessor.reset();
+            }
+            appThread = null;
+            prepareForStartApplication();
+            if (appThread != null) {
+                synchronized (this) {
+                    try {
+                        while (!applicationStarted) {
+                            wait();
+                        }
+                    } catch (InterruptedException ignore) { }
                 }
-            } catch (InterruptedException ignore) { }
+            }
+            if (watch) {
+                waitForApplication();
+            }
+        } while (watch);
+    }
+
+    /**
+     * Waits for application to finish and lets client know, so it can start it again once resources change.
+     */
+    private void waitForApplication() {
+        try {
+            if (appThread != null) {
+                appThread.join();
+            }
+            System.out.flush();
+            System.err.flush();
+            synchronized (this) {
+                applicationStarted = false;
+            }
+            applicationFinishedProcessor.send(dataOutputStream);
+        } catch (InterruptedException ignore) {
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
         }
     }
 
@@ -253,12 +478,40 @@ public class Launcher {
             }
 //        } catch (EOFException e) {
         } catch (Throwable e) {
+            // Threads waiting for resources would otherwise wait forever
+            failPendingResources(e);
+            if (closed || (inProcess && e instanceof EOFException)) {
+                // Client has gone, as it does once application in another VM finishes
+                return;
+            }
             e.printStackTrace();
-            System.exit(1);
+            if (!inProcess) {
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * Releases what launcher run inside of another VM holds once application has finished, as VM exiting
+     * would do otherwise.
+     */
+    public void close() throws IOException {
+        closed = true;
+        if (saveLoadOrderOnExit) {
+            saveLoadOrder();
+        }
+        if (cacheIndex != null) {
+            cacheIndex.close();
+        }
+        if (cacheClassLoader != null) {
+            cacheClassLoader.close();
         }
+        socketChannel.close();
     }
 
     public void prepareForStartApplication() {
+        statistics = new Statistics();
+        receivedBefore = dataProcessor.getReceived();
         try {
             if (debugLevel > 1) {
                 LOGGER.info("Ready to start application");
@@ -268,55 +521,167 @@ public class Launcher {
             }
 
             if (classLoaderType == ClassLoaderType.CACHED_RESOURCES) {
-                cacheResources();
+                cacheResources(false);
             } else if (classLoaderType == ClassLoaderType.CACHE_REMOTE_RESOURCES) {
+                cacheResources(true);
             } else if (classLoaderType == ClassLoaderType.REMOTE_RESOURCES) {
-                AppClassLoader appClassLoader = new AppClassLoader(remoteClasspathProcessor.getRemoteClasspath());
-                contextClassLoader = appClassLoader;
+                createMemoryClassLoader();
             }
 
-            mainClass = contextClassLoader.loadClass(mainClassProcessor.getMainClass());
-
-            appThread = new Thread(new Runnable() { public void run() { startApplication(); }});
-            appThread.setName("StartedThread");
-            appThread.setDaemon(false);
-            appThread.setContextClassLoader(contextClassLoader);
-            appThread.start();
+            launchApplication();
         } catch (Throwable t) {
             t.printStackTrace();
 //            System.exit(1);
         }
     }
 
-    private void cacheResources() throws IOException {
+    /**
+     * Starts application in this VM once its class loader is ready. Launcher that only brings cache up to date,
+     * for application to be started in another VM, overrides it.
+     */
+    protected void launchApplication() throws Exception {
+        mainClass = contextClassLoader.loadClass(mainClassProcessor.getMainClass());
+
+        appThread = new Thread(new Runnable() { public void run() { startApplication(); }});
+        appThread.setName("StartedThread");
+        appThread.setDaemon(false);
+        appThread.setContextClassLoader(contextClassLoader);
+        appThread.start();
+    }
+
+    public String getMainClass() {
+        return mainClassProcessor.getMainClass();
+    }
+
+    public List<String> getArguments() {
+        return argumentsProcessor.getArguments();
+    }
+
+    /**
+     * @return local classpath of application cache was brought up to date for, or null if application's
+     *         classes are not loaded from cache
+     */
+    public URL[] getLocalClasspath() {
+        if (cacheClassLoader == null) {
+            return null;
+        }
+        return cacheClassLoader.getURLs();
+    }
+
+    /**
+     * Brings cache up to date with the client. If lazily, stale resources of directory classpath entries are
+     * left to be fetched by class loader when application asks for them.
+     */
+    private void cacheResources(boolean lazily) throws IOException {
         cacheDir = cacheDir();
-        loadLocalDirectoryTranslation();
+        blobsDir = new File(globalCacheDir, ".blobs");
+        CacheManager.markUsed(cacheDir);
+        openCacheIndex();
         removeOrphanClasspaths();
         defineLocalTranslations();
-        saveLocalDirectoryTranslation();
-        removeOldFiles();
-        updateExistingFiles();
-        createClassLoader();
+        cacheIndex.setTranslations(localPathTranslation);
+        updateExistingFiles(lazily);
+        if (lazily && !saveLoadOrderOnExit) {
+            // Order resources were loaded in while application runs
+            saveLoadOrderOnExit = true;
+            if (!inProcess) {
+                Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() { public void run() {
+                    saveLoadOrder();
+                }}));
+            }
+        }
+        createClassLoader(lazily);
+        if (lazily) {
+            startPrefetch();
+        }
+        startCacheCollection();
     }
 
-    @SuppressWarnings("resource")
-    private void loadLocalDirectoryTranslation() {
-        File pathTranslation = new File(cacheDir, ".dirs");
-        if (pathTranslation.exists()) {
+    /**
+     * Removes files application doesn't have any more from its cache dir and keeps cache of all applications
+     * within its size. Nothing of it is needed for application to start, so it is done alongside of it.
+     */
+    private synchronized void startCacheCollection() {
+        if (cacheCollectionThread != null && cacheCollectionThread.isAlive()) {
+            // Previous run in watch mode
+            return;
+        }
+        final Set<File> expectedFiles = expectedFiles();
+        final File currentCacheDir = cacheDir;
+        final Statistics currentStatistics = statistics;
+        final CacheManager cacheManager = new CacheManager(globalCacheDir, blobsDir, cacheSize);
+        cacheCollectionThread = new Thread(new Runnable() { public void run() {
+            cacheManager.removeOldFiles(currentCacheDir, expectedFiles);
+            cacheManager.collect(currentCacheDir);
+            currentStatistics.deletedFiles.set(cacheManager.getDeletedFiles());
+            currentStatistics.deletedDirs.set(cacheManager.getDeletedDirs());
+            if (debugLevel > 0) {
+                LOGGER.info(String.format("Cache collected: removed files/dirs (%s, %s), evicted applications %s, reclaimed bytes %s, cache/maximum bytes (%s/%s)", cacheManager.getDeletedFiles(), cacheManager.getDeletedDirs(), cacheManager.getEvictedApplications(), cacheManager.getReclaimedBytes(), cacheManager.getSize(), cacheManager.getMaxSize()));
+            }
+        }});
+        cacheCollectionThread.setName("CacheCollection");
+        cacheCollectionThread.setDaemon(true);
+        cacheCollectionThread.setPriority(Thread.MIN_PRIORITY);
+        cacheCollectionThread.start();
+    }
+
+    /**
+     * Starts fetching stale resources in order they were loaded in last time application ran, ahead of class
+     * loader asking for them. Resources are requested in batches, each batch with one request.
+     */
+    private synchronized void startPrefetch() {
+        final List<String> order;
+        if (loadOrder.isEmpty()) {
+            order = loadLoadOrder();
+        } else {
+            // Previous run in watch mode
+            order = loadOrder;
+        }
+        loadOrder = new ArrayList<String>();
+        loadOrderNames = new HashSet<String>();
+        final List<String> stale = new ArrayList<String>();
+        for (String name : order) {
+            if (lazyResources.containsKey(name)) {
+                stale.add(name);
+            }
+        }
+        if (debugLevel > 2) {
+            logger.fine("Prefetching " + stale.size() + " of " + order.size() + " resources application loaded last time");
+        }
+        if (stale.isEmpty()) {
+            return;
+        }
+        prefetchThread = new Thread(new Runnable() { public void run() {
+            try {
+                for (int i = 0; i < stale.size(); i = i + PREFETCH_BATCH_SIZE) {
+                    fetchLazily(stale.subList(i, Math.min(i + PREFETCH_BATCH_SIZE, stale.size())));
+                }
+            } catch (IOException e) {
+                logger.fine("Prefetching failed; " + e.getMessage());
+            }
+        }});
+        prefetchThread.setName("Prefetch");
+        prefetchThread.setDaemon(true);
+        prefetchThread.start();
+    }
+
+    private synchronized void recordLoad(String resourceName) {
+        if (directoryResourceNames.contains(resourceName) && loadOrderNames.add(resourceName)) {
+            loadOrder.add(resourceName);
+        }
+    }
+
+    private List<String> loadLoadOrder() {
+        List<String> order = new ArrayList<String>();
+        File loadOrderFile = new File(cacheDir, ".load-order");
+        if (loadOrderFile.exists()) {
             try {
-                FileReader reader = new FileReader(pathTranslation);
+                BufferedReader reader = new BufferedReader(new FileReader(loadOrderFile));
                 try {
-                    BufferedReader lineReader = new BufferedReader(reader);
-                    String line = lineReader.readLine();
+                    String line = reader.readLine();
                     while (line != null) {
-                        int i = line.indexOf(',');
-                        if (i < 0) {
-                            throw new RuntimeException("Bad local directory translation file. Line: " + line);
-                        }
-                        String localId = line.substring(0, i);
-                        String remotePath = line.substring(i + 1);
-                        localPathTranslation.put(remotePath, localId);
-                        line = lineReader.readLine();
+                        order.add(line);
+                        line = reader.readLine();
                     }
                 } finally {
                     reader.close();
@@ -325,26 +690,39 @@ public class Launcher {
                 throw new RuntimeException(e);
             }
         }
+        return order;
     }
 
-    private void saveLocalDirectoryTranslation() {
-        File pathTranslation = new File(cacheDir, ".dirs");
+    private synchronized void saveLoadOrder() {
+        if (loadOrder.isEmpty()) {
+            return;
+        }
+        File loadOrderFile = new File(cacheDir, ".load-order");
         try {
-            FileWriter writer = new FileWriter(pathTranslation);
+            PrintWriter out = new PrintWriter(new FileWriter(loadOrderFile));
             try {
-                PrintWriter out = new PrintWriter(writer);
-                for (Map.Entry<String, String> entry : localPathTranslation.entrySet()) {
-                    out.println(entry.getValue() + "," + entry.getKey());
+                for (String name : loadOrder) {
+                    out.println(name);
                 }
-                out.close();
             } finally {
-                writer.close();
+                out.close();
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private void openCacheIndex() throws IOException {
+        if (cacheIndex == null) {
+            cacheIndex = new CacheIndex(new File(cacheDir, CacheIndex.INDEX_FILE));
+            cacheIndex.open();
+            if (debugLevel > 0 && !cacheIndex.isLocked()) {
+                LOGGER.info("Cache index is used by other launcher; changes of this one are not kept");
+            }
+        }
+        localPathTranslation = cacheIndex.getTranslations();
+    }
+
     private void removeOrphanClasspaths() {
         // First remove all that we didn't get this time
         Set<String> allRecordedRemotePaths = new HashSet<String>(localPathTranslation.keySet());
@@ -398,7 +776,7 @@ public class Launcher {
         localPathTranslation.put(remotePath, translation);
     }
 
-    private void createClassLoader() {
+    private void createClassLoader(boolean lazily) {
         URL[] urls = new URL[remoteClasspathProcessor.getRemoteClasspath().size() + localClasspathProcessor.getLocalClasspath().size()];
         int i = 0;
         for (String remoteClasspath : remoteClasspathProcessor.getRemoteClasspath()) {
@@ -423,94 +801,692 @@ public class Launcher {
             }
             i++;
         }
-        contextClassLoader = new URLClassLoader(urls);
+        if (cacheClassLoader != null) {
+            // Previous run in watch mode; let go of cached jars
+            try {
+                cacheClassLoader.close();
+            } catch (IOException ignore) { }
+        }
+        if (lazily) {
+            cacheClassLoader = new LazyCacheClassLoader(urls) {
+                @Override protected void cache(String resourceName) throws IOException {
+                    recordLoad(resourceName);
+                    fetchLazily(Collections.singletonList(resourceName));
+                }
+            };
+        } else {
+            cacheClassLoader = new URLClassLoader(urls);
+        }
+        contextClassLoader = cacheClassLoader;
     }
 
-    private void removeOldFiles() {
-        // TODO this does not remove old directories or orphaned, empty directories. Fix it!
-        Set<File> existingFiles = new HashSet<File>();
-        collectFiles(existingFiles);
+    /**
+     * Creates class loader that takes client's resources from {@link MemoryResourceStore} and fetches
+     * them into it when they are not there. Nothing is written to the disk.
+     */
+    private void createMemoryClassLoader() throws IOException {
+        if (memoryStore == null) {
+            memoryStore = new MemoryResourceStore(memoryStoreSize);
+        }
+        statistics.totalResorces.set(cacheResponseProcessor.getResources().size());
+        memoryResources.clear();
+        memoryJars.clear();
         for (ResourceResponse r : cacheResponseProcessor.getResources()) {
-            String remotePathId = r.pathId;
-            String remotePath = localClasspathProcessor.getLocalClasspath().get(remotePathId);
-            String localPath = localPathTranslation.get(remotePath);
-            File localFile = new File(localPath);
-            File file = new File(localFile, r.name);
-            existingFiles.remove(file);
+            if ("".equals(r.name)) {
+                memoryJars.put(r.pathId, r);
+            } else {
+                memoryResources.put(r.pathId + "/" + r.name, r);
+            }
+        }
+        contextClassLoader = new MemoryClassLoader(remoteClasspathProcessor.getRemoteClasspath()) {
+            @Override protected List<String> locate(String resourceName, boolean all) throws IOException {
+                return locateInMemory(resourceName, all);
+            }
+
+            @Override protected ByteBuffer load(String key) throws IOException {
+                return loadToMemory(key);
+            }
+        };
+    }
+
+    /**
+     * Finds resource in client's classpath entries, in classpath order, stopping at the first one unless all are asked for. Jars are fetched (and their
+     * entries stored in memory) when search reaches them for the first time.
+     *
+     * @return keys - 'pathId/name' for resources of directories and 'pathId!/name' for entries of jars
+     */
+    private List<String> locateInMemory(String resourceName, boolean all) throws IOException {
+        List<String> keys = new ArrayList<String>();
+        for (String pathId : localClasspathProcessor.getLocalClasspath().keySet()) {
+            if (!all && keys.size() > 0) {
+                break;
+            }
+            ResourceResponse jar = memoryJars.get(pathId);
+            if (jar != null) {
+                Set<String> entries = jarEntries.get(pathId + "#" + DigestUtils.toHex(jar.digest));
+                if (entries == null) {
+                    loadJarToMemory(jar, null);
+                    entries = jarEntries.get(pathId + "#" + DigestUtils.toHex(jar.digest));
+                }
+                if (entries.contains(resourceName)) {
+                    keys.add(pathId + "!/" + resourceName);
+                }
+            } else if (memoryResources.containsKey(pathId + "/" + resourceName)) {
+                keys.add(pathId + "/" + resourceName);
+            }
         }
+        return keys;
     }
 
-    private void collectFiles(Set<File> existingFiles) {
-        for (String path : localPathTranslation.values()) {
-            File file = new File(path);
-            collectFiles(existingFiles, file);
+    private ByteBuffer loadToMemory(String key) throws IOException {
+        int i = key.indexOf("!/");
+        if (i >= 0) {
+            ResourceResponse jar = memoryJars.get(key.substring(0, i));
+            ByteBuffer buffer = memoryStore.get(key + "#" + DigestUtils.toHex(jar.digest));
+            if (buffer == null) {
+                buffer = loadJarToMemory(jar, key.substring(i + 2));
+            }
+            return buffer;
         }
+        ResourceResponse r = memoryResources.get(key);
+        // Digest is part of the key so content of changed resources (watch mode) is never used
+        String storeKey = key + "#" + DigestUtils.toHex(r.digest);
+        ByteBuffer buffer = memoryStore.get(storeKey);
+        if (buffer == null) {
+            byte[] content = fetchToMemory(r);
+            buffer = memoryStore.put(storeKey, content, 0, content.length);
+        }
+        return buffer;
     }
 
-    private void collectFiles(Set<File> existingFiles, File file) {
-        if (file.isDirectory()) {
-            for (File f : file.listFiles()) {
-                collectFiles(existingFiles, f);
+    /**
+     * Fetches jar and stores all its entries in memory.
+     *
+     * @param jar jar classpath entry
+     * @param entryName name of entry to be returned or null
+     * @return content of named entry or null
+     */
+    private ByteBuffer loadJarToMemory(ResourceResponse jar, String entryName) throws IOException {
+        synchronized (jar) {
+            String suffix = "#" + DigestUtils.toHex(jar.digest);
+            if (entryName != null) {
+                ByteBuffer buffer = memoryStore.get(jar.pathId + "!/" + entryName + suffix);
+                if (buffer != null) {
+                    return buffer;
+                }
+            } else if (jarEntries.containsKey(jar.pathId + suffix)) {
+                return null;
             }
-        } else {
-            existingFiles.add(file);
+            ByteBuffer result = null;
+            Set<String> entries = new HashSet<String>();
+            ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(fetchToMemory(jar)));
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            ZipEntry entry = zis.getNextEntry();
+            while (entry != null) {
+                if (!entry.isDirectory()) {
+                    content.reset();
+                    int r = zis.read(buffer);
+                    while (r >= 0) {
+                        content.write(buffer, 0, r);
+                        r = zis.read(buffer);
+                    }
+                    ByteBuffer stored = memoryStore.put(jar.pathId + "!/" + entry.getName() + suffix, content.toByteArray(), 0, content.size());
+                    if (entry.getName().equals(entryName)) {
+                        result = stored;
+                    }
+                    entries.add(entry.getName());
+                }
+                entry = zis.getNextEntry();
+            }
+            jarEntries.put(jar.pathId + suffix, entries);
+            if (entryName != null && result == null) {
+                throw new IOException("Jar " + localClasspathProcessor.getLocalClasspath().get(jar.pathId) + " has no " + entryName + " entry");
+            }
+            return result;
+        }
+    }
+
+    private byte[] fetchToMemory(ResourceResponse r) throws IOException {
+        if (r.length > MAX_MEMORY_RESOURCE_SIZE) {
+            throw tooBigForMemory(r.pathId, r.name, r.length);
+        }
+        PendingResource pending = new PendingResource(null, r.pathId, r.name, r.lastModified);
+        fetchResources(Collections.singletonList(pending), false);
+        if (pending.failed) {
+            throw tooBigForMemory(r.pathId, r.name, pending.length);
+        }
+        if (pending.content == null) {
+            throw new IOException("Resource " + localClasspathProcessor.getLocalClasspath().get(r.pathId) + ":" + r.name + " doesn't exist any more");
+        }
+        statistics.updatedResources.incrementAndGet();
+        if (debugLevel > 2) {
+            logger.fine("Fetched " + r.pathId + ":" + r.name + " to memory; store has " + memoryStore.getSize() + " bytes, evicted " + memoryStore.getEvicted() + " resources so far");
+        }
+        return pending.content;
+    }
+
+    private IOException tooBigForMemory(String pathId, String name, long size) {
+        return new IOException("Resource " + localClasspathProcessor.getLocalClasspath().get(pathId) + ":" + name + " of " + size
+                + " bytes is too big to be kept in memory; use class loader type other than " + ClassLoaderType.REMOTE_RESOURCES);
+    }
+
+    /**
+     * @return files and dirs that belong to application's cache dir, whether they are there yet or not
+     */
+    private Set<File> expectedFiles() {
+        Set<File> expectedFiles = new HashSet<File>();
+        expectedFiles.add(new File(cacheDir, CacheIndex.INDEX_FILE));
+        expectedFiles.add(new File(cacheDir, ".load-order"));
+        expectedFiles.add(new File(cacheDir, CacheManager.LAST_USED_FILE));
+        for (String localPath : localPathTranslation.values()) {
+            expectedFiles.add(new File(cacheDir, localPath));
         }
+        for (ResourceResponse r : cacheResponseProcessor.getResources()) {
+            String remotePathId = r.pathId;
+            String remotePath = localClasspathProcessor.getLocalClasspath().get(remotePathId);
+            String localPath = localPathTranslation.get(remotePath);
+            File localFile = new File(cacheDir, localPath);
+            expectedFiles.add(new File(localFile, r.name));
+        }
+        return expectedFiles;
     }
 
-    private void updateExistingFiles() throws IOException {
-        statistics.totalResorces = cacheResponseProcessor.getResources().size();
+    private void updateExistingFiles(boolean lazily) throws IOException {
+        statistics.totalResorces.set(cacheResponseProcessor.getResources().size());
+        List<PendingResource> stale = new ArrayList<PendingResource>();
+        Set<String> currentKeys = new HashSet<String>();
+        lazyResources.clear();
+        synchronized (this) {
+            directoryResourceNames.clear();
+        }
+        // Names of resources seen so far; resources are listed in classpath order and first one wins
+        Set<String> names = new HashSet<String>();
         for (ResourceResponse r : cacheResponseProcessor.getResources()) {
+            boolean first = names.add(r.name);
+            if (lazily && first && !"".equals(r.name)) {
+                synchronized (this) {
+                    directoryResourceNames.add(r.name);
+                }
+            }
             String remotePathId = r.pathId;
             String remotePath = localClasspathProcessor.getLocalClasspath().get(remotePathId);
             String localPath = localPathTranslation.get(remotePath);
             File localFile = new File(cacheDir, localPath);
             File file = new File(localFile, r.name);
-            // Small hack to reduce precision to 1s as windows doesn't go to millis
-            long ourHash = (file.lastModified() / 1000) * 1000;
-            long theirHash = (r.hash / 1000) * 1000;
-            if (!file.exists() || file.length() != r.length || ourHash != theirHash) {
-                logger.fine("Updating resource " + file.toString() + ", len(" + file.length() + "/" + r.length + ") hash(" + file.lastModified() + "/" + r.hash + ")");
-                fetchResource(file, remotePathId, r.name, r.length, r.hash);
-                statistics.updatedResources = statistics.updatedResources + 1;
+            String key = "".equals(r.name) ? localPath : localPath + "/" + r.name;
+            // Content is compared by digest recorded in index when it was received; cache dir
+            // is not looked at for resources that haven't changed on the client.
+            CacheIndex.Entry cached = cacheIndex.get(key);
+            if (cached == null || cached.getDigest() != r.digest || cached.getLength() != r.length) {
                 if (debugLevel > 2) {
-                    logger.fine("Updated resource " + file.toString());
+                    logger.fine("Updating resource " + file.toString() + ", len(" + (cached != null ? cached.getLength() : "-") + "/" + r.length + ") digest(" + (cached != null ? DigestUtils.toHex(cached.getDigest()) : "-") + "/" + DigestUtils.toHex(r.digest) + ")");
+                }
+                PendingResource pending = new PendingResource(file, remotePathId, r.name, r.lastModified);
+                pending.key = key;
+                pending.digest = r.digest;
+                pending.length = r.length;
+                if (linkFromBlob(pending)) {
+                    cacheIndex.put(key, r.digest, r.length, r.lastModified);
+                    currentKeys.add(key);
+                    statistics.linkedResources.incrementAndGet();
+                } else if (!lazily || "".equals(r.name)) {
+                    stale.add(pending);
+                } else if (first) {
+                    // Class loader sees directory only if it exists when class loader is created
+                    if (!localFile.exists() && !localFile.mkdirs()) {
+                        throw new IOException("Cannot create dir " + localFile.getAbsolutePath());
+                    }
+                    lazyResources.put(r.name, pending);
                 }
+            } else {
+                currentKeys.add(key);
             }
         }
+        // Entries of resources that are not on classpath any more, or are stale, are dropped here
+        cacheIndex.retain(currentKeys);
+        if (stale.size() > 0) {
+            fetchResources(stale, delta);
+            for (PendingResource pending : stale) {
+                storeBlob(pending);
+                cacheIndex.put(pending.key, pending.digest, pending.length, pending.lastModified);
+            }
+            statistics.updatedResources.addAndGet(stale.size());
+            if (debugLevel > 2) {
+                logger.fine("Updated " + stale.size() + " resources");
+            }
+        }
+        if (debugLevel > 2 && lazily) {
+            logger.fine("Left " + lazyResources.size() + " stale resources to be fetched when needed");
+        }
     }
 
-    private void fetchResource(File file, String remotePathId, String name, long length, long lastModified) throws IOException {
-        File dir = file.getParentFile();
-        if (!dir.exists()) {
-            if (!dir.mkdirs()) {
+    private File blobFile(long digest, long length) {
+        String hex = DigestUtils.toHex(digest);
+        return new File(new File(blobsDir, hex.substring(0, 2)), hex + "-" + length);
+    }
+
+    /**
+     * Replaces file of the resource with link to content some application already received, if there is such.
+     * Content is copied if file system doesn't support links.
+     *
+     * @param pending stale resource
+     * @return true if resource is now up to date
+     */
+    private boolean linkFromBlob(PendingResource pending) {
+        File blob = blobFile(pending.digest, pending.length);
+        if (!blob.isFile()) {
+            return false;
+        }
+        try {
+            File dir = pending.file.getParentFile();
+            if (!dir.exists() && !dir.mkdirs()) {
                 throw new IOException("Cannot create dir " + dir.getAbsolutePath());
             }
+            Files.deleteIfExists(pending.file.toPath());
+            try {
+                Files.createLink(pending.file.toPath(), blob.toPath());
+            } catch (UnsupportedOperationException e) {
+                Files.copy(blob.toPath(), pending.file.toPath());
+            } catch (FileSystemException e) {
+                Files.copy(blob.toPath(), pending.file.toPath());
+            }
+            return true;
+        } catch (IOException e) {
+            logger.fine("Cannot link " + pending.file + " to " + blob + "; " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Adds received content of the resource to content shared between applications, unless it is there already.
+     * Digest of content taken while it was received is checked first as resource might have changed on the
+     * client after the digest the client sent was taken.
+     *
+     * @param pending received resource
+     */
+    private void storeBlob(PendingResource pending) {
+        File blob = blobFile(pending.digest, pending.length);
+        if (blob.exists()) {
+            return;
         }
-        sideEffectFileOutputStream = new FileOutputStream(file);
         try {
-            synchronized (sideEffectFileOutputStream) {
-                resourceRequestProcessor.setPathId(remotePathId);
-                resourceRequestProcessor.setResourceName(name);
-                resourceRequestProcessor.send(dataOutputStream);
-                // TODO this needs better inter-thread communication/synchronisation
-                try {
-                    sideEffectFileOutputStream.wait();
-                } catch (InterruptedException ignore) {}
+            if (pending.file.length() != pending.length || pending.receivedDigest != pending.digest) {
+                logger.fine("Content of " + pending.file + " doesn't match its digest; not shared");
+                return;
             }
+            File dir = blob.getParentFile();
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Cannot create dir " + dir.getAbsolutePath());
+            }
+            try {
+                Files.createLink(blob.toPath(), pending.file.toPath());
+            } catch (FileAlreadyExistsException e) {
+                // Other launcher stored it in the meantime
+            } catch (UnsupportedOperationException e) {
+                copyToBlob(pending.file, blob);
+            } catch (FileSystemException e) {
+                copyToBlob(pending.file, blob);
+            }
+        } catch (IOException e) {
+            logger.fine("Cannot store " + pending.file + " as " + blob + "; " + e.getMessage());
+        }
+    }
+
+    private static void copyToBlob(File file, File blob) throws IOException {
+        // Other launchers must never see partial content
+        File temp = File.createTempFile(blob.getName(), ".tmp", blob.getParentFile());
+        try {
+            Files.copy(file.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
         } finally {
-            sideEffectFileOutputStream.close();
-            file.setLastModified(lastModified);
+            Files.deleteIfExists(temp.toPath());
         }
     }
 
+    /**
+     * Fetches those of given resources that are stale resources left for class loader to fetch. Each resource
+     * is fetched only once; threads asking for resource that is already being fetched wait until it is in the cache.
+     *
+     * @param resourceNames names of resources
+     * @throws IOException
+     */
+    private void fetchLazily(List<String> resourceNames) throws IOException {
+        List<PendingResource> claimed = new ArrayList<PendingResource>();
+        List<PendingResource> inProgress = new ArrayList<PendingResource>();
+        for (String resourceName : resourceNames) {
+            PendingResource pending = lazyResources.get(resourceName);
+            if (pending != null) {
+                synchronized (pending) {
+                    if (!pending.claimed) {
+                        pending.claimed = true;
+                        claimed.add(pending);
+                    } else if (!pending.fetched) {
+                        inProgress.add(pending);
+                    }
+                }
+            }
+        }
+        if (claimed.size() > 0) {
+            boolean fetched = false;
+            try {
+                List<PendingResource> missing = new ArrayList<PendingResource>();
+                for (PendingResource pending : claimed) {
+                    if (!linkFromBlob(pending)) {
+                        missing.add(pending);
+                    }
+                }
+                if (missing.size() > 0) {
+                    fetchResources(missing, delta);
+                    for (PendingResource pending : missing) {
+                        storeBlob(pending);
+                    }
+                }
+                fetched = true;
+            } finally {
+                for (PendingResource pending : claimed) {
+                    if (fetched) {
+                        cacheIndex.put(pending.key, pending.digest, pending.length, pending.lastModified);
+                        lazyResources.remove(pending.name);
+                    }
+                    synchronized (pending) {
+                        pending.claimed = false;
+                        pending.fetched = fetched;
+                        pending.notifyAll();
+                    }
+                }
+            }
+            statistics.updatedResources.addAndGet(claimed.size());
+            if (debugLevel > 2) {
+                logger.fine("Fetched " + claimed.size() + " resources when needed, first " + claimed.get(0).name);
+            }
+        }
+        for (PendingResource pending : inProgress) {
+            synchronized (pending) {
+                try {
+                    while (pending.claimed) {
+                        pending.wait();
+                    }
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while waiting for " + pending.name);
+                }
+            }
+            if (!pending.fetched) {
+                // Other thread failed to fetch it
+                fetchLazily(Collections.singletonList(pending.name));
+            }
+        }
+    }
+
+    /**
+     * Requests all given resources and waits for client to stream them all back. Big resources we already have
+     * (stale) copy of are requested as deltas against that copy, one request each. Resources of directory classpath
+     * entries are requested as one archive per entry and all others with one want-list.
+     * Resources whose delta didn't produce expected content are requested again, whole.
+     *
+     * @param resources resources to be fetched
+     * @param allowDelta can deltas be requested
+     * @throws IOException
+     */
+    private void fetchResources(List<PendingResource> resources, boolean allowDelta) throws IOException {
+        List<PendingResource> deltas = new ArrayList<PendingResource>();
+        List<PendingResource> wholes = new ArrayList<PendingResource>();
+        for (PendingResource pending : resources) {
+            // Resources with no file are received to memory
+            File dir = pending.file != null ? pending.file.getParentFile() : null;
+            if (dir != null && !dir.exists()) {
+                if (!dir.mkdirs()) {
+                    throw new IOException("Cannot create dir " + dir.getAbsolutePath());
+                }
+            }
+            if (allowDelta && dir != null && pending.file.isFile() && pending.file.length() >= DELTA_MIN_SIZE) {
+                pending.delta = true;
+                pending.signatures = BlockSignatures.calculate(pending.file);
+                deltas.add(pending);
+            } else {
+                pending.delta = false;
+                wholes.add(pending);
+            }
+        }
+        Map<String, List<PendingResource>> archives = new LinkedHashMap<String, List<PendingResource>>();
+        if (archive) {
+            for (PendingResource pending : wholes) {
+                // Resources with no name are jar files which are classpath entries themselves
+                if (!"".equals(pending.name)) {
+                    List<PendingResource> archived = archives.get(pending.pathId);
+                    if (archived == null) {
+                        archived = new ArrayList<PendingResource>();
+                        archives.put(pending.pathId, archived);
+                    }
+                    archived.add(pending);
+                }
+            }
+            Iterator<List<PendingResource>> it = archives.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().size() < ARCHIVE_MIN_RESOURCES) {
+                    it.remove();
+                }
+            }
+            List<PendingResource> rest = new ArrayList<PendingResource>();
+            for (PendingResource pending : wholes) {
+                if ("".equals(pending.name) || !archives.containsKey(pending.pathId)) {
+                    rest.add(pending);
+                }
+            }
+            wholes = rest;
+        }
+        for (PendingResource pending : resources) {
+            pending.received = false;
+        }
+        synchronized (pendingResources) {
+            checkReceiving();
+            // Answers come in order of requests
+            pendingResources.addAll(deltas);
+            for (List<PendingResource> archived : archives.values()) {
+                pendingResources.addAll(archived);
+            }
+            pendingResources.addAll(wholes);
+            for (PendingResource pending : deltas) {
+                deltaRequestProcessor.setPathId(pending.pathId);
+                deltaRequestProcessor.setResourceName(pending.name);
+                deltaRequestProcessor.setSignatures(pending.signatures);
+                deltaRequestProcessor.send(dataOutputStream);
+                pending.signatures = null;
+            }
+            for (Map.Entry<String, List<PendingResource>> entry : archives.entrySet()) {
+                archiveRequestProcessor.setPathId(entry.getKey());
+                List<String> names = archiveRequestProcessor.getResourceNames();
+                names.clear();
+                for (PendingResource pending : entry.getValue()) {
+                    names.add(pending.name);
+                }
+                archiveRequestProcessor.send(dataOutputStream);
+                statistics.archives.incrementAndGet();
+            }
+            if (wholes.size() > 0) {
+                List<ResourceListRequestProcessor.Resource> wantList = resourceListRequestProcessor.getResources();
+                wantList.clear();
+                for (PendingResource pending : wholes) {
+                    wantList.add(new ResourceListRequestProcessor.Resource(pending.pathId, pending.name));
+                }
+                resourceListRequestProcessor.send(dataOutputStream);
+            }
+            try {
+                // Other threads might be fetching resources at the same time
+                while (!allReceived(resources)) {
+                    checkReceiving();
+                    pendingResources.wait();
+                }
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while waiting for resources");
+            }
+        }
+        List<PendingResource> failed = new ArrayList<PendingResource>();
+        for (PendingResource pending : deltas) {
+            if (pending.failed) {
+                pending.failed = false;
+                failed.add(pending);
+            }
+        }
+        if (failed.size() > 0) {
+            logger.fine("Delta of " + failed.size() + " resources failed; fetching them whole");
+            fetchResources(failed, false);
+        }
+    }
+
+    private PendingResource nextPendingResource(boolean delta) throws IOException {
+        PendingResource pending;
+        synchronized (pendingResources) {
+            pending = pendingResources.peek();
+        }
+        if (pending == null || pending.delta != delta) {
+            throw new IOException("Received " + (delta ? "delta" : "resource") + " that wasn't requested");
+        }
+        return pending;
+    }
+
+    private void pendingResourceReceived() {
+        synchronized (pendingResources) {
+            pendingResources.removeFirst().received = true;
+            pendingResources.notifyAll();
+        }
+    }
+
+    /**
+     * Lets threads waiting for resources know that nothing more is going to be received.
+     */
+    private void failPendingResources(Throwable cause) {
+        synchronized (pendingResources) {
+            receiveFailure = new IOException("Cannot receive resources from client; " + cause);
+            receiveFailure.initCause(cause);
+            pendingResources.clear();
+            pendingResources.notifyAll();
+        }
+    }
+
+    /**
+     * Throws, with stack of the thread that is waiting for resources, if nothing more is going to be received.
+     * Invoked with pendingResources locked.
+     */
+    private void checkReceiving() throws IOException {
+        if (receiveFailure != null) {
+            IOException e = new IOException(receiveFailure.getMessage());
+            e.initCause(receiveFailure.getCause());
+            throw e;
+        }
+    }
+
+    private static boolean allReceived(List<PendingResource> resources) {
+        for (PendingResource pending : resources) {
+            if (!pending.received) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Content of resource is decoded straight into the cache file, no matter how big it is. Content that
+     * isn't encoded is transferred from the socket to the file without being copied through the heap.
+     */
+    private OutputStream receiveResource(final PendingResource pending, final long size) throws IOException {
+        if (pending.file == null) {
+            if (size > MAX_MEMORY_RESOURCE_SIZE) {
+                // Content is let go so what comes after it is still received; fetch of this resource fails
+                return new ReceivingOutputStream(new OutputStream() {
+                    @Override public void write(int b) { }
+                    @Override public void write(byte[] b, int off, int len) { }
+                }) {
+                    @Override protected void received() throws IOException {
+                        pending.failed = true;
+                        pending.length = size;
+                        pendingResourceReceived();
+                    }
+                };
+            }
+            return new ReceivingOutputStream(new ByteArrayOutputStream(size > 0 ? (int)size : 32)) {
+                @Override protected void received() throws IOException {
+                    // Resource that is gone on the other side is left without content
+                    if (size >= 0) {
+                        pending.content = ((ByteArrayOutputStream)out).toByteArray();
+                        if (pending.content.length != size) {
+                            throw new IOException("Resource " + pending.pathId + ":" + pending.name + " decoded to " + pending.content.length + " bytes instead of " + size);
+                        }
+                        statistics.resourceBytes.addAndGet(size);
+                    }
+                    pendingResourceReceived();
+                }
+            };
+        }
+        // Existing file might be linked to shared content; it must not be written over
+        if (pending.file.exists() && !pending.file.delete()) {
+            throw new IOException("Cannot delete " + pending.file.getAbsolutePath());
+        }
+        return new ReceivingFileOutputStream(pending.file) {
+            @Override protected void received() throws IOException {
+                pending.receivedDigest = getDigest();
+                pending.file.setLastModified(pending.lastModified);
+                if (size >= 0 && pending.file.length() != size) {
+                    throw new IOException("Resource " + pending.file.getAbsolutePath() + " decoded to " + pending.file.length() + " bytes instead of " + size);
+                }
+                if (size > 0) {
+                    statistics.resourceBytes.addAndGet(size);
+                }
+                pendingResourceReceived();
+            }
+        };
+    }
+
+    /**
+     * Rebuilds resource out of its stale copy and received delta. New content is assembled in a temporary file
+     * which replaces stale copy only if it has expected length and digest. Otherwise resource is marked as failed.
+     */
+    private OutputStream receiveDelta(final PendingResource pending, final long size, int blockSize) throws IOException {
+        if (size < 0) {
+            // Resource is gone on the other side; whole resource fetch will sort it out
+            pending.failed = true;
+            return new ReceivingOutputStream(new ByteArrayOutputStream()) {
+                @Override protected void received() {
+                    pendingResourceReceived();
+                }
+            };
+        }
+        final File temp = new File(pending.file.getPath() + ".delta");
+        final XXHash64 hash = new XXHash64();
+        final RandomAccessFile old = new RandomAccessFile(pending.file, "r");
+        OutputStream out = new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536), hash);
+        return new ReceivingOutputStream(new DeltaDecoder(old, blockSize, out)) {
+            @Override protected void received() throws IOException {
+                old.close();
+                if (temp.length() != size || hash.getValue() != pending.digest) {
+                    logger.fine("Delta of " + pending.file + " produced " + temp.length() + " bytes with digest " + DigestUtils.toHex(hash.getValue())
+                            + " instead of " + size + " bytes with digest " + DigestUtils.toHex(pending.digest));
+                    if (!temp.delete()) {
+                        throw new IOException("Cannot delete " + temp.getAbsolutePath());
+                    }
+                    pending.failed = true;
+                } else {
+                    if (!pending.file.delete() || !temp.renameTo(pending.file)) {
+                        throw new IOException("Cannot replace " + pending.file.getAbsolutePath() + " with " + temp.getAbsolutePath());
+                    }
+                    pending.file.setLastModified(pending.lastModified);
+                    pending.receivedDigest = hash.getValue();
+                    statistics.resourceBytes.addAndGet(size);
+                    statistics.deltaResources.incrementAndGet();
+                }
+                pendingResourceReceived();
+            }
+        };
+    }
+
     public void startApplication() {
         synchronized (this) {
             applicationStarted = true;
             notifyAll();
         }
 
+        logStatistics();
         if (debugLevel > 0) {
-            LOGGER.info(String.format("Removed old files/dirs (%s, %s), updated/total resources (%s/%s)", statistics.deletedFiles, statistics.deletedDirs, statistics.updatedResources, statistics.totalResorces));
             LOGGER.info("Starting " + mainClass + ":");
         }
         try {
@@ -530,24 +1506,274 @@ public class Launcher {
         }
     }
 
+    public void logStatistics() {
+        statistics.transferredBytes.set(dataProcessor.getReceived() - receivedBefore);
+        if (debugLevel > 0) {
+            LOGGER.info(String.format("Updated/total resources (%s/%s) of which as delta %s in archives %s linked %s, received/resource bytes (%s/%s)", statistics.updatedResources, statistics.totalResorces, statistics.deltaResources, statistics.archives, statistics.linkedResources, statistics.transferredBytes, statistics.resourceBytes));
+        }
+    }
+
+    /**
+     * Writes application, as launcher started with '-r' reads it: main class, local classpath and arguments.
+     */
+    public static void writeApplication(DataOutputStream dos, String mainClass, URL[] classpath, List<String> arguments) throws IOException {
+        dos.writeUTF(mainClass);
+        dos.writeInt(classpath.length);
+        for (URL url : classpath) {
+            dos.writeUTF(url.toExternalForm());
+        }
+        dos.writeInt(arguments.size());
+        for (String argument : arguments) {
+            dos.writeUTF(argument);
+        }
+        dos.flush();
+    }
+
+    /**
+     * Reads application written by {@link #writeApplication(DataOutputStream, String, URL[], List)} and starts it
+     * from classpath cache was brought up to date for by the agent.
+     */
+    private static void runApplication(DataInputStream dis) throws Exception {
+        String mainClassName = dis.readUTF();
+        URL[] urls = new URL[dis.readInt()];
+        for (int i = 0; i < urls.length; i++) {
+            urls[i] = new URL(dis.readUTF());
+        }
+        final String[] arguments = new String[dis.readInt()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = dis.readUTF();
+        }
+
+        URLClassLoader classLoader = new URLClassLoader(urls);
+        final Method mainMethod = classLoader.loadClass(mainClassName).getMethod("main", new String[0].getClass());
+        Thread thread = new Thread(new Runnable() { public void run() {
+            try {
+                mainMethod.invoke(null, new Object[] { arguments });
+            } catch (IllegalAccessException e) {
+                e.printStackTrace();
+            } catch (InvocationTargetException e) {
+                e.printStackTrace();
+            }
+        }});
+        thread.setName("StartedThread");
+        thread.setContextClassLoader(classLoader);
+        thread.start();
+    }
+
+    private static class PendingResource {
+        private File file;
+        private String pathId;
+        private String name;
+        private long lastModified;
+        private String key;
+        private long digest;
+        private long length;
+        // Digest of content as it was received, taken while it was being written to the file
+        private long receivedDigest;
+        private boolean delta;
+        private boolean failed;
+        private BlockSignatures signatures;
+        private byte[] content;
+        private boolean received;
+        // Being fetched or already fetched on class loader's request
+        private boolean claimed;
+        private boolean fetched;
+
+        private PendingResource(File file, String pathId, String name, long lastModified) {
+            this.file = file;
+            this.pathId = pathId;
+            this.name = name;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * Stream that knows when all of resource content is received - it is when it is closed.
+     */
+    private abstract static class ReceivingOutputStream extends FilterOutputStream {
+
+        private ReceivingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            received();
+        }
+
+        protected abstract void received() throws IOException;
+    }
+
+    /**
+     * Receiving stream over a file that can take content from a channel with {@link FileChannel#transferFrom(ReadableByteChannel, long, long)}.
+     * Content is digested as it is received. Content transferred from the channel doesn't pass through the heap,
+     * so it is read back and digested right after it is transferred, while it is still in file system's cache.
+     */
+    private abstract static class ReceivingFileOutputStream extends ReceivingOutputStream implements TransferTarget {
+
+        private File file;
+        private FileChannel fileChannel;
+        private XXHash64 hash = new XXHash64();
+        // Opened once content is transferred from the channel
+        private RandomAccessFile transferred;
+        private byte[] buffer;
+
+        private ReceivingFileOutputStream(File file) throws IOException {
+            this(file, new FileOutputStream(file));
+        }
+
+        private ReceivingFileOutputStream(File file, FileOutputStream out) {
+            super(out);
+            this.file = file;
+            fileChannel = out.getChannel();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            hash.update(b);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            hash.update(b, off, len);
+            out.write(b, off, len);
+        }
+
+        public void transferFrom(ReadableByteChannel channel, long count) throws IOException {
+            long start = fileChannel.position();
+            long position = start;
+            while (count > 0) {
+                long t = fileChannel.transferFrom(channel, position, count);
+                if (t <= 0) {
+                    throw new EOFException("Premature end of stream; missing " + count + " bytes");
+                }
+                position = position + t;
+                count = count - t;
+            }
+            fileChannel.position(position);
+            digest(start, position);
+        }
+
+        private void digest(long start, long end) throws IOException {
+            if (transferred == null) {
+                transferred = new RandomAccessFile(file, "r");
+                buffer = new byte[65536];
+            }
+            transferred.seek(start);
+            while (start < end) {
+                int r = transferred.read(buffer, 0, (int)Math.min(buffer.length, end - start));
+                if (r <= 0) {
+                    throw new EOFException("Premature end of " + file.getAbsolutePath() + "; missing " + (end - start) + " bytes");
+                }
+                hash.update(buffer, 0, r);
+                start = start + r;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (transferred != null) {
+                transferred.close();
+            }
+            super.close();
+        }
+
+        protected long getDigest() {
+            return hash.getValue();
+        }
+    }
+
     public static void main(String[] args) throws Exception {
+        if (args.length == 1 && "-wait".equals(args[0])) {
+            // Started ahead of time by the agent; it sends arguments once VM is given to a session
+            System.out.println(WAITING_FOR_ARGUMENTS);
+            System.out.flush();
+            String line = readArgumentsLine(System.in);
+            if (line == null) {
+                // Agent has gone away without using this VM
+                return;
+            }
+            args = line.trim().split(" +");
+        }
+        if (args.length == 1 && "-r".equals(args[0])) {
+            // Agent brings cache up to date while this VM boots and then gives it application to run
+            runApplication(new DataInputStream(System.in));
+            return;
+        }
+
         Launcher launcher = new Launcher();
+        launcher.applyArguments(args);
+        launcher.setup();
+        launcher.start();
+    }
 
+    /**
+     * @param args launcher arguments as given to {@link #main(String[])}, apart from '-wait' and '-r'
+     */
+    public void applyArguments(String[] args) {
         boolean debugLevelFlag = false;
+        boolean classLoaderTypeFlag = false;
+        boolean memoryStoreSizeFlag = false;
+        boolean cacheSizeFlag = false;
 
         for (String arg : args) {
             if (debugLevelFlag) {
-                launcher.setDebugLevel(Integer.parseInt(arg));
+                setDebugLevel(Integer.parseInt(arg));
                 debugLevelFlag = false;
+            } else if (memoryStoreSizeFlag) {
+                setMemoryStoreSize(Long.parseLong(arg) * 1024L * 1024L);
+                memoryStoreSizeFlag = false;
+            } else if (cacheSizeFlag) {
+                setCacheSize(Long.parseLong(arg) * 1024L * 1024L);
+                cacheSizeFlag = false;
+            } else if (classLoaderTypeFlag) {
+                setClassLoaderType(ClassLoaderType.valueOf(arg));
+                classLoaderTypeFlag = false;
             } else if ("-d".equals(arg)) {
                 debugLevelFlag = true;
+            } else if ("-nd".equals(arg)) {
+                setDelta(false);
+            } else if ("-clt".equals(arg)) {
+                classLoaderTypeFlag = true;
+            } else if ("-ms".equals(arg)) {
+                memoryStoreSizeFlag = true;
+            } else if ("-cs".equals(arg)) {
+                cacheSizeFlag = true;
+            } else if ("-nar".equals(arg)) {
+                setArchive(false);
+            } else if ("-op".equals(arg)) {
+                setOpcodes(true);
+            } else if ("-w".equals(arg)) {
+                setWatch(true);
             } else {
-                launcher.setPort(Integer.parseInt(arg));
+                setPort(Integer.parseInt(arg));
             }
         }
+    }
 
-        launcher.setup();
-        launcher.start();
+    /**
+     * Reads line byte by byte so nothing after it is taken from the stream.
+     *
+     * @return line without line terminator or null if stream has ended before line was finished
+     */
+    private static String readArgumentsLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b = in.read();
+        while (b != '\n') {
+            if (b < 0) {
+                return null;
+            }
+            line.write(b);
+            b = in.read();
+        }
+        return new String(line.toByteArray(), "UTF-8");
     }
 
 }
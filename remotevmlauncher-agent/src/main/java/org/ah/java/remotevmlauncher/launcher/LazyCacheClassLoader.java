@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2013 Creative Sphere Limited.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.ah.java.remotevmlauncher.launcher;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Enumeration;
+
+/**
+ * Class loader over the cache that doesn't need cache to be up to date before application starts.
+ * Before it looks for a class or a resource it lets {@link #cache(String)} bring that resource into
+ * the cache, so only resources application actually uses are ever fetched.
+ *
+ * @author Daniel Sendula
+ */
+public abstract class LazyCacheClassLoader extends URLClassLoader {
+
+    public LazyCacheClassLoader(URL[] urls) {
+        super(urls);
+    }
+
+    /**
+     * Invoked each time class or resource is looked for. It is expected to return quickly if given resource
+     * is already in the cache or is not known at all.
+     *
+     * @param resourceName name of resource ('/' separated path)
+     * @throws IOException
+     */
+    protected abstract void cache(String resourceName) throws IOException;
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        try {
+            cache(name.replace('.', '/') + ".class");
+        } catch (IOException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+        return super.findClass(name);
+    }
+
+    @Override
+    public URL findResource(String name) {
+        try {
+            cache(name);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return super.findResource(name);
+    }
+
+    @Override
+    public Enumeration<URL> findResources(String name) throws IOException {
+        cache(name);
+        return super.findResources(name);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2013 Creative Sphere Limited.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.ah.java.remotevmlauncher.launcher;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.ah.java.remotevmlauncher.AppClassLoader;
+
+/**
+ * Class loader that defines classes of client's classpath straight from memory, without writing
+ * them to the disk. Classes of remote classpath are loaded by its parent, as with {@link AppClassLoader}.
+ * Resources of client's classpath are served with 'remotevm' URLs which load their content again
+ * when they are opened.
+ *
+ * @author Daniel Sendula
+ */
+public abstract class MemoryClassLoader extends AppClassLoader {
+
+    public static final String PROTOCOL = "remotevm";
+
+    public static Logger LOGGER = Logger.getLogger("");
+
+    private URLStreamHandler handler = new URLStreamHandler() {
+        @Override protected URLConnection openConnection(URL url) throws IOException {
+            final String key = url.getPath().substring(1);
+            return new URLConnection(url) {
+                @Override public void connect() {
+                }
+
+                @Override public InputStream getInputStream() throws IOException {
+                    ByteBuffer buffer = load(key);
+                    byte[] content = new byte[buffer.remaining()];
+                    buffer.get(content);
+                    return new ByteArrayInputStream(content);
+                }
+            };
+        }
+    };
+
+    public MemoryClassLoader(List<String> remoteClasspath) throws MalformedURLException {
+        super(remoteClasspath);
+    }
+
+    /**
+     * Finds occurrences of resource on client's classpath.
+     *
+     * @param resourceName name of resource ('/' separated path)
+     * @param all true if all occurrences are needed and not only the first one
+     * @return keys of resource, in classpath order; empty list if there are none
+     * @throws IOException
+     */
+    protected abstract List<String> locate(String resourceName, boolean all) throws IOException;
+
+    /**
+     * @param key key of resource as returned from {@link #locate(String, boolean)}
+     * @return buffer with content of resource
+     * @throws IOException
+     */
+    protected abstract ByteBuffer load(String key) throws IOException;
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        try {
+            List<String> keys = locate(name.replace('.', '/') + ".class", false);
+            if (keys.isEmpty()) {
+                throw new ClassNotFoundException(name);
+            }
+            ByteBuffer content = load(keys.get(0));
+            int i = name.lastIndexOf('.');
+            if (i > 0) {
+                try {
+                    definePackage(name.substring(0, i), null, null, null, null, null, null, null);
+                } catch (IllegalArgumentException ignore) {
+                    // Already defined by other class of the package
+                }
+            }
+            return defineClass(name, content, (ProtectionDomain)null);
+        } catch (IOException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+    }
+
+    @Override
+    protected URL findResource(String name) {
+        try {
+            List<String> keys = locate(name, false);
+            if (keys.isEmpty()) {
+                return null;
+            }
+            return toURL(keys.get(0));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Cannot find resource " + name, e);
+            return null;
+        }
+    }
+
+    @Override
+    protected Enumeration<URL> findResources(String name) throws IOException {
+        List<URL> urls = new ArrayList<URL>();
+        for (String key : locate(name, true)) {
+            urls.add(toURL(key));
+        }
+        return Collections.enumeration(urls);
+    }
+
+    private URL toURL(String key) throws MalformedURLException {
+        return new URL(PROTOCOL, "", -1, "/" + key, handler);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2013 Creative Sphere Limited.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.ah.java.remotevmlauncher.launcher;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded store of resource content kept outside of the heap (in direct buffers). When content of all
+ * resources exceeds maximum size, least recently used resources are dropped; they are expected to be
+ * fetched again if they are needed after that.
+ *
+ * @author Daniel Sendula
+ */
+public class MemoryResourceStore {
+
+    public static final long DEFAULT_MAX_SIZE = 64L * 1024L * 1024L;
+
+    private long maxSize;
+    private long size = 0;
+    private int evicted = 0;
+    private LinkedHashMap<String, ByteBuffer> buffers = new LinkedHashMap<String, ByteBuffer>(256, 0.75f, true);
+
+    public MemoryResourceStore() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize maximum number of content bytes kept in the store
+     */
+    public MemoryResourceStore(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * @return number of resources dropped from the store so far
+     */
+    public synchronized int getEvicted() {
+        return evicted;
+    }
+
+    /**
+     * @param key key of resource
+     * @return read only buffer with content of resource or null if it is not in the store
+     */
+    public synchronized ByteBuffer get(String key) {
+        ByteBuffer buffer = buffers.get(key);
+        if (buffer == null) {
+            return null;
+        }
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Stores content of resource. Returned buffer stays valid even if resource is dropped from the store.
+     *
+     * @param key key of resource
+     * @param content content
+     * @param off offset of content in the array
+     * @param len length of content
+     * @return read only buffer with content of resource
+     */
+    public synchronized ByteBuffer put(String key, byte[] content, int off, int len) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(len);
+        buffer.put(content, off, len);
+        buffer.flip();
+        ByteBuffer old = buffers.put(key, buffer);
+        if (old != null) {
+            size = size - old.capacity();
+        }
+        size = size + len;
+        Iterator<Map.Entry<String, ByteBuffer>> it = buffers.entrySet().iterator();
+        while (size > maxSize && it.hasNext()) {
+            Map.Entry<String, ByteBuffer> entry = it.next();
+            size = size - entry.getValue().capacity();
+            evicted++;
+            it.remove();
+        }
+        return buffer.asReadOnlyBuffer();
+    }
+}
@@ -1,10 +1,22 @@
 package org.ah.java.remotevmlauncher.launcher;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of one start of application. They are updated from class loading threads and
+ * from prefetch and cache collection threads alongside the thread that starts application.
+ */
 public class Statistics {
 
-    public int deletedFiles = 0;
-    public int deletedDirs = 0;
-    public int totalResorces = 0;
-    public int updatedResources = 0;
+    public final AtomicInteger deletedFiles = new AtomicInteger();
+    public final AtomicInteger deletedDirs = new AtomicInteger();
+    public final AtomicInteger totalResorces = new AtomicInteger();
+    public final AtomicInteger updatedResources = new AtomicInteger();
+    public final AtomicLong transferredBytes = new AtomicLong();
+    public final AtomicLong resourceBytes = new AtomicLong();
+    public final AtomicInteger deltaResources = new AtomicInteger();
+    public final AtomicInteger archives = new AtomicInteger();
+    public final AtomicInteger linkedResources = new AtomicInteger();
 
 }
@@ -0,0 +1,240 @@
+package org.ah.java.remotevmlauncher.launcher;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Records classpath entries and resources in {@link CacheIndex}, opens it again and checks what was kept,
+ * after records were updated in place, removed and compacted, and when the index is opened by two launchers.
+ */
+public class TestCacheIndex {
+
+    @Test
+    public void testReopen() throws Exception {
+        File dir = createTempDir();
+        try {
+            File file = new File(dir, CacheIndex.INDEX_FILE);
+            CacheIndex index = open(file);
+            index.setTranslations(translations("/home/lib/b.jar", "1", "/home/classes", "0"));
+            index.put("0/A.class", 1, 100, 1000);
+            index.put("1", 2, 200, 2000);
+            index.close();
+
+            index = open(file);
+            Assert.assertEquals(Arrays.asList("/home/lib/b.jar", "/home/classes"), Arrays.asList(index.getTranslations().keySet().toArray()));
+            assertEntry(index, "0/A.class", 1, 100, 1000);
+            assertEntry(index, "1", 2, 200, 2000);
+            // Updated in place
+            index.put("0/A.class", 3, 300, 3000);
+            index.close();
+
+            index = open(file);
+            assertEntry(index, "0/A.class", 3, 300, 3000);
+            Assert.assertNull(index.get("0/B.class"));
+            index.close();
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testCompactionOnReopen() throws Exception {
+        File dir = createTempDir();
+        try {
+            File file = new File(dir, CacheIndex.INDEX_FILE);
+            CacheIndex index = open(file);
+            index.setTranslations(translations("/home/lib/a.jar", "0", "/home/classes", "1"));
+            Set<String> kept = new HashSet<String>();
+            for (int i = 0; i < 100; i++) {
+                String key = "1/org/example/Class" + i + ".class";
+                index.put(key, i, i * 10, i * 100);
+                if (i % 10 == 0) {
+                    kept.add(key);
+                }
+            }
+            index.retain(kept);
+            index.setTranslations(translations("/home/classes", "1"));
+            index.close();
+            int end = header(file, 8);
+            Assert.assertTrue(header(file, 12) > end / 2);
+
+            index = open(file);
+            index.close();
+            Assert.assertEquals(0, header(file, 12));
+            Assert.assertTrue(header(file, 8) < end / 2);
+
+            index = open(file);
+            Assert.assertEquals(translations("/home/classes", "1"), index.getTranslations());
+            for (int i = 0; i < 100; i++) {
+                String key = "1/org/example/Class" + i + ".class";
+                if (i % 10 == 0) {
+                    assertEntry(index, key, i, i * 10, i * 100);
+                } else {
+                    Assert.assertNull(key, index.get(key));
+                }
+            }
+            // Records moved by compaction are updated where they are now
+            index.put("1/org/example/Class50.class", 7, 70, 700);
+            index.close();
+
+            index = open(file);
+            assertEntry(index, "1/org/example/Class50.class", 7, 70, 700);
+            assertEntry(index, "1/org/example/Class60.class", 60, 600, 6000);
+            index.close();
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testSecondLauncherWorksOnPrivateCopy() throws Exception {
+        File dir = createTempDir();
+        try {
+            File file = new File(dir, CacheIndex.INDEX_FILE);
+            CacheIndex first = open(file);
+            first.put("0/A.class", 1, 100, 1000);
+            Assert.assertTrue(first.isLocked());
+
+            CacheIndex second = open(file);
+            try {
+                Assert.assertFalse(second.isLocked());
+                assertEntry(second, "0/A.class", 1, 100, 1000);
+                second.put("0/A.class", 2, 200, 2000);
+                // Grows past initial size
+                for (int i = 0; i < 5000; i++) {
+                    second.put("0/org/example/Class" + i + ".class", i, i, i);
+                }
+                assertEntry(second, "0/org/example/Class4999.class", 4999, 4999, 4999);
+
+                first.put("0/B.class", 3, 300, 3000);
+                Assert.assertNull(second.get("0/B.class"));
+            } finally {
+                second.close();
+            }
+            first.close();
+
+            CacheIndex index = open(file);
+            Assert.assertTrue(index.isLocked());
+            assertEntry(index, "0/A.class", 1, 100, 1000);
+            assertEntry(index, "0/B.class", 3, 300, 3000);
+            Assert.assertNull(index.get("0/org/example/Class0.class"));
+            index.close();
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testUnreadableIndexStartedAgain() throws Exception {
+        File dir = createTempDir();
+        try {
+            File file = new File(dir, CacheIndex.INDEX_FILE);
+            FileOutputStream fos = new FileOutputStream(file);
+            try {
+                fos.write("Not an index".getBytes("US-ASCII"));
+            } finally {
+                fos.close();
+            }
+            CacheIndex index = open(file);
+            Assert.assertTrue(index.getTranslations().isEmpty());
+            index.put("0/A.class", 1, 100, 1000);
+            index.close();
+
+            index = open(file);
+            assertEntry(index, "0/A.class", 1, 100, 1000);
+            index.close();
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testOversizedIndexStartedAgain() throws Exception {
+        File dir = createTempDir();
+        try {
+            File file = new File(dir, CacheIndex.INDEX_FILE);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(3L * 1024 * 1024 * 1024);
+            } finally {
+                raf.close();
+            }
+            CacheIndex index = open(file);
+            Assert.assertNull(index.get("0/A.class"));
+            index.put("0/A.class", 1, 100, 1000);
+            index.close();
+            Assert.assertTrue(file.length() <= Integer.MAX_VALUE);
+
+            index = open(file);
+            assertEntry(index, "0/A.class", 1, 100, 1000);
+            index.close();
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static CacheIndex open(File file) throws IOException {
+        CacheIndex index = new CacheIndex(file);
+        index.open();
+        return index;
+    }
+
+    private static void assertEntry(CacheIndex index, String key, long digest, long length, long lastModified) {
+        CacheIndex.Entry entry = index.get(key);
+        Assert.assertNotNull(key, entry);
+        Assert.assertEquals(key, digest, entry.getDigest());
+        Assert.assertEquals(key, length, entry.getLength());
+        Assert.assertEquals(key, lastModified, entry.getLastModified());
+    }
+
+    /**
+     * @return local paths by remote paths given in pairs
+     */
+    private static Map<String, String> translations(String... pairs) {
+        Map<String, String> translations = new LinkedHashMap<String, String>();
+        for (int i = 0; i < pairs.length; i = i + 2) {
+            translations.put(pairs[i], pairs[i + 1]);
+        }
+        return translations;
+    }
+
+    /**
+     * @return int from index's header - end of records at 8, bytes of removed records at 12
+     */
+    private static int header(File file, int position) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(position);
+            return raf.readInt();
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile("remotevm-index", "");
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,266 @@
+package org.ah.java.remotevmlauncher.launcher;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Builds global cache dirs with application cache dirs and shared content and checks what {@link CacheManager}
+ * removes to bring them within maximum size and what it removes from application's cache dir.
+ */
+public class TestCacheManager {
+
+    private static final long HOUR = 60L * 60L * 1000L;
+
+    @Test
+    public void testNothingRemovedWithinMaximumSize() throws Exception {
+        File dir = createTempDir();
+        try {
+            File blobs = new File(dir, ".blobs");
+            File app1 = application(dir, "app1", 5 * HOUR);
+            File app2 = application(dir, "app2", 3 * HOUR);
+            createFile(new File(app1, "A.class"), 1000, 0);
+            createFile(new File(app2, "B.class"), 2000, 0);
+
+            CacheManager cacheManager = new CacheManager(dir, blobs, 3000);
+            cacheManager.collect(app2);
+
+            Assert.assertEquals(3000, cacheManager.getSize());
+            Assert.assertEquals(0, cacheManager.getEvictedApplications());
+            Assert.assertEquals(0, cacheManager.getDeletedFiles());
+            Assert.assertTrue(new File(app1, "A.class").exists());
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testLeastRecentlyUsedApplicationEvicted() throws Exception {
+        File dir = createTempDir();
+        try {
+            File blobs = new File(dir, ".blobs");
+            File oldest = application(dir, "oldest", 5 * HOUR);
+            File older = application(dir, "older", 3 * HOUR);
+            File current = application(dir, "current", 0);
+            createFile(new File(oldest, "a/A.class"), 1000, 0);
+            createFile(new File(older, "B.class"), 1000, 0);
+            createFile(new File(current, "C.class"), 1000, 0);
+
+            CacheManager cacheManager = new CacheManager(dir, blobs, 2500);
+            cacheManager.collect(current);
+
+            Assert.assertFalse(oldest.exists());
+            Assert.assertTrue(new File(older, "B.class").exists());
+            Assert.assertTrue(new File(current, "C.class").exists());
+            Assert.assertEquals(1, cacheManager.getEvictedApplications());
+            Assert.assertEquals(1000, cacheManager.getReclaimedBytes());
+            Assert.assertEquals(2000, cacheManager.getSize());
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testCurrentAndRecentlyUsedApplicationsKept() throws Exception {
+        File dir = createTempDir();
+        try {
+            File blobs = new File(dir, ".blobs");
+            // Application being launched is the least recently used one
+            File current = application(dir, "current", 5 * HOUR);
+            // Might still be running
+            File recent = application(dir, "recent", HOUR / 6);
+            createFile(new File(current, "A.class"), 1000, 0);
+            createFile(new File(recent, "B.class"), 1000, 0);
+
+            CacheManager cacheManager = new CacheManager(dir, blobs, 500);
+            cacheManager.collect(current);
+
+            Assert.assertTrue(new File(current, "A.class").exists());
+            Assert.assertTrue(new File(recent, "B.class").exists());
+            Assert.assertEquals(0, cacheManager.getEvictedApplications());
+            Assert.assertEquals(2000, cacheManager.getSize());
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testSharedContentCountedOnceAndUnlinkedContentRemovedFirst() throws Exception {
+        File dir = createTempDir();
+        try {
+            File blobs = new File(dir, ".blobs");
+            File old = application(dir, "old", 5 * HOUR);
+            File current = application(dir, "current", 0);
+            File shared = createFile(new File(blobs, "aa/aa00-3000"), 3000, 0);
+            File unlinked = createFile(new File(blobs, "bb/bb00-1000"), 1000, 0);
+            link(new File(old, "lib.jar"), shared);
+            link(new File(current, "lib.jar"), shared);
+
+            CacheManager cacheManager = new CacheManager(dir, blobs, 3000);
+            cacheManager.collect(current);
+
+            Assert.assertFalse(unlinked.exists());
+            Assert.assertTrue(shared.exists());
+            Assert.assertTrue(old.exists());
+            Assert.assertEquals(0, cacheManager.getEvictedApplications());
+            Assert.assertEquals(3000, cacheManager.getSize());
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testContentOfEvictedApplicationRemoved() throws Exception {
+        File dir = createTempDir();
+        try {
+            File blobs = new File(dir, ".blobs");
+            File old = application(dir, "old", 5 * HOUR);
+            File current = application(dir, "current", 0);
+            File oldContent = createFile(new File(blobs, "aa/aa00-3000"), 3000, 0);
+            File currentContent = createFile(new File(blobs, "bb/bb00-1000"), 1000, 0);
+            link(new File(old, "lib.jar"), oldContent);
+            link(new File(current, "lib.jar"), currentContent);
+
+            CacheManager cacheManager = new CacheManager(dir, blobs, 2000);
+            cacheManager.collect(current);
+
+            Assert.assertFalse(old.exists());
+            Assert.assertFalse(oldContent.exists());
+            Assert.assertTrue(currentContent.exists());
+            Assert.assertEquals(1, cacheManager.getEvictedApplications());
+            Assert.assertEquals(3000, cacheManager.getReclaimedBytes());
+            Assert.assertEquals(1000, cacheManager.getSize());
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testLeftoverTemporaryContentRemoved() throws Exception {
+        File dir = createTempDir();
+        try {
+            File blobs = new File(dir, ".blobs");
+            File current = application(dir, "current", 0);
+            File leftover = createFile(new File(blobs, "aa/aa00-3000123.tmp"), 500, 5 * HOUR);
+            // Might still be being written
+            File writing = createFile(new File(blobs, "aa/aa00-3000456.tmp"), 500, 0);
+
+            CacheManager cacheManager = new CacheManager(dir, blobs, CacheManager.DEFAULT_MAX_SIZE);
+            cacheManager.collect(current);
+
+            Assert.assertFalse(leftover.exists());
+            Assert.assertTrue(writing.exists());
+            Assert.assertEquals(500, cacheManager.getReclaimedBytes());
+            Assert.assertEquals(0, cacheManager.getSize());
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testRemoveOldFiles() throws Exception {
+        File dir = createTempDir();
+        try {
+            File app = application(dir, "app", 0);
+            File expected = createFile(new File(app, "a/A.class"), 100, 5 * HOUR);
+            File removed = createFile(new File(app, "a/B.class"), 100, 5 * HOUR);
+            File removedWithDir = createFile(new File(app, "b/c/C.class"), 100, 5 * HOUR);
+            // Might be just being written by other launcher
+            File recent = createFile(new File(app, "d/D.class"), 100, 0);
+            File expectedDir = new File(app, "e");
+            expectedDir.mkdirs();
+
+            Set<File> expectedFiles = new HashSet<File>();
+            expectedFiles.add(expected);
+            expectedFiles.add(expectedDir);
+            CacheManager cacheManager = new CacheManager(dir, new File(dir, ".blobs"), CacheManager.DEFAULT_MAX_SIZE);
+            cacheManager.removeOldFiles(app, expectedFiles);
+
+            Assert.assertTrue(expected.exists());
+            Assert.assertFalse(removed.exists());
+            Assert.assertFalse(removedWithDir.exists());
+            Assert.assertFalse(new File(app, "b").exists());
+            Assert.assertTrue(recent.exists());
+            Assert.assertTrue(expectedDir.exists());
+            Assert.assertEquals(2, cacheManager.getDeletedFiles());
+            Assert.assertEquals(2, cacheManager.getDeletedDirs());
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testMarkUsed() throws Exception {
+        File dir = createTempDir();
+        try {
+            File app = application(dir, "app", 5 * HOUR);
+            long before = System.currentTimeMillis() - 2000;
+            CacheManager.markUsed(app);
+            Assert.assertTrue(new File(app, CacheManager.LAST_USED_FILE).lastModified() >= before);
+
+            // Application that was never marked is as old as its dir
+            File unmarked = new File(dir, "unmarked");
+            createFile(new File(unmarked, "A.class"), 1000, 0);
+            unmarked.setLastModified(System.currentTimeMillis() - 5 * HOUR);
+            CacheManager cacheManager = new CacheManager(dir, new File(dir, ".blobs"), 0);
+            cacheManager.collect(app);
+            Assert.assertFalse(unmarked.exists());
+            Assert.assertEquals(Collections.singletonList(CacheManager.LAST_USED_FILE), Arrays.asList(app.list()));
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * Creates application cache dir last used given time ago.
+     */
+    private static File application(File dir, String name, long usedAgo) throws IOException {
+        File app = new File(dir, name);
+        app.mkdirs();
+        CacheManager.markUsed(app);
+        new File(app, CacheManager.LAST_USED_FILE).setLastModified(System.currentTimeMillis() - usedAgo);
+        return app;
+    }
+
+    private static File createFile(File file, int size, long modifiedAgo) throws IOException {
+        file.getParentFile().mkdirs();
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(new byte[size]);
+        } finally {
+            fos.close();
+        }
+        file.setLastModified(System.currentTimeMillis() - modifiedAgo);
+        return file;
+    }
+
+    private static void link(File file, File content) throws IOException {
+        file.getParentFile().mkdirs();
+        Files.createLink(file.toPath(), content.toPath());
+    }
+
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile("remotevm-cache", "");
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,151 @@
+package org.ah.java.remotevmlauncher.launcher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Puts resources in {@link MemoryResourceStore} past its maximum size and checks which of them it drops and
+ * how it accounts for their size, and that content given out stays readable; and serves resources from memory
+ * through {@link MemoryClassLoader}.
+ */
+public class TestMemoryResourceStore {
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws Exception {
+        MemoryResourceStore store = new MemoryResourceStore(25);
+        store.put("a", content(10, 1), 0, 10);
+        store.put("b", content(10, 2), 0, 10);
+        // Used after b, so b is the least recently used one
+        Assert.assertNotNull(store.get("a"));
+        store.put("c", content(10, 3), 0, 10);
+
+        Assert.assertNull(store.get("b"));
+        assertContent(content(10, 1), store.get("a"));
+        assertContent(content(10, 3), store.get("c"));
+        Assert.assertEquals(20, store.getSize());
+        Assert.assertEquals(1, store.getEvicted());
+    }
+
+    @Test
+    public void testReplacedResourceCountedOnce() throws Exception {
+        MemoryResourceStore store = new MemoryResourceStore(25);
+        store.put("a", content(10, 1), 0, 10);
+        store.put("a", content(20, 2), 5, 15);
+        Assert.assertEquals(15, store.getSize());
+        assertContent(Arrays.copyOfRange(content(20, 2), 5, 20), store.get("a"));
+
+        store.put("b", content(10, 3), 0, 10);
+        Assert.assertEquals(25, store.getSize());
+        Assert.assertEquals(0, store.getEvicted());
+    }
+
+    @Test
+    public void testResourceBiggerThanStore() throws Exception {
+        MemoryResourceStore store = new MemoryResourceStore(25);
+        store.put("a", content(10, 1), 0, 10);
+        ByteBuffer big = store.put("big", content(100, 2), 0, 100);
+
+        // Nothing fits next to it, nor does it
+        Assert.assertNull(store.get("a"));
+        Assert.assertNull(store.get("big"));
+        Assert.assertEquals(0, store.getSize());
+        Assert.assertEquals(2, store.getEvicted());
+        assertContent(content(100, 2), big);
+    }
+
+    @Test
+    public void testBuffersValidAfterEviction() throws Exception {
+        MemoryResourceStore store = new MemoryResourceStore(25);
+        ByteBuffer put = store.put("a", content(10, 1), 0, 10);
+        ByteBuffer got = store.get("a");
+        // Reading one buffer doesn't move the other
+        assertContent(content(10, 1), got);
+        Assert.assertTrue(put.isReadOnly());
+        Assert.assertTrue(got.isReadOnly());
+
+        store.put("b", content(20, 2), 0, 20);
+        Assert.assertNull(store.get("a"));
+        assertContent(content(10, 1), put);
+        assertContent(content(10, 1), store.put("a", content(10, 1), 0, 10));
+    }
+
+    @Test
+    public void testClassLoaderResources() throws Exception {
+        final Map<String, byte[]> contents = new LinkedHashMap<String, byte[]>();
+        contents.put("1/remotevm-test/a.txt", content(10, 1));
+        contents.put("2/remotevm-test/a.txt", content(20, 2));
+        MemoryClassLoader classLoader = new MemoryClassLoader(Collections.<String>emptyList()) {
+            @Override protected List<String> locate(String resourceName, boolean all) throws IOException {
+                if ("remotevm-test/broken.txt".equals(resourceName)) {
+                    throw new IOException("Client has gone");
+                }
+                List<String> keys = new ArrayList<String>();
+                for (String key : contents.keySet()) {
+                    if (key.endsWith("/" + resourceName) && (all || keys.isEmpty())) {
+                        keys.add(key);
+                    }
+                }
+                return keys;
+            }
+
+            @Override protected ByteBuffer load(String key) {
+                return ByteBuffer.wrap(contents.get(key));
+            }
+        };
+
+        Assert.assertNull(classLoader.getResource("remotevm-test/missing.txt"));
+        Assert.assertNull(classLoader.getResource("remotevm-test/broken.txt"));
+
+        URL url = classLoader.getResource("remotevm-test/a.txt");
+        Assert.assertEquals(MemoryClassLoader.PROTOCOL, url.getProtocol());
+        Assert.assertArrayEquals(content(10, 1), read(url));
+
+        Enumeration<URL> urls = classLoader.getResources("remotevm-test/a.txt");
+        Assert.assertArrayEquals(content(10, 1), read(urls.nextElement()));
+        Assert.assertArrayEquals(content(20, 2), read(urls.nextElement()));
+        Assert.assertFalse(urls.hasMoreElements());
+    }
+
+    private static void assertContent(byte[] expected, ByteBuffer buffer) {
+        byte[] content = new byte[buffer.remaining()];
+        buffer.duplicate().get(content);
+        Assert.assertArrayEquals(expected, content);
+    }
+
+    private static byte[] content(int size, int seed) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte)(seed * 31 + i);
+        }
+        return content;
+    }
+
+    private static byte[] read(URL url) throws IOException {
+        InputStream in = url.openStream();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int r = in.read(buffer);
+            while (r >= 0) {
+                out.write(buffer, 0, r);
+                r = in.read(buffer);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
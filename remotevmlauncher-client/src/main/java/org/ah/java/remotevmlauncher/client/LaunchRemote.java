@@ -18,6 +18,7 @@
  */
 package org.ah.java.remotevmlauncher.client;
 
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
@@ -30,29 +31,44 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.ah.java.remotevmlauncher.ChannelStreams;
 import org.ah.java.remotevmlauncher.ClassLoaderType;
 import org.ah.java.remotevmlauncher.ClasspathUtils;
+import org.ah.java.remotevmlauncher.DigestUtils;
 import org.ah.java.remotevmlauncher.JavaLoggingUtils;
 import org.ah.java.remotevmlauncher.PathUtils;
+import org.ah.java.remotevmlauncher.delta.BlockSignatures;
+import org.ah.java.remotevmlauncher.protocol.ApplicationFinishedProcessor;
+import org.ah.java.remotevmlauncher.protocol.ArchiveProcessor;
+import org.ah.java.remotevmlauncher.protocol.ArchiveRequestProcessor;
 import org.ah.java.remotevmlauncher.protocol.ArgumentsProcessor;
 import org.ah.java.remotevmlauncher.protocol.CacheResponseProcessor;
 import org.ah.java.remotevmlauncher.protocol.CacheResponseProcessor.ResourceResponse;
+import org.ah.java.remotevmlauncher.protocol.DeltaProcessor;
+import org.ah.java.remotevmlauncher.protocol.DeltaRequestProcessor;
+import org.ah.java.remotevmlauncher.protocol.LaunchKeyProcessor;
 import org.ah.java.remotevmlauncher.protocol.LocalClasspathProcessor;
 import org.ah.java.remotevmlauncher.protocol.MainClassProcessor;
 import org.ah.java.remotevmlauncher.protocol.ProtocolStateMachine;
 import org.ah.java.remotevmlauncher.protocol.ReadyProcessor;
 import org.ah.java.remotevmlauncher.protocol.RemoteClasspathProcessor;
+import org.ah.java.remotevmlauncher.protocol.ResourceListRequestProcessor;
 import org.ah.java.remotevmlauncher.protocol.ResourceProcessor;
 import org.ah.java.remotevmlauncher.protocol.ResourceRequestProcessor;
 import org.ah.java.remotevmlauncher.protocol.StartApplicationProcessor;
 import org.ah.java.remotevmlauncher.protocol.StartRemoteVMProcessor;
 import org.ah.java.remotevmlauncher.protocol.StreamProcessor;
+import org.ah.java.remotevmlauncher.protocol.codec.ResourceCodec;
+import org.ah.java.remotevmlauncher.protocol.codec.ResourceCodecs;
 
 /**
  * Main class to launch remote application on a machine with running agent.
@@ -66,15 +82,16 @@ public class LaunchRemote {
 
     protected static StreamProcessor DEFAULT_STREAM_PROCESSOR = new StreamProcessor() {
         @Override public void invoke() {
-            System.out.print(getReceived());
+            System.out.write(getReceivedBytes(), 0, getReceivedLength());
+            System.out.flush();
         }
     };
 
     private InetSocketAddress remoteAgentSocketAddress;
 
-    @SuppressWarnings("unused")
     private ClassLoaderType classLoaderType = ClassLoaderType.CACHED_RESOURCES;
 
+    private SocketChannel socketChannel;
     private Socket socket;
     private InputStream inputStream;
     private DataInputStream dataInputStream;
@@ -84,8 +101,13 @@ public class LaunchRemote {
     private ReadyProcessor readyProcessor;
 
     private ResourceRequestProcessor resourceRequestProcessor;
+    private ResourceListRequestProcessor resourceListRequestProcessor;
+    private DeltaRequestProcessor deltaRequestProcessor;
+    private DeltaProcessor deltaProcessor = new DeltaProcessor();
     private StreamProcessor streamProcessor = DEFAULT_STREAM_PROCESSOR;
     private ResourceProcessor resourceProcessor = new ResourceProcessor();
+    private ArchiveRequestProcessor archiveRequestProcessor;
+    private ArchiveProcessor archiveProcessor = new ArchiveProcessor();
     private LocalClasspathProcessor localClasspathProcessor = new LocalClasspathProcessor();
     private CacheResponseProcessor cacheResponseProcessor = new CacheResponseProcessor();
     private ArgumentsProcessor argumentsProcessor = new ArgumentsProcessor();
@@ -93,10 +115,38 @@ public class LaunchRemote {
     private MainClassProcessor mainClassProcessor = new MainClassProcessor();
     private StartApplicationProcessor startApplicationProcessor = new StartApplicationProcessor();
     private StartRemoteVMProcessor startRemoteVMProcessor = new StartRemoteVMProcessor();
+    private LaunchKeyProcessor launchKeyProcessor = new LaunchKeyProcessor();
+    private ApplicationFinishedProcessor applicationFinishedProcessor = new ApplicationFinishedProcessor() {
+        @Override public void receive(DataInputStream dis) {
+            super.receive(dis);
+            LOGGER.info("----------------------------------------------------------------------------------------------");
+            LOGGER.info("Application finished. Waiting for changes...");
+        }
+    };
 
     private Set<String> excludeClassPath = new LinkedHashSet<String>();
 
+    public static final String DEFAULT_INDEX_FILE = ".remotevm-index";
+
+    private File indexFile = new File(DEFAULT_INDEX_FILE);
+    private ResourceIndex resourceIndex;
+
+    // Time given to other changes to follow the first one before resources are collected
+    public static final long WATCH_SETTLE_TIME = 100;
+
+    private boolean watch = false;
+    // Set when resources changed while application was running; session is closed and started again
+    private volatile boolean restart = false;
+    // Frames are sent from the thread reading input and from the thread watching resources
+    private final Object sendLock = new Object();
+    private boolean compression = true;
+    private boolean zeroCopy = true;
+    private boolean classDataSharing = true;
+    // Codecs both sides know about, in order of launcher's preference
+    private List<String> acceptedCodecs = new ArrayList<String>();
+
     public LaunchRemote() {
+        startRemoteVMProcessor.setOpcodes(true);
     }
 
     public InetSocketAddress getRemoteAgentSocketAddress() {
@@ -107,9 +157,118 @@ public class LaunchRemote {
         this.remoteAgentSocketAddress = remoteAgentSocketAddress;
     }
 
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    public ClassLoaderType getClassLoaderType() {
+        return classLoaderType;
+    }
+
+    /**
+     * @param classLoaderType type of class loader remote application is started with
+     */
+    public void setClassLoaderType(ClassLoaderType classLoaderType) {
+        this.classLoaderType = classLoaderType;
+    }
+
+    public boolean isWatch() {
+        return watch;
+    }
+
+    /**
+     * @param watch if true session is kept open and application is started again each time resources change;
+     *              in the same remote VM if it has finished by then or in a new one, with new session, if it is still running
+     */
+    public void setWatch(boolean watch) {
+        this.watch = watch;
+    }
+
+    public File getIndexFile() {
+        return indexFile;
+    }
+
+    /**
+     * @param indexFile file index of local resources is kept in between launches or null if it is not to be kept
+     */
+    public void setIndexFile(File indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * @return true if session was closed because resources changed while application was running
+     *         and {@link #setup()} and {@link #start()} are to be invoked again
+     */
+    public boolean isRestart() {
+        return restart;
+    }
+
+    public boolean isZeroCopy() {
+        return zeroCopy;
+    }
+
+    /**
+     * @param zeroCopy if true resources that are not encoded are sent straight from files to the socket
+     */
+    public void setZeroCopy(boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+    }
+
+    public boolean isClassDataSharing() {
+        return classDataSharing;
+    }
+
+    /**
+     * @param classDataSharing if true agent keeps archive of classes remote VM loaded for next VM of the same classpath
+     */
+    public void setClassDataSharing(boolean classDataSharing) {
+        this.classDataSharing = classDataSharing;
+    }
+
+    /**
+     * Digest of main class, remote classpath and content of jars on classpath. Classes of directories are
+     * not part of it as they are not archived by remote VM, and they change most often.
+     *
+     * @return fingerprint of classpath as hex string
+     */
+    protected String classpathFingerprint() throws IOException {
+        StringBuilder key = new StringBuilder(mainClassProcessor.getMainClass());
+        for (String remoteClasspath : remoteClasspathProcessor.getRemoteClasspath()) {
+            key.append('\n').append(remoteClasspath);
+        }
+        for (ResourceResponse r : cacheResponseProcessor.getResources()) {
+            if ("".equals(r.name)) {
+                key.append('\n').append(r.pathId).append(':').append(DigestUtils.toHex(r.digest)).append(':').append(r.length);
+            }
+        }
+        byte[] bytes = key.toString().getBytes("UTF-8");
+        return DigestUtils.toHex(DigestUtils.digest(bytes, 0, bytes.length));
+    }
+
+    /**
+     * Digest of user, working dir, main class and remote classpath - what tells launches of clients
+     * connecting from the same address apart.
+     *
+     * @return launch key as hex string
+     */
+    protected String launchKey() throws IOException {
+        StringBuilder key = new StringBuilder(System.getProperty("user.name"));
+        key.append('\n').append(new File("").getAbsolutePath());
+        key.append('\n').append(mainClassProcessor.getMainClass());
+        for (String remoteClasspath : remoteClasspathProcessor.getRemoteClasspath()) {
+            key.append('\n').append(remoteClasspath);
+        }
+        byte[] bytes = key.toString().getBytes("UTF-8");
+        return DigestUtils.toHex(DigestUtils.digest(bytes, 0, bytes.length));
+    }
+
     public void setup() throws IOException {
         try {
-            socket = new Socket(remoteAgentSocketAddress.getAddress(), remoteAgentSocketAddress.getPort());
+            socketChannel = SocketChannel.open(remoteAgentSocketAddress);
         } catch (ConnectException e) {
             System.err.println("Cannot connect to " + remoteAgentSocketAddress.getAddress() + ":" + remoteAgentSocketAddress.getPort());
             System.err.println("The Agent is probably not running on the remote machine.");
@@ -125,12 +284,15 @@ public class LaunchRemote {
             }
             System.exit(1);
         }
+        socket = socketChannel.socket();
 
-        inputStream = socket.getInputStream();
+        // Unlike streams of channel's socket these can be read and written from different threads at the same time
+        inputStream = ChannelStreams.newInputStream(socketChannel);
         dataInputStream = new DataInputStream(inputStream);
 
-        outputStream = socket.getOutputStream();
-        dataOutputStream = new DataOutputStream(outputStream);
+        outputStream = ChannelStreams.newOutputStream(socketChannel);
+        // Each processor flushes when it is done with its payload
+        dataOutputStream = new DataOutputStream(new BufferedOutputStream(outputStream, 65536));
 
         stateMachine = new ProtocolStateMachine(CLIENT_LOGGER);
 
@@ -141,27 +303,133 @@ public class LaunchRemote {
 
         resourceRequestProcessor = new ResourceRequestProcessor() {
             @Override public void processRequest(String pathId, String resourceName) throws IOException {
-                String pathString = localClasspathProcessor.getLocalClasspath().get(pathId);
-                File path = new File(pathString);
-                File resource = new File(path, resourceName);
-                if (!resource.exists()) {
-                    resourceProcessor.send(dataOutputStream, null, -1);
-                } else {
-                    FileInputStream fis = new FileInputStream(resource);
-                    try {
-                        resourceProcessor.send(dataOutputStream, fis, (int)resource.length());
-                    } finally {
-                        fis.close();
-                    }
+                synchronized (sendLock) {
+                    sendResource(pathId, resourceName);
                 }
             }
         };
         stateMachine.getProcessorMap().put(ResourceRequestProcessor.ID, resourceRequestProcessor);
+
+        resourceListRequestProcessor = new ResourceListRequestProcessor() {
+            @Override public void processRequest(List<Resource> resources) throws IOException {
+                if (LOGGER.isLoggable(Level.FINE)) { LOGGER.fine("Sending " + resources.size() + " requested resources..."); }
+                synchronized (sendLock) {
+                    for (Resource resource : resources) {
+                        sendResource(resource.pathId, resource.name);
+                    }
+                }
+            }
+        };
+        stateMachine.getProcessorMap().put(ResourceListRequestProcessor.ID, resourceListRequestProcessor);
+
+        deltaRequestProcessor = new DeltaRequestProcessor() {
+            @Override public void processRequest(String pathId, String resourceName, BlockSignatures signatures) throws IOException {
+                synchronized (sendLock) {
+                    sendDelta(pathId, resourceName, signatures);
+                }
+            }
+        };
+        stateMachine.getProcessorMap().put(DeltaRequestProcessor.ID, deltaRequestProcessor);
+
+        archiveRequestProcessor = new ArchiveRequestProcessor() {
+            @Override public void processRequest(String pathId, List<String> resourceNames) throws IOException {
+                synchronized (sendLock) {
+                    sendArchive(pathId, resourceNames);
+                }
+            }
+        };
+        stateMachine.getProcessorMap().put(ArchiveRequestProcessor.ID, archiveRequestProcessor);
+
+        stateMachine.getProcessorMap().put(ApplicationFinishedProcessor.ID, applicationFinishedProcessor);
+    }
+
+    /**
+     * Switches processors this side sends with to opcodes once launcher said it understands them.
+     */
+    protected void setSendOpcodes() {
+        resourceProcessor.setSendOpcode(true);
+        archiveProcessor.setSendOpcode(true);
+        deltaProcessor.setSendOpcode(true);
+        localClasspathProcessor.setSendOpcode(true);
+        cacheResponseProcessor.setSendOpcode(true);
+        argumentsProcessor.setSendOpcode(true);
+        remoteClasspathProcessor.setSendOpcode(true);
+        mainClassProcessor.setSendOpcode(true);
+        startApplicationProcessor.setSendOpcode(true);
+    }
+
+    protected void sendDelta(String pathId, String resourceName, BlockSignatures signatures) throws IOException {
+        String pathString = localClasspathProcessor.getLocalClasspath().get(pathId);
+        File path = new File(pathString);
+        File resource = new File(path, resourceName);
+        if (!resource.exists()) {
+            deltaProcessor.send(dataOutputStream, null, -1, signatures);
+        } else {
+            FileInputStream fis = new FileInputStream(resource);
+            try {
+                long literalBytes = deltaProcessor.send(dataOutputStream, fis, resource.length(), signatures);
+                if (LOGGER.isLoggable(Level.FINE)) { LOGGER.fine("Sent delta of " + resource + " with " + literalBytes + " of " + resource.length() + " bytes changed"); }
+            } finally {
+                fis.close();
+            }
+        }
+    }
+
+    protected void sendArchive(String pathId, List<String> resourceNames) throws IOException {
+        File path = new File(localClasspathProcessor.getLocalClasspath().get(pathId));
+        List<File> files = new ArrayList<File>();
+        for (String resourceName : resourceNames) {
+            files.add(new File(path, resourceName));
+        }
+        ResourceCodec codec = ArchiveProcessor.select(files, acceptedCodecs);
+        archiveProcessor.send(dataOutputStream, zeroCopy ? socketChannel : null, files, codec);
+        if (LOGGER.isLoggable(Level.FINE)) { LOGGER.fine("Sent " + files.size() + " resources of " + path + " as one archive encoded with " + codec.getName()); }
+    }
+
+    protected void sendResource(String pathId, String resourceName) throws IOException {
+        String pathString = localClasspathProcessor.getLocalClasspath().get(pathId);
+        File path = new File(pathString);
+        File resource = new File(path, resourceName);
+        if (!resource.exists()) {
+            resourceProcessor.send(dataOutputStream, null, -1);
+        } else {
+            long size = resource.length();
+            ResourceCodec codec = ResourceCodecs.select(resource.getName(), size, acceptedCodecs);
+            FileInputStream fis = new FileInputStream(resource);
+            try {
+                if (zeroCopy && codec == ResourceCodecs.NONE) {
+                    resourceProcessor.send(dataOutputStream, socketChannel, fis.getChannel(), size);
+                } else {
+                    resourceProcessor.send(dataOutputStream, fis, size, codec);
+                }
+            } finally {
+                fis.close();
+            }
+        }
     }
 
     public void start() throws IOException {
-        LOGGER.info("Collecting classpath...");
-        collectClasspath();
+        boolean restarting = restart;
+        restart = false;
+        if (StartRemoteVMProcessor.IMPLEMENTED) {
+            // Agent starts VM the way it did for this launch last time while classpath and resources are collected
+            launchKeyProcessor.setLaunchKey(launchKey());
+            launchKeyProcessor.send(dataOutputStream);
+        }
+        if (!restarting) {
+            LOGGER.info("Collecting classpath...");
+            collectClasspath();
+            if (watch) {
+                startRemoteVMProcessor.getLauncherArgs().add("-w");
+            }
+            if (classLoaderType != ClassLoaderType.CACHED_RESOURCES) {
+                startRemoteVMProcessor.getLauncherArgs().add("-clt");
+                startRemoteVMProcessor.getLauncherArgs().add(classLoaderType.name());
+            }
+            if (classDataSharing) {
+                startRemoteVMProcessor.setClasspathFingerprint(classpathFingerprint());
+            }
+        }
         LOGGER.info("Collecting resources...");
         collectResources();
         LOGGER.info("Starting remote VM...");
@@ -185,6 +453,14 @@ public class LaunchRemote {
             }
         }
         LOGGER.info("Remote client started.");
+        acceptedCodecs.clear();
+        if (compression) {
+            acceptedCodecs.addAll(readyProcessor.getCodecs());
+            if (LOGGER.isLoggable(Level.FINE)) { LOGGER.fine("  Resources can be encoded with: " + acceptedCodecs); }
+        }
+        if (readyProcessor.isOpcodes()) {
+            setSendOpcodes();
+        }
 
         LOGGER.info("Sending remote classpath...");
         remoteClasspathProcessor.send(dataOutputStream);
@@ -213,14 +489,98 @@ public class LaunchRemote {
         LOGGER.info("----------------------------------------------------------------------------------------------");
 
         try {
-            while (true) {
-                stateMachine.processInput(dataInputStream);
+            if (watch) {
+                watchResources();
+            } else {
+                while (true) {
+                    stateMachine.processInput(dataInputStream);
+                }
             }
         } catch (IOException e) {
         }
 
         LOGGER.info("----------------------------------------------------------------------------------------------");
-        LOGGER.info("Finished.");
+        if (restart) {
+            LOGGER.info("Resources changed while application was running; starting it again in new remote VM...");
+        } else {
+            LOGGER.info("Finished.");
+            resourceIndex.close();
+        }
+    }
+
+    /**
+     * Processes input while another thread watches resources. When they change after application has finished,
+     * application is started again in the same remote VM; launcher fetches changed resources before it starts it.
+     * When they change while application is still running, session is closed, which ends remote VM, and
+     * {@link #isRestart()} is set so session is started again with new remote VM. Returns when session is closed.
+     *
+     * @throws IOException
+     */
+    protected void watchResources() throws IOException {
+        Thread watchThread = new Thread(new Runnable() { public void run() {
+            try {
+                watchForChanges();
+            } catch (InterruptedException ignore) {
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Cannot collect changed resources", e);
+            }
+        }});
+        watchThread.setName("Watch");
+        watchThread.setDaemon(true);
+        watchThread.start();
+        try {
+            while (true) {
+                stateMachine.processInput(dataInputStream);
+            }
+        } finally {
+            watchThread.interrupt();
+            try {
+                watchThread.join();
+            } catch (InterruptedException ignore) { }
+        }
+    }
+
+    private void watchForChanges() throws IOException, InterruptedException {
+        List<ResourceResponse> started = new ArrayList<ResourceResponse>(cacheResponseProcessor.getResources());
+        while (true) {
+            resourceIndex.waitForChanges();
+            Thread.sleep(WATCH_SETTLE_TIME);
+            collectResources();
+            if (sameResources(started, cacheResponseProcessor.getResources())) {
+                continue;
+            }
+            started = new ArrayList<ResourceResponse>(cacheResponseProcessor.getResources());
+
+            synchronized (applicationFinishedProcessor) {
+                if (!applicationFinishedProcessor.isFinished()) {
+                    // Application's threads can't be stopped; remote VM exits once session is closed
+                    restart = true;
+                    socketChannel.close();
+                    return;
+                }
+                applicationFinishedProcessor.reset();
+            }
+            LOGGER.info("Resources changed; starting application again...");
+            LOGGER.info("----------------------------------------------------------------------------------------------");
+            synchronized (sendLock) {
+                cacheResponseProcessor.send(dataOutputStream);
+                startApplicationProcessor.send(dataOutputStream);
+            }
+        }
+    }
+
+    private static boolean sameResources(List<ResourceResponse> one, List<ResourceResponse> other) {
+        if (one.size() != other.size()) {
+            return false;
+        }
+        for (int i = 0; i < one.size(); i++) {
+            ResourceResponse o = one.get(i);
+            ResourceResponse r = other.get(i);
+            if (o.digest != r.digest || o.length != r.length || !o.pathId.equals(r.pathId) || !o.name.equals(r.name)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     protected void collectClasspath() throws IOException {
@@ -268,38 +628,27 @@ public class LaunchRemote {
         }
     }
 
-    protected void collectResources() {
-        for (Map.Entry<String, String> entry : localClasspathProcessor.getLocalClasspath().entrySet()) {
-            collectResources(entry.getKey(), new File(entry.getValue()), "");
-        }
-        if (LOGGER.isLoggable(Level.FINER)) {
-            for (ResourceResponse r : cacheResponseProcessor.getResources()) {
-                LOGGER.finer("    " + r.pathId + ": (" + r.hash + ", " + r.length + ") " + r.name);
+    protected void collectResources() throws IOException {
+        if (resourceIndex == null) {
+            resourceIndex = new ResourceIndex(indexFile);
+            resourceIndex.load();
+            if (watch) {
+                resourceIndex.watch();
             }
         }
-    }
-
-    protected void collectResources(String pathId, File path, String resource) {
-        File file = new File(path, resource);
-        if (file.isDirectory()) {
-            for (File f : file.listFiles()) {
-                if (!f.equals(".") && !f.equals("..")) {
-                    File resourceFile;
-                    if (resource.equals("")) {
-                        resourceFile = new File(f.getName());
-                    } else {
-                        resourceFile =  new File(new File(resource), f.getName());
-                    }
-                    collectResources(pathId, path, resourceFile.getPath());
-                }
+        List<ResourceResponse> resources = cacheResponseProcessor.getResources();
+        resources.clear();
+        resourceIndex.startWalk();
+        resourceIndex.collect(localClasspathProcessor.getLocalClasspath(), resources);
+        resourceIndex.finishWalk();
+        resourceIndex.save();
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("  Collected " + resources.size() + " resources; listed " + resourceIndex.getListedDirs() + " directories and digested " + resourceIndex.getDigestedFiles() + " files");
+        }
+        if (LOGGER.isLoggable(Level.FINER)) {
+            for (ResourceResponse r : resources) {
+                LOGGER.finer("    " + r.pathId + ": (" + DigestUtils.toHex(r.digest) + ", " + r.length + ") " + r.name);
             }
-        } else {
-            ResourceResponse rr = new ResourceResponse();
-            rr.pathId = pathId;
-            rr.name = resource.replace("\\", "/");
-            rr.hash = file.lastModified();
-            rr.length = file.length();
-            cacheResponseProcessor.getResources().add(rr);
         }
     }
 
@@ -317,6 +666,9 @@ public class LaunchRemote {
         boolean debugLevelFlag = false;
         boolean remoteDebugPortFlag = false;
         boolean remoteVMarg = false;
+        boolean classLoaderTypeFlag = false;
+        boolean memoryStoreSizeFlag = false;
+        boolean cacheSizeFlag = false;
         for (String arg : args) {
             if (!arguments) {
                 if (remoteClasspath) {
@@ -336,6 +688,17 @@ public class LaunchRemote {
                 } else if (remoteVMarg) {
                     client.startRemoteVMProcessor.getVmArgs().add(arg);
                     remoteVMarg = false;
+                } else if (memoryStoreSizeFlag) {
+                    client.startRemoteVMProcessor.getLauncherArgs().add("-ms");
+                    client.startRemoteVMProcessor.getLauncherArgs().add(Long.toString(Long.parseLong(arg)));
+                    memoryStoreSizeFlag = false;
+                } else if (cacheSizeFlag) {
+                    client.startRemoteVMProcessor.getLauncherArgs().add("-cs");
+                    client.startRemoteVMProcessor.getLauncherArgs().add(Long.toString(Long.parseLong(arg)));
+                    cacheSizeFlag = false;
+                } else if (classLoaderTypeFlag) {
+                    client.setClassLoaderType(ClassLoaderType.valueOf(arg.toUpperCase()));
+                    classLoaderTypeFlag = false;
                 } else if ("-rcp".equals(arg) || "--remote-classpath".equals(arg)) {
                     remoteClasspath = true;
                 } else if ("-ecp".equals(arg) || "--exclude-classpath".equals(arg)) {
@@ -348,6 +711,28 @@ public class LaunchRemote {
                     client.startRemoteVMProcessor.setRemoteDebugSuspendAtStart(true);
                 } else if ("-rvma".equals(arg) || "--remote-VM-argment".equals(arg)) {
                     remoteVMarg = true;
+                } else if ("-nc".equals(arg) || "--no-compression".equals(arg)) {
+                    client.setCompression(false);
+                } else if ("-clt".equals(arg) || "--class-loader-type".equals(arg)) {
+                    classLoaderTypeFlag = true;
+                } else if ("-ms".equals(arg) || "--memory-store".equals(arg)) {
+                    memoryStoreSizeFlag = true;
+                } else if ("-cs".equals(arg) || "--cache-size".equals(arg)) {
+                    cacheSizeFlag = true;
+                } else if ("-w".equals(arg) || "--watch".equals(arg)) {
+                    client.setWatch(true);
+                } else if ("-ni".equals(arg) || "--no-index".equals(arg)) {
+                    client.setIndexFile(null);
+                } else if ("-nzc".equals(arg) || "--no-zero-copy".equals(arg)) {
+                    client.setZeroCopy(false);
+                } else if ("-nar".equals(arg) || "--no-archive".equals(arg)) {
+                    client.startRemoteVMProcessor.getLauncherArgs().add("-nar");
+                } else if ("-ncds".equals(arg) || "--no-class-data-sharing".equals(arg)) {
+                    client.setClassDataSharing(false);
+                } else if ("-ia".equals(arg) || "--in-agent".equals(arg)) {
+                    client.startRemoteVMProcessor.setInAgent(true);
+                } else if ("-nd".equals(arg) || "--no-delta".equals(arg)) {
+                    client.startRemoteVMProcessor.getLauncherArgs().add("-nd");
                 } else if ("-h".equals(arg) || "--help".equals(arg)) {
                     printHelp();
                     System.exit(0);
@@ -399,9 +784,10 @@ public class LaunchRemote {
 
         JavaLoggingUtils.setupSimpleConsoleLogging(debugLevel);
 
-        client.setup();
-
-        client.start();
+        do {
+            client.setup();
+            client.start();
+        } while (client.isRestart());
     }
 
     public static void printHelp() {
@@ -424,6 +810,42 @@ public class LaunchRemote {
         System.out.println("  -rds|--remote-debug-suspend ");
         System.out.println("                      If port is specified and if this flag as well");
         System.out.println("                      remote VM will be suspended.");
+        System.out.println("  -nc|--no-compression");
+        System.out.println("                      resources are sent as they are even if remote side");
+        System.out.println("                      can accept them compressed.");
+        System.out.println("  -clt|--class-loader-type type");
+        System.out.println("                      cached_resources (default) - all resources are brought");
+        System.out.println("                      to remote cache before application starts;");
+        System.out.println("                      cache_remote_resources - application starts straight");
+        System.out.println("                      away and resources of classpath directories are");
+        System.out.println("                      brought to remote cache when they are first used;");
+        System.out.println("                      remote_resources - nothing is written to remote disk;");
+        System.out.println("                      resources are kept in memory as they are used.");
+        System.out.println("  -ms|--memory-store megabytes");
+        System.out.println("                      how much of resources is kept in memory with");
+        System.out.println("                      remote_resources class loader type. Default: 64");
+        System.out.println("  -cs|--cache-size megabytes");
+        System.out.println("                      how much remote disk cache of all applications is");
+        System.out.println("                      allowed to take; least recently used applications");
+        System.out.println("                      are removed from it when it grows bigger. Default: 1024");
+        System.out.println("  -w|--watch          session is kept open and application is started again");
+        System.out.println("                      each time local resources change; in the same remote");
+        System.out.println("                      VM if it has finished by then, or in a new remote VM");
+        System.out.println("                      if it is still running.");
+        System.out.println("  -ni|--no-index      local resources are not remembered in " + DEFAULT_INDEX_FILE);
+        System.out.println("                      file; all are digested on each launch.");
+        System.out.println("  -nzc|--no-zero-copy resources are copied through buffers and not sent");
+        System.out.println("                      from files directly to the socket.");
+        System.out.println("  -nd|--no-delta      changed resources are always sent whole and not as");
+        System.out.println("                      difference to copy remote side already has.");
+        System.out.println("  -nar|--no-archive   changed resources of directory classpath entries are");
+        System.out.println("                      sent one by one and not as one archive per entry.");
+        System.out.println("  -ncds|--no-class-data-sharing");
+        System.out.println("                      agent doesn't keep archive of classes remote VM");
+        System.out.println("                      loaded for next VM launched with the same jars.");
+        System.out.println("  -ia|--in-agent      application is run inside of agent's VM, in its own");
+        System.out.println("                      class loader, if agent allows it (agent's -ia). Only for");
+        System.out.println("                      applications that don't need VM arguments or System.exit.");
         System.out.println("  -h|--help           this help.");
         System.out.println("");
         System.out.println("If launcher is used from an IDE, and ");
@@ -0,0 +1,510 @@
+/*
+ * Copyright (c) 2013 Creative Sphere Limited.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.ah.java.remotevmlauncher.client;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ah.java.remotevmlauncher.DigestUtils;
+import org.ah.java.remotevmlauncher.protocol.CacheResponseProcessor.ResourceResponse;
+
+/**
+ * Index of local classpath resources kept between launches. Each file is remembered with its size,
+ * modification time and digest so it is digested again only if either of those changed. Each directory
+ * is remembered with its modification time and names of its entries so it is listed again only if it
+ * changed - entries can't be added, removed or renamed without directory's modification time changing.
+ * <p>
+ * Directories are walked and files digested by a fork/join pool.
+ * <p>
+ * If {@link #watch()} is invoked (client stays resident) directories are watched with a {@link WatchService}
+ * and only files in directories something happened in are looked at on next walk.
+ *
+ * @author Daniel Sendula
+ */
+public class ResourceIndex {
+
+    private static final int VERSION = 1;
+
+    // File systems keep modification times with coarse granularity; entries modified this close
+    // to the time they were looked at can change again without their modification time changing
+    private static final long RACY_WINDOW = 2000;
+
+    private File indexFile;
+    // Index is not a resource even if it is kept in a classpath directory
+    private File absoluteIndexFile;
+    private File absoluteIndexTempFile;
+
+    // Time previous walk started at
+    private long indexTime = 0;
+    private long walkTime;
+    private Map<String, Entry> previous = new HashMap<String, Entry>();
+    private Map<String, Entry> current = new ConcurrentHashMap<String, Entry>();
+
+    private WatchService watchService;
+    private Map<String, WatchKey> watchedDirs = new ConcurrentHashMap<String, WatchKey>();
+    private Map<WatchKey, String> watchKeys = new ConcurrentHashMap<WatchKey, String>();
+    private Set<String> changedDirs = new HashSet<String>();
+    private boolean allChanged = true;
+
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private ForkJoinPool pool;
+
+    private AtomicInteger listedDirs = new AtomicInteger();
+    private AtomicInteger digestedFiles = new AtomicInteger();
+
+    /**
+     * @param indexFile file index is kept in or null if it is not to be kept between launches
+     */
+    public ResourceIndex(File indexFile) {
+        this.indexFile = indexFile;
+        if (indexFile != null) {
+            absoluteIndexFile = indexFile.getAbsoluteFile();
+            absoluteIndexTempFile = new File(absoluteIndexFile.getPath() + ".tmp");
+        }
+    }
+
+    public int getListedDirs() {
+        return listedDirs.get();
+    }
+
+    public int getDigestedFiles() {
+        return digestedFiles.get();
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @param parallelism number of threads walking directories and digesting files. Default is number of processors.
+     */
+    public void setParallelism(int parallelism) {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Loads index. Missing, older or damaged index is ignored; everything is going to be looked at again.
+     */
+    public void load() {
+        previous.clear();
+        if (indexFile == null || !indexFile.exists()) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 65536));
+            try {
+                if (in.readInt() != VERSION) {
+                    return;
+                }
+                indexTime = in.readLong();
+                int size = in.readInt();
+                for (int i = 0; i < size; i++) {
+                    String path = in.readUTF();
+                    Entry entry = new Entry();
+                    entry.lastModified = in.readLong();
+                    int children = in.readInt();
+                    if (children >= 0) {
+                        entry.children = new String[children];
+                        for (int j = 0; j < children; j++) {
+                            entry.children[j] = in.readUTF();
+                        }
+                    } else {
+                        entry.length = in.readLong();
+                        entry.digest = in.readLong();
+                    }
+                    previous.put(path, entry);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            previous.clear();
+            indexTime = 0;
+        }
+    }
+
+    /**
+     * Saves index as it was after last walk. Index is written to temporary file first so
+     * interrupted save doesn't damage it.
+     *
+     * @throws IOException
+     */
+    public void save() throws IOException {
+        if (indexFile == null) {
+            return;
+        }
+        File temp = absoluteIndexTempFile;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536));
+        try {
+            out.writeInt(VERSION);
+            out.writeLong(indexTime);
+            out.writeInt(previous.size());
+            for (Map.Entry<String, Entry> e : previous.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.lastModified);
+                if (entry.children != null) {
+                    out.writeInt(entry.children.length);
+                    for (String child : entry.children) {
+                        out.writeUTF(child);
+                    }
+                } else {
+                    out.writeInt(-1);
+                    out.writeLong(entry.length);
+                    out.writeLong(entry.digest);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (indexFile.exists() && !indexFile.delete()) {
+            throw new IOException("Cannot replace " + indexFile.getAbsolutePath());
+        }
+        if (!temp.renameTo(indexFile)) {
+            throw new IOException("Cannot rename " + temp.getAbsolutePath() + " to " + indexFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Starts watching directories. Directories are registered as they are walked.
+     *
+     * @throws IOException
+     */
+    public void watch() throws IOException {
+        if (watchService == null) {
+            watchService = FileSystems.getDefault().newWatchService();
+            allChanged = true;
+        }
+    }
+
+    public void close() throws IOException {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+        if (watchService != null) {
+            watchService.close();
+            watchService = null;
+            watchedDirs.clear();
+            watchKeys.clear();
+        }
+    }
+
+    /**
+     * @return true if something happened in watched directories since last walk. Always true if not watching.
+     */
+    public boolean hasChanges() {
+        if (watchService == null) {
+            return true;
+        }
+        processWatchEvents();
+        return allChanged || !changedDirs.isEmpty();
+    }
+
+    /**
+     * Waits for something to happen in watched directories.
+     *
+     * @throws InterruptedException
+     */
+    public void waitForChanges() throws InterruptedException {
+        WatchKey key = watchService.take();
+        processWatchKey(key);
+    }
+
+    public void startWalk() {
+        walkTime = System.currentTimeMillis();
+        current = new ConcurrentHashMap<String, Entry>();
+        listedDirs.set(0);
+        digestedFiles.set(0);
+        if (watchService != null) {
+            processWatchEvents();
+        }
+    }
+
+    /**
+     * Collects resources of classpath entries. Entries can be directories or files (jars). Entries and
+     * directories are walked, and files digested, in parallel; resources are still added in order of
+     * classpath entries and, within an entry, in order of names.
+     *
+     * @param classpath classpath entries by their ids
+     * @param resources list resources are added to
+     * @throws IOException
+     */
+    public void collect(Map<String, String> classpath, List<ResourceResponse> resources) throws IOException {
+        final List<CollectTask> tasks = new ArrayList<CollectTask>();
+        for (Map.Entry<String, String> entry : classpath.entrySet()) {
+            tasks.add(new CollectTask(entry.getKey(), new File(entry.getValue()), "", null));
+        }
+        try {
+            pool().invoke(new RecursiveAction() {
+                @Override protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        } catch (WalkException e) {
+            throw e.getCause();
+        }
+        for (CollectTask task : tasks) {
+            resources.addAll(task.join());
+        }
+    }
+
+    /**
+     * Entries that were not walked are forgotten.
+     */
+    public void finishWalk() {
+        previous = current;
+        current = new ConcurrentHashMap<String, Entry>();
+        indexTime = walkTime;
+        changedDirs.clear();
+        allChanged = watchService == null;
+    }
+
+    protected void collectDirectory(String pathId, File dir, String name, List<ResourceResponse> resources) throws IOException {
+        String key = dir.getPath();
+        Entry old = previous.get(key);
+        if (old != null && old.children == null) {
+            old = null;
+        }
+        // Nothing happened in watched directory since last walk
+        boolean unchanged = watchService != null && !allChanged && old != null && watchedDirs.containsKey(key) && !changedDirs.contains(key);
+        Entry entry = old;
+        if (!unchanged) {
+            // Registered before it is looked at so no change after this point is missed
+            register(dir);
+            long lastModified = dir.lastModified();
+            if (old == null || old.lastModified != lastModified || lastModified + RACY_WINDOW > indexTime) {
+                entry = new Entry();
+                entry.lastModified = lastModified;
+                entry.children = dir.list();
+                if (entry.children == null) {
+                    entry.children = new String[0];
+                }
+                Arrays.sort(entry.children);
+                listedDirs.incrementAndGet();
+            }
+        }
+        current.put(key, entry);
+
+        // Either resource or task that collects resources, for each entry in order
+        Object[] results = new Object[entry.children.length];
+        List<CollectTask> tasks = new ArrayList<CollectTask>();
+        for (int i = 0; i < results.length; i++) {
+            String child = entry.children[i];
+            File file = new File(dir, child);
+            if (isIndexFile(file)) {
+                continue;
+            }
+            String childName = name.length() == 0 ? child : name + "/" + child;
+            Entry oldChild = unchanged ? previous.get(file.getPath()) : null;
+            if (oldChild != null && oldChild.children == null) {
+                current.put(file.getPath(), oldChild);
+                results[i] = response(pathId, childName, oldChild);
+            } else {
+                CollectTask task = new CollectTask(pathId, file, childName, oldChild != null ? Boolean.TRUE : null);
+                tasks.add(task);
+                results[i] = task;
+            }
+        }
+        ForkJoinTask.invokeAll(tasks);
+        for (Object result : results) {
+            if (result instanceof CollectTask) {
+                resources.addAll(((CollectTask)result).join());
+            } else {
+                resources.add((ResourceResponse)result);
+            }
+        }
+    }
+
+    protected void collectFile(String pathId, File file, String name, List<ResourceResponse> resources) throws IOException {
+        String key = file.getPath();
+        Entry entry = previous.get(key);
+        if (entry != null && entry.children != null) {
+            entry = null;
+        }
+        long lastModified = file.lastModified();
+        long length = file.length();
+        if (entry == null || entry.lastModified != lastModified || entry.length != length || lastModified + RACY_WINDOW > indexTime) {
+            if (lastModified == 0 && !file.exists()) {
+                // Removed while we were walking
+                return;
+            }
+            entry = new Entry();
+            entry.lastModified = lastModified;
+            entry.length = length;
+            entry.digest = DigestUtils.digest(file);
+            digestedFiles.incrementAndGet();
+        }
+        current.put(key, entry);
+        resources.add(response(pathId, name, entry));
+    }
+
+    private static ResourceResponse response(String pathId, String name, Entry entry) {
+        ResourceResponse rr = new ResourceResponse();
+        rr.pathId = pathId;
+        rr.name = name;
+        rr.lastModified = entry.lastModified;
+        rr.digest = entry.digest;
+        rr.length = entry.length;
+        return rr;
+    }
+
+    private ForkJoinPool pool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(parallelism);
+        }
+        return pool;
+    }
+
+    private void register(File dir) throws IOException {
+        if (watchService != null && !watchedDirs.containsKey(dir.getPath())) {
+            WatchKey key = dir.toPath().register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+            watchedDirs.put(dir.getPath(), key);
+            watchKeys.put(key, dir.getPath());
+        }
+    }
+
+    private void processWatchEvents() {
+        WatchKey key = watchService.poll();
+        while (key != null) {
+            processWatchKey(key);
+            key = watchService.poll();
+        }
+    }
+
+    private void processWatchKey(WatchKey key) {
+        String dir = watchKeys.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                allChanged = true;
+            } else if (dir != null && !isIndexFile(new File(dir, event.context().toString()))) {
+                changedDirs.add(dir);
+            }
+        }
+        if (dir != null) {
+            if (!key.reset()) {
+                changedDirs.add(dir);
+                // Directory is gone; its parent changed as well
+                watchedDirs.remove(dir);
+                watchKeys.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Collects resources of a file or of a directory and everything under it.
+     */
+    private class CollectTask extends RecursiveTask<List<ResourceResponse>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private String pathId;
+        private File file;
+        private String name;
+        // Null if not known
+        private Boolean directory;
+
+        private CollectTask(String pathId, File file, String name, Boolean directory) {
+            this.pathId = pathId;
+            this.file = file;
+            this.name = name;
+            this.directory = directory;
+        }
+
+        @Override
+        protected List<ResourceResponse> compute() {
+            List<ResourceResponse> resources = new ArrayList<ResourceResponse>();
+            try {
+                if (directory == null) {
+                    directory = file.isDirectory();
+                }
+                if (directory) {
+                    collectDirectory(pathId, file, name, resources);
+                } else if (name.length() > 0 || file.exists()) {
+                    collectFile(pathId, file, name, resources);
+                }
+            } catch (IOException e) {
+                throw new WalkException(e);
+            }
+            return resources;
+        }
+    }
+
+    private static class WalkException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private WalkException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public IOException getCause() {
+            return (IOException)super.getCause();
+        }
+    }
+
+    private boolean isIndexFile(File file) {
+        if (absoluteIndexFile == null) {
+            return false;
+        }
+        File absoluteFile = file.getAbsoluteFile();
+        return absoluteFile.equals(absoluteIndexFile) || absoluteFile.equals(absoluteIndexTempFile);
+    }
+
+    private static class Entry {
+        private long lastModified;
+        private long length;
+        private long digest;
+        // Null for files
+        private String[] children;
+    }
+}
@@ -0,0 +1,105 @@
+package org.ah.java.remotevmlauncher.client;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.ah.java.remotevmlauncher.protocol.CacheResponseProcessor.ResourceResponse;
+
+/**
+ * Compares walking and digesting classpath with one thread and with fork/join pool of all processors.
+ * Synthetic tree of 50k files (-Dfiles to change) in 10 classpath entries is created in temp dir;
+ * number of threads can be changed with -Dthreads.
+ * Resources are collected without index so each round lists every directory and digests every file;
+ * resulting lists are checked to be in the same order.
+ */
+public class ManualCollectResourcesBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int files = Integer.getInteger("files", 50000);
+        int rounds = Integer.getInteger("rounds", 3);
+        int processors = Integer.getInteger("threads", Runtime.getRuntime().availableProcessors());
+
+        File dir = new File(System.getProperty("java.io.tmpdir"), "remotevm-collect-benchmark");
+        System.out.println("Creating " + files + " files in " + dir.getAbsolutePath() + "...");
+        Map<String, String> classpath = createTree(dir, files);
+        try {
+            List<ResourceResponse> expected = null;
+            for (int round = 1; round <= rounds; round++) {
+                for (int parallelism : new int[] {1, processors}) {
+                    ResourceIndex index = new ResourceIndex(null);
+                    index.setParallelism(parallelism);
+                    List<ResourceResponse> resources = new ArrayList<ResourceResponse>();
+                    long now = System.nanoTime();
+                    index.startWalk();
+                    index.collect(classpath, resources);
+                    index.finishWalk();
+                    long time = (System.nanoTime() - now) / 1000000;
+                    index.close();
+
+                    if (expected == null) {
+                        expected = resources;
+                    } else {
+                        check(expected, resources);
+                    }
+                    System.out.println("Round " + round + " with " + parallelism + " thread(s): " + time + "ms, "
+                            + resources.size() + " resources, " + index.getListedDirs() + " directories");
+                }
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static Map<String, String> createTree(File dir, int files) throws IOException {
+        Map<String, String> classpath = new LinkedHashMap<String, String>();
+        Random random = new Random(1);
+        byte[] buffer = new byte[16384];
+        int entries = 10;
+        int filesPerDir = 50;
+        for (int i = 0; i < files; i++) {
+            int entry = i % entries;
+            int n = i / entries;
+            File entryDir = new File(dir, "module-" + entry);
+            classpath.put(Integer.toString(entry + 1), entryDir.getPath());
+            File file = new File(entryDir, "org/example/p" + (n / filesPerDir / 20) + "/q" + (n / filesPerDir % 20) + "/Class" + n + ".class");
+            file.getParentFile().mkdirs();
+            random.nextBytes(buffer);
+            FileOutputStream fos = new FileOutputStream(file);
+            try {
+                fos.write(buffer, 0, 512 + random.nextInt(buffer.length - 512));
+            } finally {
+                fos.close();
+            }
+        }
+        return classpath;
+    }
+
+    private static void check(List<ResourceResponse> expected, List<ResourceResponse> resources) {
+        if (expected.size() != resources.size()) {
+            throw new IllegalStateException("Collected " + resources.size() + " instead of " + expected.size() + " resources");
+        }
+        for (int i = 0; i < expected.size(); i++) {
+            ResourceResponse e = expected.get(i);
+            ResourceResponse r = resources.get(i);
+            if (!e.pathId.equals(r.pathId) || !e.name.equals(r.name) || e.digest != r.digest) {
+                throw new IllegalStateException("Resource " + i + " is " + r.pathId + ":" + r.name + " instead of " + e.pathId + ":" + e.name);
+            }
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,154 @@
+package org.ah.java.remotevmlauncher.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ah.java.remotevmlauncher.agent.Agent;
+import org.ah.java.remotevmlauncher.protocol.StreamProcessor;
+
+/**
+ * Compares launches with resources sent compressed and sent as they are. Each launch starts with empty
+ * remote cache so all of classpath of this VM is sent. Client talks to the agent through a proxy that
+ * counts bytes client has sent; time to main is taken when the first output of the application arrives.
+ * Number of rounds can be changed with -Drounds.
+ */
+public class ManualCompressionBenchmark {
+
+    private static volatile long firstOutput;
+
+    public static void main(String[] args) throws Exception {
+        int rounds = Integer.getInteger("rounds", 3);
+        final int agentPort = 8984;
+
+        LaunchRemote.DEFAULT_STREAM_PROCESSOR = new StreamProcessor() {
+            @Override public void invoke() {
+                if (firstOutput == 0) {
+                    firstOutput = System.nanoTime();
+                }
+            }
+        };
+
+        Thread agentThread = new Thread(new Runnable() { public void run() {
+            try {
+                Agent.main(Arrays.asList("-l", "localhost:" + agentPort).toArray(new String[0]));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }});
+        agentThread.start();
+        Thread.sleep(2000);
+
+        CountingProxy proxy = new CountingProxy(new InetSocketAddress("localhost", agentPort));
+        Thread proxyThread = new Thread(proxy);
+        proxyThread.setDaemon(true);
+        proxyThread.start();
+
+        File cacheDir = new File(".remotevm");
+        try {
+            for (int round = 1; round <= rounds; round++) {
+                for (int compression = 1; compression >= 0; compression--) {
+                    delete(new File(cacheDir, RemoteTestOutputClass.class.getName()));
+                    delete(new File(cacheDir, ".blobs"));
+                    proxy.sent.set(0);
+                    firstOutput = 0;
+
+                    long now = System.nanoTime();
+                    List<String> clientArgs = new ArrayList<String>(Arrays.asList("-d", "0", "-ncds"));
+                    if (compression == 0) {
+                        clientArgs.add("-nc");
+                    }
+                    clientArgs.add("localhost:" + proxy.getPort());
+                    clientArgs.add(RemoteTestOutputClass.class.getName());
+                    LaunchRemote.main(clientArgs.toArray(new String[0]));
+
+                    System.out.println("Round " + round + (compression == 1 ? " compressed:   " : " uncompressed: ")
+                            + "time to main " + (firstOutput - now) / 1000000 + "ms, "
+                            + proxy.sent.get() / 1024 + "KB sent");
+                }
+            }
+        } finally {
+            Agent.stopCurrentAgent();
+            proxy.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Passes connections to the agent and counts bytes going towards it.
+     */
+    private static class CountingProxy implements Runnable {
+
+        private InetSocketAddress agentAddress;
+        private ServerSocket serverSocket;
+        private AtomicLong sent = new AtomicLong();
+
+        private CountingProxy(InetSocketAddress agentAddress) throws IOException {
+            this.agentAddress = agentAddress;
+            serverSocket = new ServerSocket(0);
+        }
+
+        private int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        private void close() throws IOException {
+            serverSocket.close();
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    Socket client = serverSocket.accept();
+                    Socket agent = new Socket(agentAddress.getAddress(), agentAddress.getPort());
+                    client.setTcpNoDelay(true);
+                    agent.setTcpNoDelay(true);
+                    pump(client, agent, sent);
+                    pump(agent, client, new AtomicLong());
+                }
+            } catch (IOException ignore) {
+            }
+        }
+
+        private static void pump(final Socket from, final Socket to, final AtomicLong counter) {
+            Thread thread = new Thread(new Runnable() { public void run() {
+                try {
+                    InputStream in = from.getInputStream();
+                    OutputStream out = to.getOutputStream();
+                    byte[] buffer = new byte[65536];
+                    int r = in.read(buffer);
+                    while (r >= 0) {
+                        counter.addAndGet(r);
+                        out.write(buffer, 0, r);
+                        r = in.read(buffer);
+                    }
+                } catch (IOException ignore) {
+                } finally {
+                    try {
+                        from.close();
+                        to.close();
+                    } catch (IOException ignore) { }
+                }
+            }});
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package org.ah.java.remotevmlauncher.client;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.ah.java.remotevmlauncher.agent.Agent;
+import org.ah.java.remotevmlauncher.protocol.StreamProcessor;
+
+/**
+ * Runs many sessions at once against agents with different number of selector workers and prints aggregate
+ * throughput of each. Applications are run inside of agent so there is no VM started per session; each
+ * loads its classes remotely and prints given number of KB. Number of sessions, KB per session and worker
+ * counts can be changed with -Dsessions, -Dkb and -Dworkers (comma separated); remote classpath
+ * with -Dclasspath.
+ */
+public class ManualSelectorWorkersBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int sessions = Integer.getInteger("sessions", 100);
+        int kb = Integer.getInteger("kb", 1024);
+        String classpath = System.getProperty("classpath", "target/test-classes");
+        List<Integer> workerCounts = new ArrayList<Integer>();
+        for (String count : System.getProperty("workers", "1,2,4," + Runtime.getRuntime().availableProcessors()).split(",")) {
+            if (!workerCounts.contains(Integer.parseInt(count))) {
+                workerCounts.add(Integer.parseInt(count));
+            }
+        }
+
+        // Output isn't looked at; only time it took to get all of it through is
+        LaunchRemote.DEFAULT_STREAM_PROCESSOR = new StreamProcessor() {
+            @Override public void invoke() { }
+        };
+
+        int port = 8981;
+        for (int round = 0; round < 2; round++) {
+            for (int workers : workerCounts) {
+                port++;
+                final Agent agent = new Agent();
+                agent.setListeningSocketAddress(new InetSocketAddress("localhost", port));
+                agent.setSelectorWorkerCount(workers);
+                agent.setClassDataSharingEnabled(false);
+                agent.setInAgentAllowed(true);
+                Thread agentThread = new Thread(new Runnable() { public void run() {
+                    try {
+                        agent.start();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }});
+                agentThread.start();
+                Thread.sleep(1000);
+
+                final String[] clientArgs = Arrays.asList(
+                        "-d", "0",
+                        "-ia",
+                        "-clt", "REMOTE_RESOURCES",
+                        "-rcp", classpath,
+                        "localhost:" + port,
+                        Output.class.getName(),
+                        "--",
+                        Integer.toString(kb)
+                ).toArray(new String[0]);
+
+                long now = System.nanoTime();
+                Thread[] clients = new Thread[sessions];
+                for (int i = 0; i < sessions; i++) {
+                    clients[i] = new Thread(new Runnable() { public void run() {
+                        try {
+                            LaunchRemote.main(clientArgs);
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    }});
+                    clients[i].start();
+                }
+                for (Thread client : clients) {
+                    client.join();
+                }
+                long wall = (System.nanoTime() - now) / 1000000;
+
+                agent.stop();
+                agentThread.join();
+
+                System.out.println((round == 0 ? "Warm up " : "Round   ") + workers + " workers: " + sessions + " sessions in " + wall + "ms, "
+                        + ((long)sessions * kb * 1000 / 1024 / Math.max(wall, 1)) + "MB/s of output");
+            }
+        }
+    }
+
+    /**
+     * Application run by each session; prints as many KB as it is given.
+     */
+    public static class Output {
+
+        public static void main(String[] args) {
+            char[] line = new char[1023];
+            Arrays.fill(line, 'x');
+            String s = new String(line);
+            int kb = Integer.parseInt(args[0]);
+            for (int i = 0; i < kb; i++) {
+                System.out.println(s);
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package org.ah.java.remotevmlauncher.client;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+
+import org.ah.java.remotevmlauncher.protocol.DataProcessor;
+import org.ah.java.remotevmlauncher.protocol.ProtocolStateMachine;
+import org.ah.java.remotevmlauncher.protocol.ResourceProcessor;
+import org.ah.java.remotevmlauncher.protocol.codec.ResourceCodec;
+import org.ah.java.remotevmlauncher.protocol.codec.ResourceCodecs;
+
+/**
+ * Compares sending resources copied through buffers with sending them with FileChannel.transferTo,
+ * over loopback. Classpath is made of jar files of random content adding up to 1GB. Size (in MB),
+ * number of files and number of rounds can be changed with -Dsize, -Dfiles and -Drounds.
+ * Wall time and CPU time of sending thread are printed for both ways.
+ */
+public class ManualZeroCopyBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        long size = Long.getLong("size", 1024) * 1024 * 1024;
+        int files = Integer.getInteger("files", 64);
+        int rounds = Integer.getInteger("rounds", 3);
+
+        File dir = new File(System.getProperty("java.io.tmpdir"), "remotevm-zero-copy-benchmark");
+        System.out.println("Creating " + files + " files in " + dir.getAbsolutePath() + "...");
+        File[] classpath = createFiles(dir, files, size / files);
+        try {
+            ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+            serverSocketChannel.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+            SocketChannel socketChannel = SocketChannel.open(serverSocketChannel.socket().getLocalSocketAddress());
+            SocketChannel launcherSocketChannel = serverSocketChannel.accept();
+
+            Receiver receiver = new Receiver(new DataInputStream(launcherSocketChannel.socket().getInputStream()));
+            Thread receiverThread = new Thread(receiver);
+            receiverThread.setDaemon(true);
+            receiverThread.start();
+
+            DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(socketChannel.socket().getOutputStream(), 65536));
+            ResourceProcessor resourceProcessor = new ResourceProcessor();
+            ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+            for (int round = 1; round <= rounds; round++) {
+                for (int zeroCopy = 0; zeroCopy < 2; zeroCopy++) {
+                    long cpu = threadMXBean.getCurrentThreadCpuTime();
+                    long now = System.nanoTime();
+                    for (File file : classpath) {
+                        FileInputStream fis = new FileInputStream(file);
+                        try {
+                            if (zeroCopy == 1) {
+                                resourceProcessor.send(dataOutputStream, socketChannel, fis.getChannel(), file.length());
+                            } else {
+                                resourceProcessor.send(dataOutputStream, fis, file.length(), ResourceCodecs.NONE);
+                            }
+                        } finally {
+                            fis.close();
+                        }
+                    }
+                    receiver.waitFor(classpath.length);
+                    long wall = (System.nanoTime() - now) / 1000000;
+                    cpu = (threadMXBean.getCurrentThreadCpuTime() - cpu) / 1000000;
+                    System.out.println("Round " + round + (zeroCopy == 1 ? " transferTo: " : " buffered:   ")
+                            + wall + "ms, sending thread CPU " + cpu + "ms, "
+                            + (size / 1024 / 1024 * 1000 / Math.max(wall, 1)) + "MB/s");
+                }
+            }
+            socketChannel.close();
+            launcherSocketChannel.close();
+            serverSocketChannel.close();
+        } finally {
+            for (File file : classpath) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private static File[] createFiles(File dir, int files, long fileSize) throws IOException {
+        dir.mkdirs();
+        Random random = new Random(1);
+        byte[] buffer = new byte[1024 * 1024];
+        File[] result = new File[files];
+        for (int i = 0; i < files; i++) {
+            result[i] = new File(dir, "lib-" + i + ".jar");
+            FileOutputStream fos = new FileOutputStream(result[i]);
+            try {
+                long left = fileSize;
+                while (left > 0) {
+                    random.nextBytes(buffer);
+                    int s = (int)Math.min(left, buffer.length);
+                    fos.write(buffer, 0, s);
+                    left = left - s;
+                }
+            } finally {
+                fos.close();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Launcher side; counts and discards received resources.
+     */
+    private static class Receiver implements Runnable {
+
+        private DataInputStream dataInputStream;
+        private ProtocolStateMachine stateMachine = new ProtocolStateMachine();
+        private int received = 0;
+
+        private Receiver(DataInputStream dataInputStream) {
+            this.dataInputStream = dataInputStream;
+            DataProcessor dataProcessor = new DataProcessor();
+            ResourceProcessor resourceProcessor = new ResourceProcessor(dataProcessor) {
+                @Override public OutputStream loadResource(long size, ResourceCodec codec) throws IOException {
+                    return new OutputStream() {
+                        @Override public void write(int b) { }
+                        @Override public void write(byte[] b, int off, int len) { }
+                        @Override public void close() {
+                            received();
+                        }
+                    };
+                }
+            };
+            stateMachine.register(dataProcessor);
+            stateMachine.register(resourceProcessor);
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    stateMachine.processInput(dataInputStream);
+                }
+            } catch (IOException ignore) {
+            }
+        }
+
+        private synchronized void received() {
+            received++;
+            notifyAll();
+        }
+
+        private synchronized void waitFor(int count) throws InterruptedException {
+            while (received < count) {
+                wait();
+            }
+            received = 0;
+        }
+    }
+}
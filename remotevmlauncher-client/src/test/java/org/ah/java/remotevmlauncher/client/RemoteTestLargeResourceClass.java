@@ -0,0 +1,45 @@
+package org.ah.java.remotevmlauncher.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Enumeration;
+
+import org.ah.java.remotevmlauncher.XXHash64;
+
+public class RemoteTestLargeResourceClass {
+
+    public static void main(String[] args) throws Exception {
+        // Last occurrence is the one of launcher's class loader; resource might be on launched VM's classpath too
+        URL url = null;
+        Enumeration<URL> urls = Thread.currentThread().getContextClassLoader().getResources(args[0]);
+        while (urls.hasMoreElements()) {
+            url = urls.nextElement();
+        }
+        if (url == null) {
+            System.out.println("Missing " + args[0]);
+            return;
+        }
+        InputStream is;
+        try {
+            is = url.openStream();
+        } catch (IOException e) {
+            System.out.println("Failed " + e.getMessage());
+            return;
+        }
+        XXHash64 hash = new XXHash64();
+        long length = 0;
+        try {
+            byte[] buffer = new byte[65536];
+            int r = is.read(buffer);
+            while (r >= 0) {
+                hash.update(buffer, 0, r);
+                length = length + r;
+                r = is.read(buffer);
+            }
+        } finally {
+            is.close();
+        }
+        System.out.println(length + " " + Long.toHexString(hash.getValue()));
+    }
+}
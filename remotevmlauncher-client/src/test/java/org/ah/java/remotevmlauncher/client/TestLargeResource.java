@@ -0,0 +1,166 @@
+package org.ah.java.remotevmlauncher.client;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.ah.java.remotevmlauncher.DigestUtils;
+import org.ah.java.remotevmlauncher.JavaLoggingUtils;
+import org.ah.java.remotevmlauncher.agent.Agent;
+import org.ah.java.remotevmlauncher.protocol.StreamProcessor;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Pushes sparse resource larger than 4GB through the agent on loopback interface.
+ */
+public class TestLargeResource {
+
+    private static final long SIZE = 4L * 1024 * 1024 * 1024 + 12345;
+
+    private static final int DEBUG_LEVEL = 0;
+
+    @Test
+    public void testLargeResource() throws Exception {
+        String os = System.getProperty("os.name").toLowerCase();
+        if (os.indexOf("windows") < 0) {
+            File largeResource = largeResourceFile();
+            File cacheDir = new File(".remotevm", RemoteTestLargeResourceClass.class.getName());
+            File blob = null;
+            try {
+                createLargeResource(largeResource);
+                long digest = DigestUtils.digest(largeResource);
+                blob = blobFile(digest, SIZE);
+                String expected = SIZE + " " + Long.toHexString(digest) + "\n";
+
+                Assert.assertEquals(expected, launch(largeResource));
+            } finally {
+                largeResource.delete();
+                delete(cacheDir);
+                if (blob != null) {
+                    blob.delete();
+                    // Removed only if no other blob is in it
+                    blob.getParentFile().delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Resources loaded remotely are kept in memory, which can't hold resource this big. Application is
+     * to get an error instead of launcher failing to allocate it.
+     */
+    @Test
+    public void testLargeResourceInMemory() throws Exception {
+        String os = System.getProperty("os.name").toLowerCase();
+        if (os.indexOf("windows") < 0) {
+            File largeResource = largeResourceFile();
+            File cacheDir = new File(".remotevm", RemoteTestLargeResourceClass.class.getName());
+            try {
+                createLargeResource(largeResource);
+
+                String result = launch(largeResource, "-clt", "REMOTE_RESOURCES");
+                Assert.assertTrue(result, result.startsWith("Failed Resource "));
+                Assert.assertTrue(result, result.indexOf(largeResource.getName() + " of " + SIZE + " bytes is too big to be kept in memory") > 0);
+            } finally {
+                largeResource.delete();
+                delete(cacheDir);
+            }
+        }
+    }
+
+    /**
+     * Resource is placed next to test classes so it is part of client's classpath.
+     */
+    private File largeResourceFile() throws Exception {
+        File classesDir = new File(getClass().getResource(getClass().getSimpleName() + ".class").toURI()).getParentFile();
+        for (int i = 0; i < getClass().getPackage().getName().split("\\.").length; i++) {
+            classesDir = classesDir.getParentFile();
+        }
+        return new File(classesDir, "large-resource.bin");
+    }
+
+    /**
+     * @return file launcher keeps received content in, shared by all applications
+     */
+    private static File blobFile(long digest, long length) {
+        String hex = DigestUtils.toHex(digest);
+        return new File(new File(new File(".remotevm", ".blobs"), hex.substring(0, 2)), hex + "-" + length);
+    }
+
+    private static void createLargeResource(File largeResource) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(largeResource, "rw");
+        try {
+            raf.setLength(SIZE);
+            // Markers around int and unsigned int boundaries, rest of the file is hole
+            long[] markers = new long[] {0, Integer.MAX_VALUE, Integer.MAX_VALUE + 1L, 0xffffffffL, 0x100000000L, SIZE - 1};
+            for (int i = 0; i < markers.length; i++) {
+                raf.seek(markers[i]);
+                raf.write(i + 1);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return what application printed
+     */
+    private static String launch(File largeResource, String... clientArgs) throws Exception {
+        JavaLoggingUtils.setupSimpleConsoleLogging(DEBUG_LEVEL);
+
+        final String portStr = "localhost:8992";
+
+        Thread agentThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Agent.main(Arrays.asList("-l", portStr).toArray(new String[0]));
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        agentThread.start();
+
+        Thread.sleep(2000);
+
+        StringWriter result = new StringWriter();
+        final PrintWriter out = new PrintWriter(result);
+
+        LaunchRemote.DEFAULT_STREAM_PROCESSOR = new StreamProcessor() {
+            @Override public void invoke() {
+                String received = getReceived();
+                out.print(received);
+                System.out.print(received);
+            }
+        };
+        List<String> args = new ArrayList<String>(Arrays.asList("-d", Integer.toString(DEBUG_LEVEL)));
+        args.addAll(Arrays.asList(clientArgs));
+        args.addAll(Arrays.asList(
+                portStr,
+                RemoteTestLargeResourceClass.class.getName(),
+                "--",
+                largeResource.getName()));
+        LaunchRemote.main(args.toArray(new String[0]));
+
+        Agent.stopCurrentAgent();
+        agentThread.join();
+
+        out.flush();
+        return result.toString();
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,145 @@
+package org.ah.java.remotevmlauncher.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import org.ah.java.remotevmlauncher.protocol.DataProcessor;
+import org.ah.java.remotevmlauncher.protocol.ProtocolStateMachine;
+import org.ah.java.remotevmlauncher.protocol.ResourceProcessor;
+import org.ah.java.remotevmlauncher.protocol.codec.DeflateCodec;
+import org.ah.java.remotevmlauncher.protocol.codec.ResourceCodec;
+import org.ah.java.remotevmlauncher.protocol.codec.ResourceCodecs;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Sends resources through {@link ResourceProcessor} with and without codec and checks what comes out
+ * on the other side and how many bytes it took on the wire.
+ */
+public class TestResourceCodecs {
+
+    @Test
+    public void testDeflateRoundTrip() throws Exception {
+        byte[] content = compressibleContent(200000);
+
+        Received plain = sendAndReceive(content, ResourceCodecs.NONE);
+        Received deflated = sendAndReceive(content, ResourceCodecs.get(DeflateCodec.NAME));
+
+        Assert.assertArrayEquals(content, plain.content);
+        Assert.assertArrayEquals(content, deflated.content);
+        Assert.assertEquals(DeflateCodec.ID, deflated.codec.getId());
+        Assert.assertEquals(content.length, plain.wireBytes);
+        Assert.assertTrue("Deflated to " + deflated.wireBytes + " of " + content.length + " bytes", deflated.wireBytes * 4 < content.length);
+    }
+
+    @Test
+    public void testDeflateOfIncompressibleContent() throws Exception {
+        byte[] content = new byte[100000];
+        new Random(1).nextBytes(content);
+
+        Received deflated = sendAndReceive(content, ResourceCodecs.get(DeflateCodec.NAME));
+
+        Assert.assertArrayEquals(content, deflated.content);
+    }
+
+    @Test
+    public void testEmptyAndMissingResource() throws Exception {
+        Received empty = sendAndReceive(new byte[0], ResourceCodecs.get(DeflateCodec.NAME));
+        Assert.assertEquals(0, empty.size);
+        Assert.assertEquals(0, empty.content.length);
+
+        // Missing resource is always sent with no codec
+        Received missing = sendAndReceive(null, ResourceCodecs.get(DeflateCodec.NAME));
+        Assert.assertEquals(-1, missing.size);
+        Assert.assertEquals(ResourceCodecs.NONE, missing.codec);
+        Assert.assertEquals(0, missing.content.length);
+    }
+
+    @Test
+    public void testSelect() {
+        ResourceCodec deflate = ResourceCodecs.get(DeflateCodec.NAME);
+        Assert.assertEquals(deflate, ResourceCodecs.select("Main.class", 10000, Arrays.asList("unknown", DeflateCodec.NAME)));
+        Assert.assertEquals(ResourceCodecs.NONE, ResourceCodecs.select("Main.class", 10000, Collections.<String>emptyList()));
+        Assert.assertEquals(ResourceCodecs.NONE, ResourceCodecs.select("Main.class", 10000, Arrays.asList("unknown")));
+        Assert.assertEquals(ResourceCodecs.NONE, ResourceCodecs.select("Main.class", ResourceCodecs.MIN_SIZE_TO_ENCODE - 1, Arrays.asList(DeflateCodec.NAME)));
+        Assert.assertEquals(ResourceCodecs.NONE, ResourceCodecs.select("lib.JAR", 10000, Arrays.asList(DeflateCodec.NAME)));
+        Assert.assertEquals(ResourceCodecs.NONE, ResourceCodecs.select("icon.png", 10000, Arrays.asList(DeflateCodec.NAME)));
+    }
+
+    @Test
+    public void testCodecIds() {
+        Assert.assertEquals(ResourceCodecs.NONE, ResourceCodecs.get(0));
+        Assert.assertEquals(DeflateCodec.NAME, ResourceCodecs.get(DeflateCodec.ID).getName());
+        Assert.assertNull(ResourceCodecs.get("unknown"));
+        try {
+            ResourceCodecs.get(200);
+            Assert.fail("Unknown codec id was accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /**
+     * Something like a class file - names and snippets repeated with small differences.
+     */
+    static byte[] compressibleContent(int size) {
+        Random random = new Random(1);
+        String[] words = new String[] {"java/lang/String", "org/ah/java/remotevmlauncher/", "getResource", "Ljava/util/List;",
+                "<init>", "LineNumberTable", "LocalVariableTable", "(Ljava/lang/Object;)V", "StackMapTable", "Code"};
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        while (out.size() < size) {
+            byte[] word = words[random.nextInt(words.length)].getBytes();
+            out.write(word, 0, word.length);
+            out.write(random.nextInt(16));
+        }
+        return Arrays.copyOf(out.toByteArray(), size);
+    }
+
+    private static Received sendAndReceive(byte[] content, ResourceCodec codec) throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(wire);
+        ResourceProcessor sender = new ResourceProcessor();
+        if (content == null) {
+            sender.send(dos, null, -1, codec);
+        } else {
+            sender.send(dos, new ByteArrayInputStream(content), content.length, codec);
+        }
+
+        final Received received = new Received();
+        final DataProcessor dataProcessor = new DataProcessor();
+        ResourceProcessor receiver = new ResourceProcessor(dataProcessor) {
+            @Override public OutputStream loadResource(long size, ResourceCodec codec) {
+                received.size = size;
+                received.codec = codec;
+                return new ByteArrayOutputStream() {
+                    @Override public void close() {
+                        received.content = toByteArray();
+                    }
+                };
+            }
+        };
+        ProtocolStateMachine stateMachine = new ProtocolStateMachine();
+        stateMachine.register(dataProcessor);
+        stateMachine.register(receiver);
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(wire.toByteArray()));
+        while (dis.available() > 0) {
+            stateMachine.processInput(dis);
+        }
+        Assert.assertNotNull("Resource wasn't finished", received.content);
+        received.wireBytes = dataProcessor.getReceived();
+        return received;
+    }
+
+    private static class Received {
+        private long size;
+        private ResourceCodec codec;
+        private byte[] content;
+        private long wireBytes;
+    }
+}
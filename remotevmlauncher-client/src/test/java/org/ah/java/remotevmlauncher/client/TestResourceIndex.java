@@ -0,0 +1,158 @@
+package org.ah.java.remotevmlauncher.client;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.ah.java.remotevmlauncher.protocol.CacheResponseProcessor.ResourceResponse;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Walks a tree of classpath entries with one and with more threads and checks that resources
+ * come out in the same order - order of classpath entries and, within an entry, order of names.
+ */
+public class TestResourceIndex {
+
+    @Test
+    public void testParallelWalkOrder() throws Exception {
+        File dir = createTempDir();
+        try {
+            Map<String, String> classpath = createTree(dir, 2000);
+            List<ResourceResponse> sequential = collect(new ResourceIndex(null), 1, classpath);
+            Assert.assertEquals(2000, sequential.size());
+            assertSortedWithinEntries(new ArrayList<String>(classpath.keySet()), sequential);
+
+            for (int parallelism : new int[] {2, 4, 8}) {
+                assertSameResources(sequential, collect(new ResourceIndex(null), parallelism, classpath));
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testParallelWalkOrderWithIndex() throws Exception {
+        File dir = createTempDir();
+        try {
+            Map<String, String> classpath = createTree(dir, 2000);
+            List<ResourceResponse> sequential = collect(new ResourceIndex(null), 1, classpath);
+
+            ResourceIndex index = new ResourceIndex(new File(dir, "index"));
+            index.setParallelism(4);
+            try {
+                for (int round = 0; round < 2; round++) {
+                    index.load();
+                    List<ResourceResponse> resources = new ArrayList<ResourceResponse>();
+                    index.startWalk();
+                    index.collect(classpath, resources);
+                    index.finishWalk();
+                    index.save();
+                    // Second round reuses entries loaded from the index
+                    assertSameResources(sequential, resources);
+                }
+            } finally {
+                index.close();
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static List<ResourceResponse> collect(ResourceIndex index, int parallelism, Map<String, String> classpath) throws IOException {
+        index.setParallelism(parallelism);
+        try {
+            List<ResourceResponse> resources = new ArrayList<ResourceResponse>();
+            index.startWalk();
+            index.collect(classpath, resources);
+            index.finishWalk();
+            return resources;
+        } finally {
+            index.close();
+        }
+    }
+
+    private static void assertSameResources(List<ResourceResponse> expected, List<ResourceResponse> resources) {
+        Assert.assertEquals(expected.size(), resources.size());
+        for (int i = 0; i < expected.size(); i++) {
+            ResourceResponse e = expected.get(i);
+            ResourceResponse r = resources.get(i);
+            Assert.assertEquals("Resource " + i, e.pathId + ":" + e.name, r.pathId + ":" + r.name);
+            Assert.assertEquals("Digest of " + r.name, e.digest, r.digest);
+            Assert.assertEquals("Length of " + r.name, e.length, r.length);
+        }
+    }
+
+    private static void assertSortedWithinEntries(List<String> pathIds, List<ResourceResponse> resources) {
+        for (int i = 1; i < resources.size(); i++) {
+            ResourceResponse previous = resources.get(i - 1);
+            ResourceResponse r = resources.get(i);
+            int order = pathIds.indexOf(r.pathId) - pathIds.indexOf(previous.pathId);
+            Assert.assertTrue("Resource " + i + " is " + r.pathId + ":" + r.name + " after " + previous.pathId + ":" + previous.name,
+                    order > 0 || order == 0 && comparePaths(previous.name, r.name) < 0);
+        }
+    }
+
+    /**
+     * Names are compared segment by segment as directory entries are sorted by name.
+     */
+    private static int comparePaths(String a, String b) {
+        String[] as = a.split("/");
+        String[] bs = b.split("/");
+        for (int i = 0; i < Math.min(as.length, bs.length); i++) {
+            int c = as[i].compareTo(bs[i]);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return as.length - bs.length;
+    }
+
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile("remotevm-index", "");
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+    private static Map<String, String> createTree(File dir, int files) throws IOException {
+        Map<String, String> classpath = new LinkedHashMap<String, String>();
+        Random random = new Random(1);
+        byte[] buffer = new byte[1024];
+        int entries = 4;
+        for (int i = 0; i < files; i++) {
+            // Entries in reverse order of their names so order of classpath is not order of names
+            int entry = entries - 1 - i % entries;
+            int n = i / entries;
+            File entryDir = new File(dir, "module-" + entry);
+            if (!classpath.containsValue(entryDir.getPath())) {
+                classpath.put(Integer.toString(classpath.size() + 1), entryDir.getPath());
+            }
+            File file = new File(entryDir, "org/example/p" + (n % 7) + "/q" + (n % 5) + "/Class" + n + ".class");
+            file.getParentFile().mkdirs();
+            random.nextBytes(buffer);
+            FileOutputStream fos = new FileOutputStream(file);
+            try {
+                fos.write(buffer, 0, random.nextInt(buffer.length));
+            } finally {
+                fos.close();
+            }
+        }
+        return classpath;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -3,25 +3,25 @@ package org.ah.java.remotevmlauncher;
 public class ByteUtils {
 
     public static long toLong(byte[] buf, int pos) {
-        return ((long)toUnsignedByte(buf, pos + 0)) << 56 
-             + ((long)toUnsignedByte(buf, pos + 1)) << 48 
-             + ((long)toUnsignedByte(buf, pos + 2)) << 40 
-             + ((long)toUnsignedByte(buf, pos + 3)) << 32 
-             + ((long)toUnsignedByte(buf, pos + 4)) << 24 
-             + ((long)toUnsignedByte(buf, pos + 5)) << 16 
-             + ((long)toUnsignedByte(buf, pos + 6)) << 8 
-             + ((long)toUnsignedByte(buf, pos + 7));
+        return (((long)toUnsignedByte(buf, pos + 0)) << 56)
+             | (((long)toUnsignedByte(buf, pos + 1)) << 48)
+             | (((long)toUnsignedByte(buf, pos + 2)) << 40)
+             | (((long)toUnsignedByte(buf, pos + 3)) << 32)
+             | (((long)toUnsignedByte(buf, pos + 4)) << 24)
+             | (((long)toUnsignedByte(buf, pos + 5)) << 16)
+             | (((long)toUnsignedByte(buf, pos + 6)) << 8)
+             | ((long)toUnsignedByte(buf, pos + 7));
     }
 
     public static int toInt(byte[] buf, int pos) {
-        return toUnsignedByte(buf, pos) << 24 
-                + toUnsignedByte(buf, pos + 1) << 16 
-                + toUnsignedByte(buf, pos + 2) << 8 
-                + toUnsignedByte(buf, pos + 3);
+        return (toUnsignedByte(buf, pos) << 24)
+                | (toUnsignedByte(buf, pos + 1) << 16)
+                | (toUnsignedByte(buf, pos + 2) << 8)
+                | toUnsignedByte(buf, pos + 3);
     }
 
     public static short toShort(byte[] buf, int pos) {
-        return (short)(toUnsignedByte(buf, pos) << 8 + toUnsignedByte(buf, pos + 1));
+        return (short)((toUnsignedByte(buf, pos) << 8) | toUnsignedByte(buf, pos + 1));
     }
 
     public static int toUnsignedByte(byte[] buf, int pos) {
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2013 Creative Sphere Limited.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.ah.java.remotevmlauncher;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Streams over blocking socket channel. Unlike streams of {@link SocketChannel#socket()} (and {@link java.nio.channels.Channels})
+ * on older VMs, they don't lock on channel's blocking lock, so one thread can read while other writes.
+ * They don't buffer anything so reading from the channel directly can be mixed with reading from the stream.
+ *
+ * @author Daniel Sendula
+ */
+public class ChannelStreams {
+
+    public static InputStream newInputStream(final ReadableByteChannel channel) {
+        return new InputStream() {
+            private byte[] one = new byte[1];
+
+            @Override
+            public int read() throws IOException {
+                int r = read(one, 0, 1);
+                if (r < 0) {
+                    return -1;
+                }
+                return one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                return channel.read(ByteBuffer.wrap(b, off, len));
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    public static OutputStream newOutputStream(final WritableByteChannel channel) {
+        return new OutputStream() {
+            private byte[] one = new byte[1];
+
+            @Override
+            public void write(int b) throws IOException {
+                one[0] = (byte)b;
+                write(one, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                while (buffer.hasRemaining()) {
+                    if (channel.write(buffer) < 0) {
+                        throw new EOFException();
+                    }
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+}
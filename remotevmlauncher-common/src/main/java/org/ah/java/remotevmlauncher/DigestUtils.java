@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2013 Creative Sphere Limited.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.ah.java.remotevmlauncher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Content digest utilities. Resources are compared by their content digest
+ * (and length) and not by time they were last modified.
+ *
+ * @author Daniel Sendula
+ */
+public class DigestUtils {
+
+    public static long digest(File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            return digest(fis);
+        } finally {
+            fis.close();
+        }
+    }
+
+    public static long digest(InputStream is) throws IOException {
+        XXHash64 hash = new XXHash64();
+        byte[] buffer = new byte[65536];
+        int r = is.read(buffer);
+        while (r >= 0) {
+            hash.update(buffer, 0, r);
+            r = is.read(buffer);
+        }
+        return hash.getValue();
+    }
+
+    public static long digest(byte[] buffer, int off, int len) {
+        XXHash64 hash = new XXHash64();
+        hash.update(buffer, off, len);
+        return hash.getValue();
+    }
+
+    public static String toHex(long digest) {
+        String str = "0000000000000000" + Long.toHexString(digest);
+        return str.substring(str.length() - 16);
+    }
+
+    public static long fromHex(String hex) {
+        if (hex.length() != 16) {
+            throw new NumberFormatException("Digest must be 16 hex digits; " + hex);
+        }
+        return (Long.parseLong(hex.substring(0, 8), 16) << 32) | Long.parseLong(hex.substring(8), 16);
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2013 Creative Sphere Limited.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.ah.java.remotevmlauncher;
+
+import java.util.zip.Checksum;
+
+/**
+ * Streaming implementation of 64 bit xxHash (XXH64) with seed 0. It is used as content digest
+ * of resources. {@link #getValue()} can be called at any time and doesn't change state.
+ *
+ * @author Daniel Sendula
+ */
+public class XXHash64 implements Checksum {
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    private long v1;
+    private long v2;
+    private long v3;
+    private long v4;
+    private long totalLength;
+
+    // Bytes that didn't make full 32 byte stripe yet
+    private byte[] stripe = new byte[32];
+    private int stripeLength;
+
+    public XXHash64() {
+        reset();
+    }
+
+    public void reset() {
+        v1 = PRIME1 + PRIME2;
+        v2 = PRIME2;
+        v3 = 0;
+        v4 = -PRIME1;
+        totalLength = 0;
+        stripeLength = 0;
+    }
+
+    public void update(int b) {
+        stripe[stripeLength] = (byte)b;
+        stripeLength++;
+        totalLength++;
+        if (stripeLength == 32) {
+            processStripe(stripe, 0);
+            stripeLength = 0;
+        }
+    }
+
+    public void update(byte[] buf, int off, int len) {
+        totalLength = totalLength + len;
+        if (stripeLength > 0) {
+            int s = 32 - stripeLength;
+            if (s > len) {
+                s = len;
+            }
+            System.arraycopy(buf, off, stripe, stripeLength, s);
+            stripeLength = stripeLength + s;
+            off = off + s;
+            len = len - s;
+            if (stripeLength < 32) {
+                return;
+            }
+            processStripe(stripe, 0);
+            stripeLength = 0;
+        }
+        while (len >= 32) {
+            processStripe(buf, off);
+            off = off + 32;
+            len = len - 32;
+        }
+        if (len > 0) {
+            System.arraycopy(buf, off, stripe, 0, len);
+            stripeLength = len;
+        }
+    }
+
+    public long getValue() {
+        long h;
+        if (totalLength >= 32) {
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = mergeRound(h, v1);
+            h = mergeRound(h, v2);
+            h = mergeRound(h, v3);
+            h = mergeRound(h, v4);
+        } else {
+            h = PRIME5;
+        }
+        h = h + totalLength;
+
+        int pos = 0;
+        while (pos + 8 <= stripeLength) {
+            h = h ^ round(0, readLong(stripe, pos));
+            h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+            pos = pos + 8;
+        }
+        if (pos + 4 <= stripeLength) {
+            h = h ^ ((readInt(stripe, pos) & 0xFFFFFFFFL) * PRIME1);
+            h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+            pos = pos + 4;
+        }
+        while (pos < stripeLength) {
+            h = h ^ ((stripe[pos] & 0xFF) * PRIME5);
+            h = Long.rotateLeft(h, 11) * PRIME1;
+            pos++;
+        }
+
+        h = h ^ (h >>> 33);
+        h = h * PRIME2;
+        h = h ^ (h >>> 29);
+        h = h * PRIME3;
+        h = h ^ (h >>> 32);
+        return h;
+    }
+
+    private void processStripe(byte[] buf, int off) {
+        v1 = round(v1, readLong(buf, off));
+        v2 = round(v2, readLong(buf, off + 8));
+        v3 = round(v3, readLong(buf, off + 16));
+        v4 = round(v4, readLong(buf, off + 24));
+    }
+
+    private static long round(long acc, long input) {
+        acc = acc + input * PRIME2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME1;
+    }
+
+    private static long mergeRound(long acc, long v) {
+        acc = acc ^ round(0, v);
+        return acc * PRIME1 + PRIME4;
+    }
+
+    private static long readLong(byte[] buf, int pos) {
+        return (buf[pos] & 0xFFL)
+             | ((buf[pos + 1] & 0xFFL) << 8)
+             | ((buf[pos + 2] & 0xFFL) << 16)
+             | ((buf[pos + 3] & 0xFFL) << 24)
+             | ((buf[pos + 4] & 0xFFL) << 32)
+             | ((buf[pos + 5] & 0xFFL) << 40)
+             | ((buf[pos + 6] & 0xFFL) << 48)
+             | ((buf[pos + 7] & 0xFFL) << 56);
+    }
+
+    private static int readInt(byte[] buf, int pos) {
+        return (buf[pos] & 0xFF)
+             | ((buf[pos + 1] & 0xFF) << 8)
+             | ((buf[pos + 2] & 0xFF) << 16)
+             | ((buf[pos + 3] & 0xFF) << 24);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2013 Creative Sphere Limited.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.ah.java.remotevmlauncher.delta;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.ah.java.remotevmlauncher.DigestUtils;
+
+/**
+ * Signatures of fixed size blocks of a file - weak, rolling checksum and strong digest for each block.
+ * Last block can be shorter than block size.
+ *
+ * @author Daniel Sendula
+ */
+public class BlockSignatures {
+
+    public static final int MIN_BLOCK_SIZE = 2048;
+    public static final int MAX_BLOCK_SIZE = 131072;
+
+    private int blockSize;
+    private long length;
+    private int[] weak;
+    private long[] strong;
+
+    // Weak checksum hash table: head index of chain for bucket and next index in chain (-1 terminated)
+    private int[] heads;
+    private int[] next;
+
+    public BlockSignatures(int blockSize, long length, int[] weak, long[] strong) {
+        this.blockSize = blockSize;
+        this.length = length;
+        this.weak = weak;
+        this.strong = strong;
+        int size = Integer.highestOneBit(Math.max(weak.length, 1)) * 2;
+        heads = new int[size];
+        Arrays.fill(heads, -1);
+        next = new int[weak.length];
+        // Inserted backwards so chains keep blocks in ascending order
+        for (int i = weak.length - 1; i >= 0; i--) {
+            int bucket = bucket(weak[i]);
+            next[i] = heads[bucket];
+            heads[bucket] = i;
+        }
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public int getBlockCount() {
+        return weak.length;
+    }
+
+    public int getWeak(int block) {
+        return weak[block];
+    }
+
+    public long getStrong(int block) {
+        return strong[block];
+    }
+
+    public int getBlockLength(int block) {
+        long start = (long)block * blockSize;
+        return (int)Math.min(blockSize, length - start);
+    }
+
+    /**
+     * Finds block with given weak checksum, of given length and with strong digest of given data.
+     * Strong digest is calculated only if there is a block with the same weak checksum.
+     *
+     * @return index of block or -1
+     */
+    public int find(int weakChecksum, byte[] buf, int off, int len) {
+        int i = heads[bucket(weakChecksum)];
+        boolean strongCalculated = false;
+        long strongDigest = 0;
+        while (i >= 0) {
+            if (weak[i] == weakChecksum && getBlockLength(i) == len) {
+                if (!strongCalculated) {
+                    strongDigest = DigestUtils.digest(buf, off, len);
+                    strongCalculated = true;
+                }
+                if (strong[i] == strongDigest) {
+                    return i;
+                }
+            }
+            i = next[i];
+        }
+        return -1;
+    }
+
+    private int bucket(int weakChecksum) {
+        int h = weakChecksum ^ (weakChecksum >>> 16);
+        return h & (heads.length - 1);
+    }
+
+    /**
+     * Block size that keeps number of blocks around square root of file length.
+     */
+    public static int blockSizeFor(long length) {
+        long size = (long)Math.sqrt(length);
+        size = (size + 7) & ~7L;
+        if (size < MIN_BLOCK_SIZE) {
+            return MIN_BLOCK_SIZE;
+        } else if (size > MAX_BLOCK_SIZE) {
+            return MAX_BLOCK_SIZE;
+        }
+        return (int)size;
+    }
+
+    public static BlockSignatures calculate(File file) throws IOException {
+        long length = file.length();
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            return calculate(fis, length, blockSizeFor(length));
+        } finally {
+            fis.close();
+        }
+    }
+
+    public static BlockSignatures calculate(InputStream is, long length, int blockSize) throws IOException {
+        long count = (length + blockSize - 1) / blockSize;
+        if (count > Integer.MAX_VALUE) {
+            throw new IOException("Too many blocks; " + count);
+        }
+        int[] weak = new int[(int)count];
+        long[] strong = new long[(int)count];
+        byte[] buffer = new byte[blockSize];
+        for (int i = 0; i < count; i++) {
+            int len = (int)Math.min(blockSize, length - (long)i * blockSize);
+            int pos = 0;
+            while (pos < len) {
+                int r = is.read(buffer, pos, len - pos);
+                if (r < 0) {
+                    throw new IOException("Premature end of file; expected " + length + " bytes");
+                }
+                pos = pos + r;
+            }
+            weak[i] = RollingChecksum.checksum(buffer, 0, len);
+            strong[i] = DigestUtils.digest(buffer, 0, len);
+        }
+        return new BlockSignatures(blockSize, length, weak, strong);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2013 Creative Sphere Limited.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.ah.java.remotevmlauncher.delta;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import org.ah.java.remotevmlauncher.ByteUtils;
+
+/**
+ * Applies instructions produced by {@link DeltaEncoder} to old content. Instructions are written to
+ * this stream as they arrive, in pieces of any size, and new content is written to the given stream.
+ * Closing this stream closes that stream as well.
+ *
+ * @author Daniel Sendula
+ */
+public class DeltaDecoder extends OutputStream {
+
+    private static final int OPERATION = 0;
+    private static final int ARGUMENTS = 1;
+    private static final int LITERAL = 2;
+    private static final int ENDED = 3;
+
+    private RandomAccessFile old;
+    private int blockSize;
+    private OutputStream out;
+
+    private int state = OPERATION;
+    private int operation;
+    private byte[] arguments = new byte[8];
+    private int argumentsLength;
+    private int argumentsNeeded;
+    private int literal;
+
+    private byte[] buffer = new byte[65536];
+
+    /**
+     * @param old old content
+     * @param blockSize block size signatures were calculated with
+     * @param out stream new content is written to
+     */
+    public DeltaDecoder(RandomAccessFile old, int blockSize, OutputStream out) {
+        this.old = old;
+        this.blockSize = blockSize;
+        this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte)b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (state == OPERATION) {
+                operation = b[off] & 0xff;
+                off++;
+                len--;
+                argumentsLength = 0;
+                if (operation == DeltaEncoder.END) {
+                    state = ENDED;
+                } else if (operation == DeltaEncoder.COPY) {
+                    // Block index and number of blocks
+                    argumentsNeeded = 8;
+                    state = ARGUMENTS;
+                } else if (operation == DeltaEncoder.INSERT) {
+                    // Length of literal data
+                    argumentsNeeded = 4;
+                    state = ARGUMENTS;
+                } else {
+                    throw new IOException("Unknown delta instruction " + operation);
+                }
+            } else if (state == ARGUMENTS) {
+                int s = Math.min(argumentsNeeded - argumentsLength, len);
+                System.arraycopy(b, off, arguments, argumentsLength, s);
+                argumentsLength = argumentsLength + s;
+                off = off + s;
+                len = len - s;
+                if (argumentsLength == argumentsNeeded) {
+                    if (operation == DeltaEncoder.COPY) {
+                        copy(ByteUtils.toInt(arguments, 0), ByteUtils.toInt(arguments, 4));
+                        state = OPERATION;
+                    } else {
+                        literal = ByteUtils.toInt(arguments, 0);
+                        state = literal > 0 ? LITERAL : OPERATION;
+                    }
+                }
+            } else if (state == LITERAL) {
+                int s = Math.min(literal, len);
+                out.write(b, off, s);
+                literal = literal - s;
+                off = off + s;
+                len = len - s;
+                if (literal == 0) {
+                    state = OPERATION;
+                }
+            } else {
+                throw new IOException("Delta continues after its end");
+            }
+        }
+    }
+
+    /**
+     * Closes stream new content is written to. Fails if end of instructions wasn't reached.
+     */
+    @Override
+    public void close() throws IOException {
+        out.close();
+        if (state != ENDED) {
+            throw new IOException("Premature end of delta");
+        }
+    }
+
+    private void copy(int block, int count) throws IOException {
+        long start = (long)block * blockSize;
+        long len = Math.min((long)count * blockSize, old.length() - start);
+        if (start < 0 || len <= 0) {
+            throw new IOException("Delta refers to block " + block + " outside of old content");
+        }
+        old.seek(start);
+        while (len > 0) {
+            int s = (int)Math.min(len, buffer.length);
+            old.readFully(buffer, 0, s);
+            out.write(buffer, 0, s);
+            len = len - s;
+        }
+    }
+}
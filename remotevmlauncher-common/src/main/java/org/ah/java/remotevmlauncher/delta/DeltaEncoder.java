@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2013 Creative Sphere Limited.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.ah.java.remotevmlauncher.delta;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Produces instructions that rebuild new content out of blocks of old content (described with its
+ * {@link BlockSignatures}) and literal data. Instructions are:
+ * <ul>
+ * <li>{@link #COPY} block index, number of consecutive blocks</li>
+ * <li>{@link #INSERT} length, literal bytes</li>
+ * <li>{@link #END}</li>
+ * </ul>
+ * Content is read through a sliding buffer so memory used doesn't depend on size of content.
+ *
+ * @author Daniel Sendula
+ */
+public class DeltaEncoder {
+
+    public static final int END = 0;
+    public static final int COPY = 1;
+    public static final int INSERT = 2;
+
+    private BlockSignatures signatures;
+    private DataOutputStream out;
+
+    private int copyBlock = -1;
+    private int copyCount = 0;
+    private long literalBytes = 0;
+
+    public DeltaEncoder(BlockSignatures signatures, DataOutputStream out) {
+        this.signatures = signatures;
+        this.out = out;
+    }
+
+    /**
+     * Encodes given content, including {@link #END} instruction.
+     *
+     * @param is new content
+     * @return number of literal bytes that were sent
+     * @throws IOException
+     */
+    public long encode(InputStream is) throws IOException {
+        int blockSize = signatures.getBlockSize();
+        byte[] buf = new byte[blockSize * 2 + 65536];
+        int end = 0;
+        int pos = 0;
+        int literalStart = 0;
+        boolean eof = false;
+        boolean checksumValid = false;
+        RollingChecksum checksum = new RollingChecksum();
+
+        int lastBlockLength = 0;
+        if (signatures.getBlockCount() > 0) {
+            lastBlockLength = signatures.getBlockLength(signatures.getBlockCount() - 1);
+        }
+
+        while (true) {
+            // Rolling needs byte after the window as well
+            if (!eof && end - pos <= blockSize) {
+                insert(buf, literalStart, pos - literalStart);
+                System.arraycopy(buf, pos, buf, 0, end - pos);
+                end = end - pos;
+                pos = 0;
+                literalStart = 0;
+                while (!eof && end < buf.length) {
+                    int r = is.read(buf, end, buf.length - end);
+                    if (r < 0) {
+                        eof = true;
+                    } else {
+                        end = end + r;
+                    }
+                }
+            }
+            if (end - pos < blockSize) {
+                // Only shorter last block can match the tail
+                if (lastBlockLength > 0 && lastBlockLength < blockSize && end - pos >= lastBlockLength) {
+                    int tail = end - lastBlockLength;
+                    int block = signatures.find(RollingChecksum.checksum(buf, tail, lastBlockLength), buf, tail, lastBlockLength);
+                    if (block >= 0) {
+                        insert(buf, literalStart, tail - literalStart);
+                        copy(block);
+                        literalStart = end;
+                    }
+                }
+                insert(buf, literalStart, end - literalStart);
+                break;
+            }
+            if (!checksumValid) {
+                checksum.reset(buf, pos, blockSize);
+                checksumValid = true;
+            }
+            int block = signatures.find(checksum.getValue(), buf, pos, blockSize);
+            if (block >= 0) {
+                insert(buf, literalStart, pos - literalStart);
+                copy(block);
+                pos = pos + blockSize;
+                literalStart = pos;
+                checksumValid = false;
+            } else if (pos + blockSize < end) {
+                checksum.roll(buf[pos], buf[pos + blockSize]);
+                pos++;
+            } else {
+                pos++;
+                checksumValid = false;
+            }
+        }
+        flushCopy();
+        out.writeByte(END);
+        return literalBytes;
+    }
+
+    private void copy(int block) throws IOException {
+        if (copyCount > 0 && copyBlock + copyCount == block) {
+            copyCount++;
+        } else {
+            flushCopy();
+            copyBlock = block;
+            copyCount = 1;
+        }
+    }
+
+    private void flushCopy() throws IOException {
+        if (copyCount > 0) {
+            out.writeByte(COPY);
+            out.writeInt(copyBlock);
+            out.writeInt(copyCount);
+            copyCount = 0;
+        }
+    }
+
+    private void insert(byte[] buf, int off, int len) throws IOException {
+        if (len > 0) {
+            flushCopy();
+            out.writeByte(INSERT);
+            out.writeInt(len);
+            out.write(buf, off, len);
+            literalBytes = literalBytes + len;
+        }
+    }
+}
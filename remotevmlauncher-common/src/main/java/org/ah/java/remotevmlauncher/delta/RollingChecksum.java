@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2013 Creative Sphere Limited.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.ah.java.remotevmlauncher.delta;
+
+/**
+ * Weak, rolling checksum of a block (as used by rsync). Once calculated for a block
+ * it can be moved by one byte in constant time.
+ *
+ * @author Daniel Sendula
+ */
+public class RollingChecksum {
+
+    private int a;
+    private int b;
+    private int length;
+
+    public void reset(byte[] buf, int off, int len) {
+        a = 0;
+        b = 0;
+        length = len;
+        for (int i = 0; i < len; i++) {
+            int x = buf[off + i] & 0xff;
+            a = a + x;
+            b = b + (len - i) * x;
+        }
+    }
+
+    /**
+     * Moves window by one byte.
+     *
+     * @param out byte that leaves the window
+     * @param in byte that enters the window
+     */
+    public void roll(byte out, byte in) {
+        int x = out & 0xff;
+        a = a - x + (in & 0xff);
+        b = b - length * x + a;
+    }
+
+    public int getValue() {
+        return (a & 0xffff) | (b << 16);
+    }
+
+    public static int checksum(byte[] buf, int off, int len) {
+        RollingChecksum checksum = new RollingChecksum();
+        checksum.reset(buf, off, len);
+        return checksum.getValue();
+    }
+}
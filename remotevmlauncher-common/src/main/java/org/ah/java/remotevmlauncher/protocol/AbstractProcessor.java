@@ -1,22 +1,63 @@
 package org.ah.java.remotevmlauncher.protocol;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.List;
 
+import org.ah.java.remotevmlauncher.ByteUtils;
+
+/**
+ * Base for processors. Each payload goes to the wire as a frame: length of the rest of the frame (int),
+ * id of the processor (UTF) and payload itself. Frame is assembled with {@link #startFrame()} and sent with
+ * {@link #sendFrame(DataOutputStream)}.
+ * <p>
+ * Once other side said it understands them, single byte opcode is sent instead of the id
+ * (see {@link #setSendOpcode(boolean)}). Opcodes have highest bit set while ids, being short,
+ * always start with zero byte, so receiver can tell the two apart.
+ *
+ * @author Daniel Sendula
+ */
 public abstract class AbstractProcessor implements ProtocolProcessor {
 
     private String id;
+    private int opcode;
+    private boolean sendOpcode = false;
+
+    private FrameBuffer frameBuffer;
+    private DataOutputStream frame;
 
     protected AbstractProcessor(String id) {
+        this(id, 0);
+    }
+
+    protected AbstractProcessor(String id, int opcode) {
         this.id = id;
+        this.opcode = opcode;
     }
 
     public String getId() {
         return id;
     }
 
+    public int getOpcode() {
+        return opcode;
+    }
+
+    public boolean isSendOpcode() {
+        return sendOpcode;
+    }
+
+    /**
+     * Sets if frames are to start with opcode instead of id. It is ignored for processors without opcode.
+     *
+     * @param sendOpcode true if other side understands opcodes
+     */
+    public void setSendOpcode(boolean sendOpcode) {
+        this.sendOpcode = sendOpcode && opcode != 0;
+    }
+
     protected void receiveStringArray(DataInputStream dis, List<String> array) throws IOException {
         array.clear();
         int len = dis.readShort();
@@ -26,22 +67,63 @@ public abstract class AbstractProcessor implements ProtocolProcessor {
     }
 
     public void send(DataOutputStream dos) throws IOException {
-        dos.writeUTF(getId());
-        dos.flush();
+        startFrame();
+        sendFrame(dos);
     }
 
     protected void sendString(DataOutputStream dos, String s) throws IOException {
-        dos.writeUTF(getId());
-        dos.writeUTF(s);
-        dos.flush();
+        DataOutputStream frame = startFrame();
+        frame.writeUTF(s);
+        sendFrame(dos);
     }
 
     protected void sendStringArray(DataOutputStream dos, List<String> list) throws IOException {
-        dos.writeUTF(getId());
-        dos.writeShort(list.size());
+        DataOutputStream frame = startFrame();
+        frame.writeShort(list.size());
         for (String arg : list) {
-            dos.writeUTF(arg);
+            frame.writeUTF(arg);
+        }
+        sendFrame(dos);
+    }
+
+    /**
+     * Starts new frame with id (or opcode) of this processor already written in it.
+     *
+     * @return stream payload is to be written to
+     * @throws IOException
+     */
+    protected DataOutputStream startFrame() throws IOException {
+        if (frame == null) {
+            frameBuffer = new FrameBuffer();
+            frame = new DataOutputStream(frameBuffer);
+        }
+        frameBuffer.reset();
+        // Place for length of the frame
+        frame.writeInt(0);
+        if (sendOpcode) {
+            frame.writeByte(opcode);
+        } else {
+            frame.writeUTF(id);
         }
+        return frame;
+    }
+
+    /**
+     * Sends frame started with {@link #startFrame()}, in one write.
+     *
+     * @param dos output stream
+     * @throws IOException
+     */
+    protected void sendFrame(DataOutputStream dos) throws IOException {
+        frame.flush();
+        frameBuffer.send(dos);
         dos.flush();
     }
+
+    private static class FrameBuffer extends ByteArrayOutputStream {
+        private void send(DataOutputStream dos) throws IOException {
+            ByteUtils.fromInt(buf, 0, count - 4);
+            dos.write(buf, 0, count);
+        }
+    }
 }
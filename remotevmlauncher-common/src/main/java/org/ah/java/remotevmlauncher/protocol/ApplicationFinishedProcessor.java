@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2013 Creative Sphere Limited.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.ah.java.remotevmlauncher.protocol;
+
+import java.io.DataInputStream;
+
+
+/**
+ * Signals that application launcher started has finished. It is sent only in watch mode,
+ * where launcher waits for client to start application again once resources change.
+ *
+ * @author Daniel Sendula
+ */
+public class ApplicationFinishedProcessor extends AbstractProcessor {
+
+    public static final String ID = "AF";
+    public static final int OPCODE = 0x90;
+
+    private volatile boolean finished = false;
+
+    public ApplicationFinishedProcessor() {
+        super(ID, OPCODE);
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public void reset() {
+        finished = false;
+    }
+
+    public void receive(DataInputStream dis) {
+        finished = true;
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+}
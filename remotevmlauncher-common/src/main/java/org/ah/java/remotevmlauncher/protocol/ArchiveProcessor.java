@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2013 Creative Sphere Limited.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.ah.java.remotevmlauncher.protocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+import org.ah.java.remotevmlauncher.ByteUtils;
+import org.ah.java.remotevmlauncher.protocol.codec.ResourceCodec;
+import org.ah.java.remotevmlauncher.protocol.codec.ResourceCodecs;
+
+/**
+ * Archive payload - answer to {@link ArchiveRequestProcessor}. Frame consists of number of entries and
+ * id of codec archive is encoded with. Archive follows in {@link DataProcessor} frames as one stream
+ * (encoded as a whole) in which each entry is 64 bit size of resource (-1 if resource doesn't exist)
+ * followed by its content. Entries are in order resources were requested.
+ *
+ * @author Daniel Sendula
+ */
+public class ArchiveProcessor extends AbstractProcessor {
+
+    public static final String ID = "AS";
+    public static final int OPCODE = 0x92;
+
+    // Smaller entries are copied to data frames; bigger are transferred from files when possible
+    public static final long TRANSFER_MIN_SIZE = DataFrameOutputStream.DEFAULT_CHUNK_SIZE;
+
+    private DataProcessor dataProcessor;
+
+    /**
+     * Creates processor that can only send archives.
+     */
+    public ArchiveProcessor() {
+        this(null);
+    }
+
+    /**
+     * @param dataProcessor processor that receives content of archives
+     */
+    public ArchiveProcessor(DataProcessor dataProcessor) {
+        super(ID, OPCODE);
+        this.dataProcessor = dataProcessor;
+    }
+
+    public void receive(DataInputStream dis) throws IOException {
+        int count = dis.readInt();
+        ResourceCodec codec = ResourceCodecs.get(dis.readUnsignedByte());
+        OutputStream out = new ArchiveDecoder(count);
+        dataProcessor.expect(codec.decode(out));
+    }
+
+    /**
+     * Invoked when header of each archive entry is received.
+     *
+     * @param index index of the entry
+     * @param size size of resource or -1 if it doesn't exist
+     * @return stream content of resource is to be written to or null if it is to be skipped. It is closed
+     *         once all content of the entry is received.
+     * @throws IOException
+     */
+    public OutputStream loadEntry(int index, long size) throws IOException {
+        return null;
+    }
+
+    /**
+     * Selects codec archive is going to be encoded with. Archive is encoded if most of its content would
+     * be encoded had resources been sent one by one.
+     *
+     * @param files files of resources
+     * @param acceptedCodecs names of codecs other side accepts, in order of preference
+     * @return selected codec or {@link ResourceCodecs#NONE}
+     */
+    public static ResourceCodec select(List<File> files, List<String> acceptedCodecs) {
+        ResourceCodec selected = ResourceCodecs.NONE;
+        long total = 0;
+        long encodable = 0;
+        for (File file : files) {
+            long size = file.length();
+            total = total + size;
+            ResourceCodec codec = ResourceCodecs.select(file.getName(), size, acceptedCodecs);
+            if (codec != ResourceCodecs.NONE) {
+                encodable = encodable + size;
+                selected = codec;
+            }
+        }
+        if (encodable * 2 < total) {
+            return ResourceCodecs.NONE;
+        }
+        return selected;
+    }
+
+    /**
+     * Sends given files as one archive. If archive is not encoded and channel is given, content of big files
+     * goes straight from files to the channel
+     * (see {@link DataFrameOutputStream#transferFrom(java.nio.channels.FileChannel, long, long, WritableByteChannel)}).
+     *
+     * @param dos stream writing to the channel
+     * @param channel channel to transfer content to or null
+     * @param files files of resources, in order they were requested
+     * @param codec codec archive is to be encoded with
+     * @throws IOException
+     */
+    public void send(DataOutputStream dos, WritableByteChannel channel, List<File> files, ResourceCodec codec) throws IOException {
+        DataOutputStream frame = startFrame();
+        frame.writeInt(files.size());
+        frame.writeByte(codec.getId());
+        sendFrame(dos);
+
+        DataFrameOutputStream data = new DataFrameOutputStream(dos, isSendOpcode());
+        OutputStream out = codec.encode(data);
+        byte[] buffer = new byte[65536];
+        for (File file : files) {
+            if (!file.isFile()) {
+                ByteUtils.fromLong(buffer, 0, -1);
+                out.write(buffer, 0, 8);
+                continue;
+            }
+            FileInputStream fis = new FileInputStream(file);
+            try {
+                long size = fis.getChannel().size();
+                ByteUtils.fromLong(buffer, 0, size);
+                out.write(buffer, 0, 8);
+                if (channel != null && codec == ResourceCodecs.NONE && size >= TRANSFER_MIN_SIZE) {
+                    data.transferFrom(fis.getChannel(), 0, size, channel);
+                } else {
+                    while (size > 0) {
+                        int r = fis.read(buffer, 0, (int)Math.min(size, buffer.length));
+                        if (r <= 0) {
+                            throw new IOException("Premature end of " + file.getAbsolutePath() + "; missing " + size + " bytes");
+                        }
+                        out.write(buffer, 0, r);
+                        size = size - r;
+                    }
+                }
+            } finally {
+                fis.close();
+            }
+        }
+        if (codec != ResourceCodecs.NONE) {
+            out.close();
+        }
+        data.close();
+    }
+
+    /**
+     * Splits archive stream to entries as it arrives. Content of entries that is available on a channel
+     * is passed straight to the entry's stream if it is {@link TransferTarget}.
+     */
+    private class ArchiveDecoder extends OutputStream implements TransferTarget {
+
+        private int count;
+        private int index = 0;
+        // Size of entry read so far and number of its bytes still missing
+        private byte[] header = new byte[8];
+        private int headerLength = 0;
+        private long remaining = 0;
+        private OutputStream entry;
+        private ByteBuffer buffer;
+
+        private ArchiveDecoder(int count) {
+            this.count = count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (entry != null || remaining > 0) {
+                    int s = (int)Math.min(len, remaining);
+                    if (entry != null) {
+                        entry.write(b, off, s);
+                    }
+                    off = off + s;
+                    len = len - s;
+                    remaining = remaining - s;
+                    if (remaining == 0) {
+                        finishEntry();
+                    }
+                } else {
+                    if (index == count) {
+                        throw new IOException("Archive has more than " + count + " entries");
+                    }
+                    int s = Math.min(len, 8 - headerLength);
+                    System.arraycopy(b, off, header, headerLength, s);
+                    headerLength = headerLength + s;
+                    off = off + s;
+                    len = len - s;
+                    if (headerLength == 8) {
+                        startEntry(ByteUtils.toLong(header, 0));
+                    }
+                }
+            }
+        }
+
+        public void transferFrom(ReadableByteChannel channel, long count) throws IOException {
+            while (count > 0) {
+                if (remaining > 0 && entry instanceof TransferTarget) {
+                    long s = Math.min(count, remaining);
+                    ((TransferTarget)entry).transferFrom(channel, s);
+                    count = count - s;
+                    remaining = remaining - s;
+                    if (remaining == 0) {
+                        finishEntry();
+                    }
+                } else {
+                    if (buffer == null) {
+                        buffer = ByteBuffer.allocate(8192);
+                    }
+                    buffer.clear();
+                    // Only headers and content of entries that can't take it from the channel
+                    int s = (int)Math.min(count, remaining > 0 ? Math.min(remaining, buffer.capacity()) : 8 - headerLength);
+                    buffer.limit(s);
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer) < 0) {
+                            throw new EOFException("Premature end of stream; missing " + count + " bytes");
+                        }
+                    }
+                    write(buffer.array(), 0, s);
+                    count = count - s;
+                }
+            }
+        }
+
+        private void startEntry(long size) throws IOException {
+            headerLength = 0;
+            entry = loadEntry(index, size);
+            index++;
+            remaining = size > 0 ? size : 0;
+            if (remaining == 0) {
+                finishEntry();
+            }
+        }
+
+        private void finishEntry() throws IOException {
+            OutputStream e = entry;
+            entry = null;
+            if (e != null) {
+                e.close();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (index != count || remaining > 0 || headerLength > 0) {
+                throw new IOException("Archive ended after " + index + " of " + count + " entries");
+            }
+        }
+    }
+}
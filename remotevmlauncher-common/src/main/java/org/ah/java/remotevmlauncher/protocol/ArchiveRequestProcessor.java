@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2013 Creative Sphere Limited.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.ah.java.remotevmlauncher.protocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Requests number of resources from one directory classpath entry at once. Other side is expected to
+ * answer with one {@link ArchiveProcessor} payload carrying all of them, in the same order.
+ *
+ * @author Daniel Sendula
+ */
+public class ArchiveRequestProcessor extends AbstractProcessor {
+
+    public static final String ID = "AQ";
+    public static final int OPCODE = 0x91;
+
+    private String pathId;
+    private List<String> resourceNames = new ArrayList<String>();
+
+    public ArchiveRequestProcessor() {
+        super(ID, OPCODE);
+    }
+
+    public String getPathId() {
+        return pathId;
+    }
+
+    public void setPathId(String pathId) {
+        this.pathId = pathId;
+    }
+
+    public List<String> getResourceNames() {
+        return resourceNames;
+    }
+
+    public void receive(DataInputStream dis) throws IOException {
+        resourceNames.clear();
+        pathId = dis.readUTF();
+        int size = dis.readInt();
+        for (int i = 0; i < size; i++) {
+            resourceNames.add(dis.readUTF());
+        }
+        processRequest(pathId, resourceNames);
+    }
+
+    public void processRequest(String pathId, List<String> resourceNames) throws IOException {
+    }
+
+    public void send(DataOutputStream dos) throws IOException {
+        DataOutputStream frame = startFrame();
+        frame.writeUTF(pathId);
+        frame.writeInt(resourceNames.size());
+        for (String name : resourceNames) {
+            frame.writeUTF(name);
+        }
+        sendFrame(dos);
+    }
+}
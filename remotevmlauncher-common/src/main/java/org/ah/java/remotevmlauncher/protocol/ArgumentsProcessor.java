@@ -32,11 +32,12 @@ import java.util.List;
 public class ArgumentsProcessor extends AbstractProcessor {
 
     public static final String ID = "AR";
+    public static final int OPCODE = 0x87;
 
     private List<String> arguments = new ArrayList<String>();
 
     public ArgumentsProcessor() {
-        super(ID);
+        super(ID, OPCODE);
     }
 
     public List<String> getArguments() {
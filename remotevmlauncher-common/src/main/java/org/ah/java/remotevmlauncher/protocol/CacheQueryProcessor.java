@@ -31,11 +31,12 @@ import java.io.IOException;
 public class CacheQueryProcessor extends AbstractProcessor {
 
     public static final String ID = "CQ";
+    public static final int OPCODE = 0x85;
 
     private String resourceName;
 
     public CacheQueryProcessor() {
-        super(ID);
+        super(ID, OPCODE);
     }
 
     public String getResourceName() {
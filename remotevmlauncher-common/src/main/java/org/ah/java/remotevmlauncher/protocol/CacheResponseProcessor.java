@@ -24,6 +24,8 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.ah.java.remotevmlauncher.DigestUtils;
+
 
 /**
  * 
@@ -33,11 +35,12 @@ import java.util.List;
 public class CacheResponseProcessor extends AbstractProcessor {
 
     public static final String ID = "CR";
+    public static final int OPCODE = 0x86;
 
     private List<ResourceResponse> resources = new ArrayList<ResourceResponse>();
 
     public CacheResponseProcessor() {
-        super(ID);
+        super(ID, OPCODE);
     }
 
     public List<ResourceResponse> getResources() {
@@ -48,12 +51,14 @@ public class CacheResponseProcessor extends AbstractProcessor {
         resources.clear();
         int size = dis.readInt();
         for (int i = 0; i < size; i++) {
-            long hash = dis.readLong();
+            long lastModified = dis.readLong();
+            long digest = dis.readLong();
             long length = dis.readLong();
             String pathId = dis.readUTF();
             String name = dis.readUTF();
             ResourceResponse rr = new ResourceResponse();
-            rr.hash = hash;
+            rr.lastModified = lastModified;
+            rr.digest = digest;
             rr.length = length;
             rr.pathId = pathId;
             rr.name = name;
@@ -66,25 +71,27 @@ public class CacheResponseProcessor extends AbstractProcessor {
     }
 
     public void send(DataOutputStream dos) throws IOException {
-        dos.writeUTF(ID);
-        dos.writeInt(resources.size());
+        DataOutputStream frame = startFrame();
+        frame.writeInt(resources.size());
         for (ResourceResponse rr : resources) {
-            dos.writeLong(rr.hash);
-            dos.writeLong(rr.length);
-            dos.writeUTF(rr.pathId);
-            dos.writeUTF(rr.name);
+            frame.writeLong(rr.lastModified);
+            frame.writeLong(rr.digest);
+            frame.writeLong(rr.length);
+            frame.writeUTF(rr.pathId);
+            frame.writeUTF(rr.name);
         }
-        dos.flush();
+        sendFrame(dos);
     }
 
     public static class ResourceResponse {
         public String pathId;
         public String name;
-        public long hash;
+        public long lastModified;
+        public long digest;
         public long length;
 
         public String toString() {
-            return "Resource[" + pathId + "," + name + "," + Long.toHexString(hash) + "," + Long.toString(length) + "]";
+            return "Resource[" + pathId + "," + name + "," + Long.toString(lastModified) + "," + DigestUtils.toHex(digest) + "," + Long.toString(length) + "]";
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2013 Creative Sphere Limited.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.ah.java.remotevmlauncher.protocol;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Processor that can take payload of a frame straight from the channel, without payload being
+ * read into memory first. See {@link ProtocolStateMachine#setChannel(ReadableByteChannel)}.
+ *
+ * @author Daniel Sendula
+ */
+public interface ChannelProcessor extends ProtocolProcessor {
+
+    /**
+     * Offers payload of the frame to be read from the channel.
+     *
+     * @param channel channel to read payload from
+     * @param length length of payload
+     * @return true if payload was read; if false frame is read as usual and passed to {@link #receive(java.io.DataInputStream)}
+     * @throws IOException
+     */
+    boolean receive(ReadableByteChannel channel, int length) throws IOException;
+
+}
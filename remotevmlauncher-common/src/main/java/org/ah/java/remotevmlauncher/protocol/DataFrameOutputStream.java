@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2013 Creative Sphere Limited.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.ah.java.remotevmlauncher.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.ah.java.remotevmlauncher.ByteUtils;
+
+/**
+ * Writes data as sequence of {@link DataProcessor} frames. Closing the stream writes empty frame
+ * which marks end of data; underlying stream is left open.
+ *
+ * @author Daniel Sendula
+ */
+public class DataFrameOutputStream extends OutputStream {
+
+    public static final int DEFAULT_CHUNK_SIZE = 65536;
+
+    // Data transferred from files isn't copied through buffer so frames can be bigger
+    public static final int TRANSFER_CHUNK_SIZE = 1048576;
+
+    // Length of the frame, length of the id and the id itself
+    private static final int HEADER_SIZE = 8;
+    // Length of the frame and opcode
+    private static final int OPCODE_HEADER_SIZE = 5;
+
+    private OutputStream out;
+    // Header is in the same buffer so each frame goes out in one write
+    private byte[] buffer;
+    private int headerSize;
+    private int len;
+    private long written = 0;
+
+    public DataFrameOutputStream(OutputStream out) {
+        this(out, DEFAULT_CHUNK_SIZE);
+    }
+
+    public DataFrameOutputStream(OutputStream out, boolean opcode) {
+        this(out, DEFAULT_CHUNK_SIZE, opcode);
+    }
+
+    public DataFrameOutputStream(OutputStream out, int chunkSize) {
+        this(out, chunkSize, false);
+    }
+
+    /**
+     * @param out underlying stream
+     * @param chunkSize maximum number of data bytes in a frame
+     * @param opcode true if frames are to start with {@link DataProcessor#OPCODE} instead of {@link DataProcessor#ID}
+     */
+    public DataFrameOutputStream(OutputStream out, int chunkSize, boolean opcode) {
+        this.out = out;
+        if (opcode) {
+            headerSize = OPCODE_HEADER_SIZE;
+            this.buffer = new byte[chunkSize + headerSize];
+            buffer[4] = (byte)DataProcessor.OPCODE;
+        } else {
+            headerSize = HEADER_SIZE;
+            this.buffer = new byte[chunkSize + headerSize];
+            ByteUtils.fromShort(buffer, 4, (short)2);
+            buffer[6] = (byte)DataProcessor.ID.charAt(0);
+            buffer[7] = (byte)DataProcessor.ID.charAt(1);
+        }
+        len = headerSize;
+    }
+
+    /**
+     * @return number of bytes written to underlying stream so far (including frame headers)
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (len == buffer.length) {
+            writeFrame();
+        }
+        buffer[len] = (byte)b;
+        len++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int l) throws IOException {
+        while (l > 0) {
+            if (len == buffer.length) {
+                writeFrame();
+            }
+            int s = buffer.length - len;
+            if (s > l) {
+                s = l;
+            }
+            System.arraycopy(b, off, buffer, len, s);
+            len = len + s;
+            off = off + s;
+            l = l - s;
+        }
+    }
+
+    /**
+     * Sends part of the file as data frames with {@link FileChannel#transferTo(long, long, WritableByteChannel)},
+     * so content doesn't pass through this VM's heap. Only frame headers are written by this class.
+     * Whatever was buffered so far is sent first and underlying stream is flushed.
+     *
+     * @param file file to be sent
+     * @param position position in the file
+     * @param count number of bytes to be sent
+     * @param channel channel underlying stream writes to
+     * @throws IOException
+     */
+    public void transferFrom(FileChannel file, long position, long count, WritableByteChannel channel) throws IOException {
+        if (len > headerSize) {
+            writeFrame();
+        }
+        out.flush();
+        ByteBuffer header = ByteBuffer.wrap(buffer, 0, headerSize);
+        while (count > 0) {
+            int s = (int)Math.min(count, TRANSFER_CHUNK_SIZE);
+            ByteUtils.fromInt(buffer, 0, headerSize + s - 4);
+            header.limit(headerSize);
+            header.position(0);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            long end = position + s;
+            while (position < end) {
+                long t = file.transferTo(position, end - position, channel);
+                if (t <= 0 && position >= file.size()) {
+                    throw new IOException("Premature end of file; missing " + (end - position) + " bytes");
+                }
+                position = position + t;
+            }
+            written = written + headerSize + s;
+            count = count - s;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (len > headerSize) {
+            writeFrame();
+        }
+        // Empty frame marks the end
+        writeFrame();
+        out.flush();
+    }
+
+    protected void writeFrame() throws IOException {
+        ByteUtils.fromInt(buffer, 0, len - 4);
+        out.write(buffer, 0, len);
+        written = written + len;
+        len = headerSize;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2013 Creative Sphere Limited.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.ah.java.remotevmlauncher.protocol;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Carries data that belongs to payload of preceding frame (for instance content of a resource) so big
+ * payloads don't need to fit in one frame. Data is sent with {@link DataFrameOutputStream} and ends
+ * with an empty frame. Processor of preceding frame sets stream data is to be written to with
+ * {@link #expect(OutputStream)}; that stream is closed when all data has arrived. If that stream is
+ * {@link TransferTarget} and data is available on a channel, it is passed straight from the channel.
+ *
+ * @author Daniel Sendula
+ */
+public class DataProcessor extends AbstractProcessor implements ChannelProcessor {
+
+    public static final String ID = "RD";
+    public static final int OPCODE = 0x8D;
+
+    private boolean expected = false;
+    private OutputStream out;
+    private long received = 0;
+    private byte[] buffer = new byte[8192];
+
+    public DataProcessor() {
+        super(ID, OPCODE);
+    }
+
+    /**
+     * @param out stream following data is to be written to or null if it is to be discarded
+     */
+    public void expect(OutputStream out) {
+        this.out = out;
+        this.expected = true;
+    }
+
+    /**
+     * @return number of data bytes received so far
+     */
+    public long getReceived() {
+        return received;
+    }
+
+    public boolean receive(ReadableByteChannel channel, int length) throws IOException {
+        if (!expected || !(out instanceof TransferTarget)) {
+            return false;
+        }
+        received = received + length;
+        ((TransferTarget)out).transferFrom(channel, length);
+        return true;
+    }
+
+    public void receive(DataInputStream dis) throws IOException {
+        if (!expected) {
+            throw new IOException("Received data that wasn't expected");
+        }
+        int len = dis.available();
+        if (len == 0) {
+            OutputStream o = out;
+            expected = false;
+            out = null;
+            if (o != null) {
+                o.close();
+            }
+        } else {
+            received = received + len;
+            while (len > 0) {
+                int r = dis.read(buffer, 0, Math.min(len, buffer.length));
+                if (out != null) {
+                    out.write(buffer, 0, r);
+                }
+                len = len - r;
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2013 Creative Sphere Limited.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.ah.java.remotevmlauncher.protocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.ah.java.remotevmlauncher.delta.BlockSignatures;
+import org.ah.java.remotevmlauncher.delta.DeltaEncoder;
+
+/**
+ * Answer to {@link DeltaRequestProcessor}. Frame consists of size of new content (-1 if resource
+ * doesn't exist) and block size delta was made with. {@link DeltaEncoder} instructions follow in
+ * {@link DataProcessor} frames.
+ *
+ * @author Daniel Sendula
+ */
+public class DeltaProcessor extends AbstractProcessor {
+
+    public static final String ID = "D!";
+    public static final int OPCODE = 0x8F;
+
+    private DataProcessor dataProcessor;
+
+    /**
+     * Creates processor that can only send deltas.
+     */
+    public DeltaProcessor() {
+        this(null);
+    }
+
+    /**
+     * @param dataProcessor processor that receives delta instructions
+     */
+    public DeltaProcessor(DataProcessor dataProcessor) {
+        super(ID, OPCODE);
+        this.dataProcessor = dataProcessor;
+    }
+
+    public void receive(DataInputStream dis) throws IOException {
+        long size = dis.readLong();
+        int blockSize = dis.readInt();
+        dataProcessor.expect(loadDelta(size, blockSize));
+    }
+
+    /**
+     * Invoked when delta header is received.
+     *
+     * @param size size of new content
+     * @param blockSize block size delta was made with
+     * @return stream instructions are to be written to or null if they are to be skipped. It is closed
+     *         once all instructions are received.
+     * @throws IOException
+     */
+    public OutputStream loadDelta(long size, int blockSize) throws IOException {
+        return null;
+    }
+
+    /**
+     * Sends delta of given content against content described with signatures.
+     *
+     * @param dos output stream
+     * @param is new content or null if resource doesn't exist
+     * @param size size of new content
+     * @param signatures signatures of content other side has
+     * @return number of literal bytes sent
+     * @throws IOException
+     */
+    public long send(DataOutputStream dos, InputStream is, long size, BlockSignatures signatures) throws IOException {
+        long literalBytes = 0;
+        DataOutputStream frame = startFrame();
+        frame.writeLong(is != null ? size : -1);
+        frame.writeInt(signatures.getBlockSize());
+        sendFrame(dos);
+
+        DataFrameOutputStream data = new DataFrameOutputStream(dos, isSendOpcode());
+        DataOutputStream instructions = new DataOutputStream(data);
+        if (is == null) {
+            instructions.writeByte(DeltaEncoder.END);
+        } else {
+            literalBytes = new DeltaEncoder(signatures, instructions).encode(is);
+        }
+        instructions.flush();
+        data.close();
+        return literalBytes;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2013 Creative Sphere Limited.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.ah.java.remotevmlauncher.protocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.ah.java.remotevmlauncher.delta.BlockSignatures;
+
+/**
+ * Requests resource to be sent as a delta against content other side already has. It carries
+ * {@link BlockSignatures} of that content and other side is expected to answer with
+ * {@link DeltaProcessor} payload.
+ *
+ * @author Daniel Sendula
+ */
+public class DeltaRequestProcessor extends AbstractProcessor {
+
+    public static final String ID = "DR";
+    public static final int OPCODE = 0x8E;
+
+    private String pathId;
+    private String resourceName;
+    private BlockSignatures signatures;
+
+    public DeltaRequestProcessor() {
+        super(ID, OPCODE);
+    }
+
+    public String getPathId() {
+        return pathId;
+    }
+
+    public void setPathId(String pathId) {
+        this.pathId = pathId;
+    }
+
+    public String getResourceName() {
+        return resourceName;
+    }
+
+    public void setResourceName(String resourceName) {
+        this.resourceName = resourceName;
+    }
+
+    public BlockSignatures getSignatures() {
+        return signatures;
+    }
+
+    public void setSignatures(BlockSignatures signatures) {
+        this.signatures = signatures;
+    }
+
+    public void receive(DataInputStream dis) throws IOException {
+        pathId = dis.readUTF();
+        resourceName = dis.readUTF();
+        int blockSize = dis.readInt();
+        long length = dis.readLong();
+        int count = dis.readInt();
+        int[] weak = new int[count];
+        long[] strong = new long[count];
+        for (int i = 0; i < count; i++) {
+            weak[i] = dis.readInt();
+            strong[i] = dis.readLong();
+        }
+        signatures = new BlockSignatures(blockSize, length, weak, strong);
+        processRequest(pathId, resourceName, signatures);
+    }
+
+    public void processRequest(String pathId, String resourceName, BlockSignatures signatures) throws IOException {
+    }
+
+    public void send(DataOutputStream dos) throws IOException {
+        DataOutputStream frame = startFrame();
+        frame.writeUTF(pathId);
+        frame.writeUTF(resourceName);
+        frame.writeInt(signatures.getBlockSize());
+        frame.writeLong(signatures.getLength());
+        frame.writeInt(signatures.getBlockCount());
+        for (int i = 0; i < signatures.getBlockCount(); i++) {
+            frame.writeInt(signatures.getWeak(i));
+            frame.writeLong(signatures.getStrong(i));
+        }
+        sendFrame(dos);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2013 Creative Sphere Limited.
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing, 
+ * software distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License. 
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.ah.java.remotevmlauncher.protocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+
+/**
+ * Key client sends as soon as it connects, before it asks for VM, so agent can tell apart clients that
+ * connect from the same address - different users or different applications of the same user.
+ *
+ * @author Daniel Sendula
+ */
+public class LaunchKeyProcessor extends AbstractProcessor {
+
+    public static final String ID = "LK";
+    public static final int OPCODE = 0x93;
+
+    private String launchKey;
+
+    public LaunchKeyProcessor() {
+        super(ID, OPCODE);
+    }
+
+    public String getLaunchKey() {
+        return launchKey;
+    }
+
+    public void setLaunchKey(String launchKey) {
+        this.launchKey = launchKey;
+    }
+
+    public void receive(DataInputStream dis) throws IOException {
+        launchKey = dis.readUTF();
+        keyReceived();
+    }
+
+    public void keyReceived() throws IOException {
+    }
+
+    public void send(DataOutputStream dos) throws IOException {
+        sendString(dos, launchKey);
+    }
+}
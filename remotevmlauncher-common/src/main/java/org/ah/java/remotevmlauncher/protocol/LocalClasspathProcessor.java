@@ -32,12 +32,13 @@ import java.util.Map;
 public class LocalClasspathProcessor extends AbstractProcessor {
 
     public static final String ID = "LC";
+    public static final int OPCODE = 0x84;
 
     // pathId -> localClasspath
     private Map<String, String> localClasspath = new LinkedHashMap<String, String>();
 
     public LocalClasspathProcessor() {
-        super(ID);
+        super(ID, OPCODE);
     }
 
     public Map<String, String> getLocalClasspath() {
@@ -55,13 +56,13 @@ public class LocalClasspathProcessor extends AbstractProcessor {
     }
 
     public void send(DataOutputStream dos) throws IOException {
-        dos.writeUTF(ID);
-        dos.writeShort(localClasspath.size());
+        DataOutputStream frame = startFrame();
+        frame.writeShort(localClasspath.size());
         for (Map.Entry<String, String> entry : localClasspath.entrySet()) {
-            dos.writeUTF(entry.getKey());
-            dos.writeUTF(entry.getValue());
+            frame.writeUTF(entry.getKey());
+            frame.writeUTF(entry.getValue());
         }
-        dos.flush();
+        sendFrame(dos);
     }
 }
 
@@ -31,11 +31,12 @@ import java.io.IOException;
 public class MainClassProcessor extends AbstractProcessor {
 
     public static final String ID = "MC";
+    public static final int OPCODE = 0x88;
 
     private String mainClass;
 
     public MainClassProcessor() {
-        super(ID);
+        super(ID, OPCODE);
     }
 
     public void setMainClass(String mainClass) {
@@ -32,6 +32,11 @@ public interface ProtocolProcessor {
 
     String getId();
 
+    /**
+     * @return numeric opcode (0x80 - 0xff) of this processor or 0 if it is known only by its id
+     */
+    int getOpcode();
+
     void receive(DataInputStream dis) throws IOException;
 
     void send(DataOutputStream dos) throws IOException;
@@ -20,20 +20,43 @@ package org.ah.java.remotevmlauncher.protocol;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * This class describes a protocol state machine. It is to be fed with a byte buffer and amount of data in it.
+ * This class describes a protocol state machine. Input is consumed frame by frame (see {@link AbstractProcessor})
+ * either from blocking stream or from byte buffers as they arrive. Each frame is read completely before its
+ * processor is invoked and whatever processor didn't read from it is skipped. That allows new fields to be
+ * added at the end of payloads without breaking older readers.
+ * <p>
+ * Frames may start with processor's id or with its opcode (see {@link AbstractProcessor}). Both are always
+ * accepted. Opcodes are dispatched through an array so no objects are created for such frames.
  *
  * @author Daniel Sendula
  */
 public class ProtocolStateMachine {
 
+    public static final int MAX_FRAME_SIZE = 1 << 28;
+
     private Map<String, ProtocolProcessor> processorMap = new HashMap<String, ProtocolProcessor>();
+    private ProtocolProcessor[] opcodeTable = new ProtocolProcessor[128];
     private Logger logger = null;
+    private ReadableByteChannel channel;
+
+    private byte[] frame = new byte[1024];
+    // -1 until all four bytes of length of the frame are received
+    private int frameLength = -1;
+    private int framePosition = 0;
+    private int lengthBytes = 0;
+    private int lengthValue = 0;
+
+    private FrameInputStream frameInputStream = new FrameInputStream();
+    private DataInputStream frameDataInputStream = new DataInputStream(frameInputStream);
 
     public ProtocolStateMachine() {
     }
@@ -48,18 +71,220 @@ public class ProtocolStateMachine {
 
     public void register(ProtocolProcessor protolProcessor) {
         this.processorMap.put(protolProcessor.getId(), protolProcessor);
+        int opcode = protolProcessor.getOpcode();
+        if (opcode != 0) {
+            if (opcode < 0x80 || opcode > 0xff) {
+                throw new IllegalArgumentException("Opcode of '" + protolProcessor.getId() + "' is out of range; " + opcode);
+            }
+            ProtocolProcessor existing = opcodeTable[opcode & 0x7f];
+            if (existing != null && existing != protolProcessor && !existing.getId().equals(protolProcessor.getId())) {
+                throw new IllegalArgumentException("Opcode of '" + protolProcessor.getId() + "' is already used by '" + existing.getId() + "'");
+            }
+            opcodeTable[opcode & 0x7f] = protolProcessor;
+        }
+    }
+
+    public ReadableByteChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Sets channel stream passed to {@link #processInput(DataInputStream)} reads from. Payloads of frames
+     * for {@link ChannelProcessor}s are then offered to be read from the channel directly. Stream must not
+     * buffer anything for this to work.
+     *
+     * @param channel channel or null
+     */
+    public void setChannel(ReadableByteChannel channel) {
+        this.channel = channel;
     }
 
+    /**
+     * Reads and processes one frame, blocking until it is received.
+     *
+     * @param dis input stream
+     * @throws IOException
+     */
     public void processInput(DataInputStream dis) throws IOException {
-        String id = dis.readUTF();
-        if (logger != null && logger.isLoggable(Level.FINEST))  {
-            logger.finest("Received packet with id: " + id);
+        int length = dis.readInt();
+        prepareFrame(length);
+        if (channel == null) {
+            dis.readFully(frame, 0, length);
+            processFrame(length);
+        } else {
+            // Header first; processor might want payload straight from the channel
+            int headerLength = 1;
+            dis.readFully(frame, 0, 1);
+            if ((frame[0] & 0xff) < 0x80) {
+                dis.readFully(frame, 1, 1);
+                headerLength = 2 + (((frame[0] & 0xff) << 8) | (frame[1] & 0xff));
+                if (headerLength > length) {
+                    throw new IOException("Bad frame header length " + headerLength);
+                }
+                dis.readFully(frame, 2, headerLength - 2);
+            }
+            ProtocolProcessor processor = resolveProcessor(length);
+            if (length > headerLength && processor instanceof ChannelProcessor
+                    && ((ChannelProcessor)processor).receive(channel, length - headerLength)) {
+                return;
+            }
+            dis.readFully(frame, headerLength, length - headerLength);
+            processor.receive(frameDataInputStream);
+        }
+    }
+
+    /**
+     * Non-blocking variant of {@link #processInput(DataInputStream)}. Consumes bytes from the buffer up to the
+     * end of current frame and processes the frame once it is complete. Bytes of following frames are left in
+     * the buffer so at most one frame is processed per invocation.
+     *
+     * @param buffer buffer ready to be read from
+     * @return true if a frame was processed
+     * @throws IOException
+     */
+    public boolean processInput(ByteBuffer buffer) throws IOException {
+        if (frameLength < 0) {
+            while (lengthBytes < 4 && buffer.hasRemaining()) {
+                lengthValue = (lengthValue << 8) | (buffer.get() & 0xff);
+                lengthBytes++;
+            }
+            if (lengthBytes < 4) {
+                return false;
+            }
+            prepareFrame(lengthValue);
+            frameLength = lengthValue;
+            framePosition = 0;
+            lengthBytes = 0;
+            lengthValue = 0;
+        }
+        int s = frameLength - framePosition;
+        if (s > buffer.remaining()) {
+            s = buffer.remaining();
+        }
+        buffer.get(frame, framePosition, s);
+        framePosition = framePosition + s;
+        if (framePosition < frameLength) {
+            return false;
+        }
+        int length = frameLength;
+        frameLength = -1;
+        framePosition = 0;
+        processFrame(length);
+        return true;
+    }
+
+    protected void prepareFrame(int length) throws IOException {
+        if (length < 1 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Bad frame length " + length);
+        }
+        if (frame.length < length) {
+            frame = new byte[Math.max(length, frame.length * 2)];
+        }
+    }
+
+    protected void processFrame(int length) throws IOException {
+        resolveProcessor(length).receive(frameDataInputStream);
+    }
+
+    /**
+     * Finds processor for the frame and positions frame stream after header.
+     */
+    private ProtocolProcessor resolveProcessor(int length) throws IOException {
+        ProtocolProcessor processor;
+        int opcode = frame[0] & 0xff;
+        if (opcode >= 0x80) {
+            frameInputStream.reset(frame, 1, length);
+            processor = opcodeTable[opcode & 0x7f];
+            if (processor == null) {
+                processor = findByOpcode(opcode);
+            }
+            if (logger != null && logger.isLoggable(Level.FINEST))  {
+                logger.finest("Received packet with opcode: " + Integer.toHexString(opcode));
+            }
+            if (processor == null) {
+                throw new RuntimeException("Unknown playload with opcode " + Integer.toHexString(opcode));
+            }
+        } else {
+            frameInputStream.reset(frame, 0, length);
+            String id = frameDataInputStream.readUTF();
+            if (logger != null && logger.isLoggable(Level.FINEST))  {
+                logger.finest("Received packet with id: " + id);
+            }
+            processor = processorMap.get(id);
+
+            if (processor == null) {
+                throw new RuntimeException("Unknown playload with id '" + id + "'");
+            }
+        }
+        return processor;
+    }
+
+    /**
+     * Finds processor that was put directly in {@link #getProcessorMap()} and remembers it in opcode table.
+     */
+    private ProtocolProcessor findByOpcode(int opcode) {
+        for (ProtocolProcessor processor : processorMap.values()) {
+            if (processor.getOpcode() == opcode) {
+                opcodeTable[opcode & 0x7f] = processor;
+                return processor;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Input stream over current frame. {@link #available()} returns exactly what is left of the frame.
+     */
+    private static class FrameInputStream extends InputStream {
+
+        private byte[] buffer;
+        private int position;
+        private int limit;
+
+        private void reset(byte[] buffer, int position, int limit) {
+            this.buffer = buffer;
+            this.position = position;
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() {
+            if (position >= limit) {
+                return -1;
+            }
+            int b = buffer[position] & 0xff;
+            position++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (position >= limit) {
+                return -1;
+            }
+            if (len > limit - position) {
+                len = limit - position;
+            }
+            System.arraycopy(buffer, position, b, off, len);
+            position = position + len;
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            if (n > limit - position) {
+                n = limit - position;
+            }
+            if (n < 0) {
+                n = 0;
+            }
+            position = position + (int)n;
+            return n;
         }
-        ProtocolProcessor processor = processorMap.get(id);
 
-        if (processor == null) {
-            throw new RuntimeException("Unknown playload with id '" + id + "'");
+        @Override
+        public int available() {
+            return limit - position;
         }
-        processor.receive(dis);
     }
 }
@@ -19,22 +19,31 @@
 package org.ah.java.remotevmlauncher.protocol;
 
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 
 /**
- * 
+ * Signals that launcher is ready. It carries names of codecs launcher accepts
+ * resources to be encoded with and whether launcher understands opcodes.
  *
  * @author Daniel Sendula
  */
 public class ReadyProcessor extends AbstractProcessor {
 
     public static final String ID = "RY";
+    public static final int OPCODE = 0x81;
 
     private boolean ready = false;
 
+    private List<String> codecs = new ArrayList<String>();
+
+    private boolean opcodes = false;
+
     public ReadyProcessor() {
-        super(ID);
+        super(ID, OPCODE);
     }
 
     public boolean isReady() {
@@ -45,10 +54,35 @@ public class ReadyProcessor extends AbstractProcessor {
         ready = false;
     }
 
+    public List<String> getCodecs() {
+        return codecs;
+    }
+
+    public boolean isOpcodes() {
+        return opcodes;
+    }
+
+    public void setOpcodes(boolean opcodes) {
+        this.opcodes = opcodes;
+    }
+
     public void receive(DataInputStream dis) throws IOException {
+        receiveStringArray(dis, codecs);
+        // Older launchers don't send it
+        opcodes = dis.available() > 0 && dis.readBoolean();
         ready = true;
         synchronized (this) {
             notifyAll();
         }
     }
+
+    public void send(DataOutputStream dos) throws IOException {
+        DataOutputStream frame = startFrame();
+        frame.writeShort(codecs.size());
+        for (String codec : codecs) {
+            frame.writeUTF(codec);
+        }
+        frame.writeBoolean(opcodes);
+        sendFrame(dos);
+    }
 }
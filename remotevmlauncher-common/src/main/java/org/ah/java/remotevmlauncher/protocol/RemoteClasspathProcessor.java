@@ -32,11 +32,12 @@ import java.util.List;
 public class RemoteClasspathProcessor extends AbstractProcessor {
 
     public static final String ID = "RC";
+    public static final int OPCODE = 0x83;
 
     private List<String> remoteClasspath = new ArrayList<String>();
 
     public RemoteClasspathProcessor() {
-        super(ID);
+        super(ID, OPCODE);
     }
 
     public List<String> getRemoteClasspath() {
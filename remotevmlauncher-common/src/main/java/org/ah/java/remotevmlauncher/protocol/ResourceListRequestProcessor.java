@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2013 Creative Sphere Limited.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.ah.java.remotevmlauncher.protocol;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bulk version of {@link ResourceRequestProcessor}. It carries a 'want-list' of
+ * all resources launcher needs and other side is expected to answer with
+ * one {@link ResourceProcessor} payload per requested resource, in the same order,
+ * back to back.
+ *
+ * @author Daniel Sendula
+ */
+public class ResourceListRequestProcessor extends AbstractProcessor {
+
+    public static final String ID = "RL";
+    public static final int OPCODE = 0x8B;
+
+    private List<Resource> resources = new ArrayList<Resource>();
+
+    public ResourceListRequestProcessor() {
+        super(ID, OPCODE);
+    }
+
+    public List<Resource> getResources() {
+        return resources;
+    }
+
+    public void receive(DataInputStream dis) throws IOException {
+        resources.clear();
+        int size = dis.readInt();
+        for (int i = 0; i < size; i++) {
+            Resource resource = new Resource();
+            resource.pathId = dis.readUTF();
+            resource.name = dis.readUTF();
+            resources.add(resource);
+        }
+        processRequest(resources);
+    }
+
+    public void processRequest(List<Resource> resources) throws IOException {
+    }
+
+    public void send(DataOutputStream dos) throws IOException {
+        DataOutputStream frame = startFrame();
+        frame.writeInt(resources.size());
+        for (Resource resource : resources) {
+            frame.writeUTF(resource.pathId);
+            frame.writeUTF(resource.name);
+        }
+        sendFrame(dos);
+    }
+
+    public static class Resource {
+        public String pathId;
+        public String name;
+
+        public Resource() {
+        }
+
+        public Resource(String pathId, String name) {
+            this.pathId = pathId;
+            this.name = name;
+        }
+
+        public String toString() {
+            return "Resource[" + pathId + "," + name + "]";
+        }
+    }
+}
@@ -22,46 +22,118 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.ah.java.remotevmlauncher.protocol.codec.ResourceCodec;
+import org.ah.java.remotevmlauncher.protocol.codec.ResourceCodecs;
 
 
 /**
- * 
+ * Resource payload. Frame consists of 64 bit size of resource (-1 if resource doesn't exist) and
+ * id of codec resource is encoded with. Resource content, encoded or not, follows in {@link DataProcessor}
+ * frames so it is streamed, with buffer of the same, fixed size regardless of resource size.
  *
  * @author Daniel Sendula
  */
 public class ResourceProcessor extends AbstractProcessor {
 
-    public static final String ID = "R!";
+    public static final String ID = "RS";
+    public static final int OPCODE = 0x8C;
+
+    private DataProcessor dataProcessor;
 
+    /**
+     * Creates processor that can only send resources.
+     */
     public ResourceProcessor() {
-        super(ID);
+        this(null);
+    }
+
+    /**
+     * @param dataProcessor processor that receives content of resources
+     */
+    public ResourceProcessor(DataProcessor dataProcessor) {
+        super(ID, OPCODE);
+        this.dataProcessor = dataProcessor;
     }
 
     public void receive(DataInputStream dis) throws IOException {
-        int size = dis.readInt();
-        loadResource(dis, size);
+        long size = dis.readLong();
+        ResourceCodec codec = ResourceCodecs.get(dis.readUnsignedByte());
+        OutputStream out = loadResource(size, codec);
+        if (out != null) {
+            out = codec.decode(out);
+        }
+        dataProcessor.expect(out);
+    }
+
+    /**
+     * Invoked when resource header is received.
+     *
+     * @param size size of resource
+     * @param codec codec resource is encoded with
+     * @return stream decoded content is to be written to or null if it is to be skipped. It is closed
+     *         once all content is received.
+     * @throws IOException
+     */
+    public OutputStream loadResource(long size, ResourceCodec codec) throws IOException {
+        return null;
     }
 
-    public void loadResource(DataInputStream dis, int size) throws IOException {
+    public void send(DataOutputStream dos, InputStream is, long size) throws IOException {
+        send(dos, is, size, ResourceCodecs.NONE);
     }
 
-    public void send(DataOutputStream dos, InputStream is, int size) throws IOException {
-        dos.writeUTF(getId());
-        dos.writeInt(size);
+    public void send(DataOutputStream dos, InputStream is, long size, ResourceCodec codec) throws IOException {
+        if (size < 0) {
+            codec = ResourceCodecs.NONE;
+        }
+        sendHeader(dos, size, codec);
+
+        DataFrameOutputStream data = new DataFrameOutputStream(dos, isSendOpcode());
         if (size > 0) {
-            byte[] buffer = new byte[10240];
+            OutputStream out = codec.encode(data);
+            byte[] buffer = new byte[65536];
             while (size > 0) {
-                int s = size;
-                if (s > buffer.length) { s = buffer.length; }
+                int s = (int)Math.min(size, buffer.length);
                 int r = is.read(buffer, 0, s);
                 if (r <= 0) {
-                    size = 0;
-                } else {
-                    size = size - r;
+                    throw new IOException("Premature end of resource; missing " + size + " bytes");
                 }
-                dos.write(buffer, 0, r);
+                size = size - r;
+                out.write(buffer, 0, r);
+            }
+            if (codec != ResourceCodecs.NONE) {
+                out.close();
             }
         }
-        dos.flush();
+        data.close();
+    }
+
+    /**
+     * Sends resource as it is, with content going straight from the file to the channel
+     * (see {@link DataFrameOutputStream#transferFrom(FileChannel, long, long, WritableByteChannel)}).
+     *
+     * @param dos stream writing to the channel
+     * @param channel channel to transfer content to
+     * @param file file resource is read from
+     * @param size size of resource
+     * @throws IOException
+     */
+    public void send(DataOutputStream dos, WritableByteChannel channel, FileChannel file, long size) throws IOException {
+        sendHeader(dos, size, ResourceCodecs.NONE);
+
+        DataFrameOutputStream data = new DataFrameOutputStream(dos, 0, isSendOpcode());
+        data.transferFrom(file, 0, size, channel);
+        data.close();
+    }
+
+    protected void sendHeader(DataOutputStream dos, long size, ResourceCodec codec) throws IOException {
+        DataOutputStream frame = startFrame();
+        frame.writeLong(size);
+        frame.writeByte(codec.getId());
+        sendFrame(dos);
     }
 }
@@ -23,20 +23,20 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 
 /**
- * 
- * <b>WARNING: this cannot be used to send files larger than 2GB!</b>
+ * Requests one resource. Other side is expected to answer with {@link ResourceProcessor} payload.
  *
  * @author Daniel Sendula
  */
 public class ResourceRequestProcessor extends AbstractProcessor {
 
     public static final String ID = "RR";
+    public static final int OPCODE = 0x8A;
 
     private String pathId;
     private String resourceName;
 
     public ResourceRequestProcessor() {
-        super(ID);
+        super(ID, OPCODE);
     }
 
     public String getPathId() {
@@ -65,9 +65,9 @@ public class ResourceRequestProcessor extends AbstractProcessor {
     }
 
     public void send(DataOutputStream dos) throws IOException {
-        dos.writeUTF(getId());
-        dos.writeUTF(pathId);
-        dos.writeUTF(resourceName);
-        dos.flush();
+        DataOutputStream frame = startFrame();
+        frame.writeUTF(pathId);
+        frame.writeUTF(resourceName);
+        sendFrame(dos);
     }
 }
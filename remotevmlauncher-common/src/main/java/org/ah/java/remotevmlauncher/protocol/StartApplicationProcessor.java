@@ -29,11 +29,12 @@ import java.io.DataInputStream;
 public class StartApplicationProcessor extends AbstractProcessor {
 
     public static final String ID = "ST";
+    public static final int OPCODE = 0x89;
 
     private boolean start = false;
 
     public StartApplicationProcessor() {
-        super(ID);
+        super(ID, OPCODE);
     }
 
     public boolean isStart() {
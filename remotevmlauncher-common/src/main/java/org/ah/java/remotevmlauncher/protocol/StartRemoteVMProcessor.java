@@ -18,7 +18,6 @@
  */
 package org.ah.java.remotevmlauncher.protocol;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -34,18 +33,22 @@ import java.util.List;
 public class StartRemoteVMProcessor extends AbstractProcessor {
 
     public static final String ID = "VM";
+    public static final int OPCODE = 0x80;
 
     public static final boolean IMPLEMENTED = true;
 
     private int remoteDebugPort = 0;
     private boolean remoteDebugSuspendAtStart = false;
     private boolean stopVMonDisconnect = true;
+    private boolean opcodes = false;
+    private String classpathFingerprint;
+    private boolean inAgent = false;
 
     private List<String> vmArgs = new ArrayList<String>();
     private List<String> launcherArgs = new ArrayList<String>();
 
     public StartRemoteVMProcessor() {
-        super(ID);
+        super(ID, OPCODE);
     }
 
     public int getRemoteDebugPort() {
@@ -80,13 +83,47 @@ public class StartRemoteVMProcessor extends AbstractProcessor {
         this.stopVMonDisconnect = stopVMonDisconnect;
     }
 
+    /**
+     * @return true if client understands opcodes (see {@link AbstractProcessor})
+     */
+    public boolean isOpcodes() {
+        return opcodes;
+    }
+
+    public void setOpcodes(boolean opcodes) {
+        this.opcodes = opcodes;
+    }
+
+    /**
+     * @return digest of what decides which classes application loads from jars, or null if agent is not to keep
+     *         archive of classes launched VM loaded
+     */
+    public String getClasspathFingerprint() {
+        return classpathFingerprint;
+    }
+
+    public void setClasspathFingerprint(String classpathFingerprint) {
+        this.classpathFingerprint = classpathFingerprint;
+    }
+
+    /**
+     * @return true if application is to be run inside of agent's VM, in its own class loader, instead of
+     *         in a new VM
+     */
+    public boolean isInAgent() {
+        return inAgent;
+    }
+
+    public void setInAgent(boolean inAgent) {
+        this.inAgent = inAgent;
+    }
+
     public void receive(DataInputStream dis) throws IOException{
         vmArgs.clear();
         launcherArgs.clear();
         remoteDebugPort = dis.readInt();
         remoteDebugSuspendAtStart = dis.readBoolean();
         stopVMonDisconnect = dis.readBoolean();
-        /*int totalSize = */dis.readShort(); // doing nothing with it
         int argsLen = dis.readShort();
         for (int i = 0; i < argsLen; i++) {
             vmArgs.add(dis.readUTF());
@@ -95,6 +132,16 @@ public class StartRemoteVMProcessor extends AbstractProcessor {
         for (int i = 0; i < argsLen; i++) {
             launcherArgs.add(dis.readUTF());
         }
+        // Older clients don't send it
+        opcodes = dis.available() > 0 && dis.readBoolean();
+        classpathFingerprint = null;
+        if (dis.available() > 0) {
+            String fingerprint = dis.readUTF();
+            if (fingerprint.length() > 0) {
+                classpathFingerprint = fingerprint;
+            }
+        }
+        inAgent = dis.available() > 0 && dis.readBoolean();
 
         startVM();
     }
@@ -103,30 +150,23 @@ public class StartRemoteVMProcessor extends AbstractProcessor {
     }
 
     public void send(DataOutputStream dos) throws IOException {
-        dos.writeUTF(getId());
-        dos.writeInt(remoteDebugPort);
-        dos.writeBoolean(remoteDebugSuspendAtStart);
-        dos.writeBoolean(stopVMonDisconnect);
-
-        ByteArrayOutputStream cache = new ByteArrayOutputStream();
-        DataOutputStream dosCache = new DataOutputStream(cache);
-        dosCache.writeShort(vmArgs.size());
+        DataOutputStream frame = startFrame();
+        frame.writeInt(remoteDebugPort);
+        frame.writeBoolean(remoteDebugSuspendAtStart);
+        frame.writeBoolean(stopVMonDisconnect);
+
+        frame.writeShort(vmArgs.size());
         for (String arg : vmArgs) {
-            dosCache.writeUTF(arg);
+            frame.writeUTF(arg);
         }
-        dosCache.writeShort(launcherArgs.size());
+        frame.writeShort(launcherArgs.size());
         for (String arg : launcherArgs) {
-            dosCache.writeUTF(arg);
-        }
-        dosCache.flush();
-
-        byte[] cacheBytes = cache.toByteArray();
-        if (cacheBytes.length > 32767) {
-            throw new RuntimeException("StartRemoteVM arguments longer than 32767 (" + cacheBytes.length +")");
+            frame.writeUTF(arg);
         }
-        dos.writeShort(cacheBytes.length);
-        dos.write(cacheBytes);
-        dos.flush();
+        frame.writeBoolean(opcodes);
+        frame.writeUTF(classpathFingerprint != null ? classpathFingerprint : "");
+        frame.writeBoolean(inAgent);
+        sendFrame(dos);
     }
 //
 //    public int readInt(InputStream in) throws IOException {
@@ -23,26 +23,50 @@ import java.io.IOException;
 
 
 /**
- * 
+ * Carries output of remote VM. Payload is length (short) followed by bytes as
+ * they came out of the process. Bytes are received into a buffer that is reused
+ * for next frame; string is created only if {@link #getReceived()} is asked for.
  *
  * @author Daniel Sendula
  */
 public class StreamProcessor extends AbstractProcessor {
 
     public static final String ID = "S0";
+    public static final int OPCODE = 0x82;
 
+    private byte[] buffer = new byte[1024];
+    private int length = 0;
     private String received;
 
     public StreamProcessor() {
-        super(ID);
+        super(ID, OPCODE);
     }
 
     public String getReceived() {
+        if (received == null) {
+            received = new String(buffer, 0, length);
+        }
         return received;
     }
 
+    /**
+     * @return buffer received bytes are in; valid only until next frame is received
+     */
+    public byte[] getReceivedBytes() {
+        return buffer;
+    }
+
+    public int getReceivedLength() {
+        return length;
+    }
+
     public void receive(DataInputStream dis) throws IOException {
-        received = dis.readUTF();
+        length = dis.readUnsignedShort();
+        if (buffer.length < length) {
+            buffer = new byte[length];
+        }
+        dis.readFully(buffer, 0, length);
+        received = null;
         invoke();
     }
 
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2013 Creative Sphere Limited.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.ah.java.remotevmlauncher.protocol;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Output stream that can take data straight from a channel, for instance with
+ * {@link java.nio.channels.FileChannel#transferFrom(ReadableByteChannel, long, long)}.
+ * {@link DataProcessor} passes data this way when it is available on a channel.
+ *
+ * @author Daniel Sendula
+ */
+public interface TransferTarget {
+
+    /**
+     * Reads exactly count bytes from the channel. Stream continues after them.
+     *
+     * @param channel channel to read from
+     * @param count number of bytes
+     * @throws IOException
+     */
+    void transferFrom(ReadableByteChannel channel, long count) throws IOException;
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2013 Creative Sphere Limited.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.ah.java.remotevmlauncher.protocol.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * Deflate (zlib) codec. It uses fastest compression level as it is meant to save
+ * time on slow links and not to produce smallest possible payload.
+ *
+ * @author Daniel Sendula
+ */
+public class DeflateCodec implements ResourceCodec {
+
+    public static final int ID = 1;
+    public static final String NAME = "deflate";
+
+    private int level = Deflater.BEST_SPEED;
+
+    public DeflateCodec() {
+    }
+
+    public DeflateCodec(int level) {
+        this.level = level;
+    }
+
+    public int getId() {
+        return ID;
+    }
+
+    public String getName() {
+        return NAME;
+    }
+
+    public OutputStream encode(final OutputStream out) throws IOException {
+        final Deflater deflater = new Deflater(level);
+        return new DeflaterOutputStream(out, deflater, 8192) {
+            @Override public void close() throws IOException {
+                // Supplied stream is not ours to close
+                try {
+                    finish();
+                    out.flush();
+                } finally {
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    public OutputStream decode(OutputStream out) throws IOException {
+        return new InflaterOutputStream(out);
+    }
+}
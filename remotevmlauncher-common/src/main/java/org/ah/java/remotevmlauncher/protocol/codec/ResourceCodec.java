@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2013 Creative Sphere Limited.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.ah.java.remotevmlauncher.protocol.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Codec that resource payload can be encoded with while on the wire. Both directions
+ * are expressed as output streams so decoding can be pushed straight to the destination
+ * (cache file) as chunks arrive.
+ *
+ * @author Daniel Sendula
+ */
+public interface ResourceCodec {
+
+    /**
+     * @return id of the codec as it is written in resource payload header
+     */
+    int getId();
+
+    /**
+     * @return name of the codec as used when negotiating codecs
+     */
+    String getName();
+
+    /**
+     * Creates encoding stream. Closing returned stream must finish encoding but must not close supplied stream.
+     *
+     * @param out stream encoded data is written to
+     * @return encoding stream
+     * @throws IOException
+     */
+    OutputStream encode(OutputStream out) throws IOException;
+
+    /**
+     * Creates decoding stream. Closing returned stream closes supplied stream, too.
+     *
+     * @param out stream decoded data is written to
+     * @return decoding stream
+     * @throws IOException
+     */
+    OutputStream decode(OutputStream out) throws IOException;
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2013 Creative Sphere Limited.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *
+ *   Creative Sphere - initial API and implementation
+ *
+ */
+package org.ah.java.remotevmlauncher.protocol.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registry of known resource codecs. Codec with id 0 ({@link #NONE}) is always present and means
+ * payload is sent as is.
+ *
+ * @author Daniel Sendula
+ */
+public class ResourceCodecs {
+
+    public static final ResourceCodec NONE = new ResourceCodec() {
+        public int getId() { return 0; }
+        public String getName() { return "none"; }
+        public OutputStream encode(OutputStream out) throws IOException { return out; }
+        public OutputStream decode(OutputStream out) throws IOException { return out; }
+    };
+
+    // Resources that are already compressed - there is no point in compressing them again
+    private static final String[] COMPRESSED_EXTENSIONS = new String[] {
+        ".jar", ".zip", ".war", ".ear", ".jmod", ".gz", ".tgz", ".bz2", ".xz", ".7z",
+        ".png", ".gif", ".jpg", ".jpeg", ".mp3", ".mp4", ".ogg"
+    };
+
+    // Anything smaller than this fits in one packet anyway
+    public static final int MIN_SIZE_TO_ENCODE = 512;
+
+    private static Map<Integer, ResourceCodec> codecs = new LinkedHashMap<Integer, ResourceCodec>();
+
+    static {
+        register(new DeflateCodec());
+    }
+
+    public static synchronized void register(ResourceCodec codec) {
+        if (codec.getId() <= 0 || codec.getId() > 255) {
+            throw new IllegalArgumentException("Codec id must be between 1 and 255; " + codec.getId());
+        }
+        codecs.put(codec.getId(), codec);
+    }
+
+    public static synchronized ResourceCodec get(int id) {
+        if (id == 0) {
+            return NONE;
+        }
+        ResourceCodec codec = codecs.get(id);
+        if (codec == null) {
+            throw new IllegalArgumentException("Unknown codec id " + id);
+        }
+        return codec;
+    }
+
+    public static synchronized ResourceCodec get(String name) {
+        for (ResourceCodec codec : codecs.values()) {
+            if (codec.getName().equals(name)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    public static synchronized Collection<ResourceCodec> getCodecs() {
+        return new ArrayList<ResourceCodec>(codecs.values());
+    }
+
+    public static List<String> getCodecNames() {
+        List<String> names = new ArrayList<String>();
+        for (ResourceCodec codec : getCodecs()) {
+            names.add(codec.getName());
+        }
+        return names;
+    }
+
+    /**
+     * Selects codec for the resource. First of accepted codecs that is known here is used unless resource
+     * is too small or already compressed.
+     *
+     * @param fileName name of resource file
+     * @param size size of resource
+     * @param acceptedCodecs names of codecs other side accepts, in order of preference
+     * @return selected codec or {@link #NONE}
+     */
+    public static ResourceCodec select(String fileName, long size, List<String> acceptedCodecs) {
+        if (size < MIN_SIZE_TO_ENCODE || acceptedCodecs.isEmpty()) {
+            return NONE;
+        }
+        String lowerCaseName = fileName.toLowerCase();
+        for (String extension : COMPRESSED_EXTENSIONS) {
+            if (lowerCaseName.endsWith(extension)) {
+                return NONE;
+            }
+        }
+        for (String name : acceptedCodecs) {
+            ResourceCodec codec = get(name);
+            if (codec != null) {
+                return codec;
+            }
+        }
+        return NONE;
+    }
+}
@@ -0,0 +1,95 @@
+package org.ah.java.remotevmlauncher;
+
+import java.io.ByteArrayInputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks {@link XXHash64} and {@link DigestUtils} against reference values of XXH64 with seed 0 - sanity
+ * buffer of xxHash's own tests and known strings - for inputs shorter than, equal to and longer than
+ * one 32 byte stripe, hashed at once and in pieces.
+ */
+public class TestXXHash64 {
+
+    // Length of sanity buffer -> XXH64 of that many bytes of it
+    private static final long[][] SANITY = {
+        {0, 0xEF46DB3751D8E999L},
+        {1, 0xE934A84ADB052768L},
+        {14, 0x8282DCC4994E35C8L},
+        {31, 0x299B39A290E6D783L},
+        {32, 0x18B216492BB44B70L},
+        {33, 0x55C8DC3E578F5B59L},
+        {222, 0xB641AE8CB691C174L},
+        {2367, 0xA82418DDEC0EA581L},
+    };
+
+    @Test
+    public void testSanityBuffer() throws Exception {
+        byte[] buffer = sanityBuffer(2367);
+        for (long[] vector : SANITY) {
+            int length = (int)vector[0];
+            Assert.assertEquals("Length " + length, vector[1], DigestUtils.digest(buffer, 0, length));
+        }
+    }
+
+    @Test
+    public void testStrings() throws Exception {
+        Assert.assertEquals(0xEF46DB3751D8E999L, digest(""));
+        Assert.assertEquals(0xD24EC4F1A98C6E5BL, digest("a"));
+        Assert.assertEquals(0x44BC2CF5AD770999L, digest("abc"));
+        Assert.assertEquals(0xFBCEA83C8A378BF1L, digest("Nobody inspects the spammish repetition"));
+    }
+
+    @Test
+    public void testUpdateInPieces() throws Exception {
+        byte[] buffer = sanityBuffer(2367);
+        for (long[] vector : SANITY) {
+            int length = (int)vector[0];
+
+            XXHash64 hash = new XXHash64();
+            for (int i = 0; i < length; i++) {
+                hash.update(buffer[i]);
+            }
+            Assert.assertEquals("Byte by byte " + length, vector[1], hash.getValue());
+
+            // Pieces that don't follow stripes, with value asked for in between
+            for (int piece : new int[] {3, 31, 33, 100}) {
+                hash.reset();
+                for (int i = 0; i < length; i = i + piece) {
+                    hash.update(buffer, i, Math.min(piece, length - i));
+                    hash.getValue();
+                }
+                Assert.assertEquals("Pieces of " + piece + " of " + length, vector[1], hash.getValue());
+            }
+
+            Assert.assertEquals("Stream " + length, vector[1], DigestUtils.digest(new ByteArrayInputStream(buffer, 0, length)));
+        }
+    }
+
+    @Test
+    public void testHex() {
+        Assert.assertEquals("ef46db3751d8e999", DigestUtils.toHex(0xEF46DB3751D8E999L));
+        Assert.assertEquals("000000000000002a", DigestUtils.toHex(42));
+        Assert.assertEquals(0xEF46DB3751D8E999L, DigestUtils.fromHex("ef46db3751d8e999"));
+        Assert.assertEquals(42, DigestUtils.fromHex("000000000000002a"));
+    }
+
+    /**
+     * Buffer xxHash's sanity tests hash.
+     */
+    private static byte[] sanityBuffer(int length) {
+        byte[] buffer = new byte[length];
+        long byteGen = 2654435761L;
+        for (int i = 0; i < length; i++) {
+            buffer[i] = (byte)(byteGen >>> 56);
+            byteGen = byteGen * 0x9E3779B185EBCA8DL;
+        }
+        return buffer;
+    }
+
+    private static long digest(String string) throws Exception {
+        byte[] bytes = string.getBytes("US-ASCII");
+        return DigestUtils.digest(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,197 @@
+package org.ah.java.remotevmlauncher.delta;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.ah.java.remotevmlauncher.DigestUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Encodes new content against signatures of old content, decodes it over old content and checks
+ * that new content comes out, and how much of it had to be sent as literal data.
+ */
+public class TestDelta {
+
+    private static final int BLOCK_SIZE = 2048;
+
+    // Bigger than encoder's buffer so it is refilled and compacted while checksum is rolling
+    private static final int SIZE = 1024 * 1024 + 1000;
+
+    @Test
+    public void testSameContent() throws Exception {
+        byte[] old = random(SIZE, 1);
+
+        Assert.assertEquals(0, roundTrip(old, old));
+    }
+
+    @Test
+    public void testInsertion() throws Exception {
+        byte[] old = random(SIZE, 1);
+        byte[] inserted = random(100, 2);
+        byte[] updated = concat(Arrays.copyOfRange(old, 0, 500000), inserted, Arrays.copyOfRange(old, 500000, old.length));
+
+        long literal = roundTrip(old, updated);
+        Assert.assertTrue("Literal bytes " + literal, literal >= inserted.length && literal <= inserted.length + BLOCK_SIZE);
+    }
+
+    @Test
+    public void testDeletion() throws Exception {
+        byte[] old = random(SIZE, 1);
+        byte[] updated = concat(Arrays.copyOfRange(old, 0, 300001), Arrays.copyOfRange(old, 300001 + 5000, old.length));
+
+        long literal = roundTrip(old, updated);
+        Assert.assertTrue("Literal bytes " + literal, literal <= 2 * BLOCK_SIZE);
+    }
+
+    @Test
+    public void testShiftedContent() throws Exception {
+        byte[] old = random(SIZE, 1);
+        // Every block of old content is one byte further in new content
+        byte[] updated = concat(new byte[] {42}, old);
+
+        long literal = roundTrip(old, updated);
+        Assert.assertEquals(1, literal);
+    }
+
+    @Test
+    public void testChangedLastPartialBlock() throws Exception {
+        byte[] old = random(SIZE, 1);
+        byte[] updated = old.clone();
+        updated[updated.length - 1]++;
+
+        long literal = roundTrip(old, updated);
+        Assert.assertEquals(SIZE % BLOCK_SIZE, literal);
+    }
+
+    @Test
+    public void testUnchangedLastPartialBlock() throws Exception {
+        byte[] old = random(SIZE, 1);
+        byte[] updated = old.clone();
+        updated[10]++;
+
+        // Shorter last block is matched at the tail
+        long literal = roundTrip(old, updated);
+        Assert.assertEquals(BLOCK_SIZE, literal);
+    }
+
+    @Test
+    public void testNewContentShorterThanBlock() throws Exception {
+        byte[] old = random(SIZE, 1);
+        byte[] updated = Arrays.copyOfRange(old, SIZE - SIZE % BLOCK_SIZE, SIZE);
+
+        // It is the last block of old content
+        Assert.assertEquals(0, roundTrip(old, updated));
+        Assert.assertEquals(100, roundTrip(old, Arrays.copyOf(old, 100)));
+    }
+
+    @Test
+    public void testEmptyOldContent() throws Exception {
+        byte[] updated = random(SIZE, 1);
+
+        Assert.assertEquals(SIZE, roundTrip(new byte[0], updated));
+    }
+
+    @Test
+    public void testEmptyNewContent() throws Exception {
+        byte[] old = random(SIZE, 1);
+
+        Assert.assertEquals(0, roundTrip(old, new byte[0]));
+        Assert.assertEquals(0, roundTrip(new byte[0], new byte[0]));
+    }
+
+    @Test
+    public void testRandomEdits() throws Exception {
+        Random random = new Random(3);
+        byte[] old = random(SIZE, 1);
+        for (int round = 0; round < 10; round++) {
+            ByteArrayOutputStream updated = new ByteArrayOutputStream();
+            int pos = 0;
+            while (pos < old.length) {
+                int len = Math.min(random.nextInt(100000), old.length - pos);
+                updated.write(old, pos, len);
+                pos = pos + len;
+                int edit = random.nextInt(3);
+                if (edit == 0) {
+                    // Insert
+                    byte[] inserted = random(random.nextInt(3000), round + 100);
+                    updated.write(inserted, 0, inserted.length);
+                } else if (edit == 1) {
+                    // Delete
+                    pos = pos + random.nextInt(3000);
+                }
+            }
+            roundTrip(old, updated.toByteArray());
+        }
+    }
+
+    @Test
+    public void testBlockSize() {
+        Assert.assertEquals(BlockSignatures.MIN_BLOCK_SIZE, BlockSignatures.blockSizeFor(0));
+        Assert.assertEquals(BlockSignatures.MIN_BLOCK_SIZE, BlockSignatures.blockSizeFor(1000));
+        Assert.assertEquals(4096, BlockSignatures.blockSizeFor(4096L * 4096));
+        Assert.assertEquals(BlockSignatures.MAX_BLOCK_SIZE, BlockSignatures.blockSizeFor(Long.MAX_VALUE));
+    }
+
+    /**
+     * @return number of literal bytes delta had
+     */
+    private static long roundTrip(byte[] old, byte[] updated) throws Exception {
+        BlockSignatures signatures = BlockSignatures.calculate(new ByteArrayInputStream(old), old.length, BLOCK_SIZE);
+
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(delta);
+        long literal = new DeltaEncoder(signatures, dos).encode(new ByteArrayInputStream(updated));
+        dos.flush();
+
+        File oldFile = File.createTempFile("remotevm-delta", ".old");
+        try {
+            FileOutputStream fos = new FileOutputStream(oldFile);
+            try {
+                fos.write(old);
+            } finally {
+                fos.close();
+            }
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            RandomAccessFile raf = new RandomAccessFile(oldFile, "r");
+            try {
+                DeltaDecoder decoder = new DeltaDecoder(raf, BLOCK_SIZE, result);
+                // Instructions arrive in pieces that don't follow their boundaries
+                byte[] instructions = delta.toByteArray();
+                for (int i = 0; i < instructions.length; i = i + 777) {
+                    decoder.write(instructions, i, Math.min(777, instructions.length - i));
+                }
+                decoder.close();
+            } finally {
+                raf.close();
+            }
+            byte[] decoded = result.toByteArray();
+            Assert.assertEquals(updated.length, decoded.length);
+            Assert.assertEquals(DigestUtils.digest(updated, 0, updated.length), DigestUtils.digest(decoded, 0, decoded.length));
+            Assert.assertArrayEquals(updated, decoded);
+        } finally {
+            oldFile.delete();
+        }
+        return literal;
+    }
+
+    private static byte[] random(int size, long seed) {
+        byte[] content = new byte[size];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,328 @@
+package org.ah.java.remotevmlauncher.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.ah.java.remotevmlauncher.protocol.codec.DeflateCodec;
+import org.ah.java.remotevmlauncher.protocol.codec.ResourceCodec;
+import org.ah.java.remotevmlauncher.protocol.codec.ResourceCodecs;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Sends archive requests and archives of files through {@link ArchiveRequestProcessor} and {@link ArchiveProcessor}
+ * and checks that each entry comes out on the other side as it was sent, whether content is copied through data
+ * frames, encoded or transferred between channels.
+ */
+public class TestArchiveProcessor {
+
+    // Bytes entries took straight from the channel
+    private long transferredBytes;
+
+    @Test
+    public void testRequestRoundTrip() throws Exception {
+        for (boolean opcode : new boolean[] {false, true}) {
+            ArchiveRequestProcessor sender = new ArchiveRequestProcessor();
+            sender.setSendOpcode(opcode);
+            sender.setPathId("3");
+            sender.getResourceNames().addAll(Arrays.asList("org/example/A.class", "org/example/A$1.class", "META-INF/\u010Dlanak.txt"));
+            ByteArrayOutputStream wire = new ByteArrayOutputStream();
+            sender.send(new DataOutputStream(wire));
+
+            final List<String> received = new ArrayList<String>();
+            final String[] receivedPathId = new String[1];
+            ArchiveRequestProcessor receiver = new ArchiveRequestProcessor() {
+                @Override public void processRequest(String pathId, List<String> resourceNames) {
+                    receivedPathId[0] = pathId;
+                    received.addAll(resourceNames);
+                }
+            };
+            ProtocolStateMachine stateMachine = new ProtocolStateMachine();
+            stateMachine.register(receiver);
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(wire.toByteArray()));
+            stateMachine.processInput(dis);
+
+            Assert.assertEquals(0, dis.available());
+            Assert.assertEquals("3", receivedPathId[0]);
+            Assert.assertEquals(sender.getResourceNames(), received);
+        }
+    }
+
+    @Test
+    public void testArchiveRoundTrip() throws Exception {
+        File dir = createTempDir();
+        try {
+            List<File> files = createFiles(dir);
+            for (boolean opcode : new boolean[] {false, true}) {
+                assertEntries(files, sendAndReceive(files, ResourceCodecs.NONE, opcode, false, false));
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testEncodedArchiveRoundTrip() throws Exception {
+        File dir = createTempDir();
+        try {
+            List<File> files = createFiles(dir);
+            ResourceCodec deflate = ResourceCodecs.get(DeflateCodec.NAME);
+            Assert.assertEquals(deflate, ArchiveProcessor.select(files, Collections.singletonList(DeflateCodec.NAME)));
+
+            // Channels are not used for encoded archives
+            assertEntries(files, sendAndReceive(files, deflate, true, false, false));
+            assertEntries(files, sendAndReceive(files, deflate, true, true, true));
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testArchiveTransferredBetweenChannels() throws Exception {
+        File dir = createTempDir();
+        try {
+            List<File> files = createFiles(dir);
+            assertEntries(files, sendAndReceive(files, ResourceCodecs.NONE, true, true, true));
+            Assert.assertTrue("Transferred " + transferredBytes + " bytes", transferredBytes >= files.get(3).length());
+
+            // Entries that can't take content from the channel get it copied
+            transferredBytes = 0;
+            assertEntries(files, sendAndReceive(files, ResourceCodecs.NONE, true, true, false));
+            Assert.assertEquals(0, transferredBytes);
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testSkippedEntries() throws Exception {
+        File dir = createTempDir();
+        try {
+            List<File> files = createFiles(dir);
+            final List<byte[]> received = new ArrayList<byte[]>();
+            DataProcessor dataProcessor = new DataProcessor();
+            ArchiveProcessor receiver = new ArchiveProcessor(dataProcessor) {
+                @Override public OutputStream loadEntry(int index, long size) {
+                    // Only every other entry is wanted
+                    if (index % 2 == 1) {
+                        received.add(null);
+                        return null;
+                    }
+                    return new EntryOutputStream(received, index);
+                }
+            };
+            receive(send(files, ResourceCodecs.NONE, true, false), dataProcessor, receiver, false);
+
+            Assert.assertEquals(files.size(), received.size());
+            for (int i = 0; i < files.size(); i = i + 2) {
+                Assert.assertArrayEquals("Entry " + i, content(files.get(i)), received.get(i));
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testSelect() throws Exception {
+        File dir = createTempDir();
+        try {
+            File classFile = write(new File(dir, "A.class"), compressible(10000));
+            File jarFile = write(new File(dir, "lib.jar"), compressible(30000));
+            List<String> deflate = Collections.singletonList(DeflateCodec.NAME);
+
+            Assert.assertEquals(DeflateCodec.NAME, ArchiveProcessor.select(Arrays.asList(classFile), deflate).getName());
+            // Most of content wouldn't be encoded on its own
+            Assert.assertEquals(ResourceCodecs.NONE, ArchiveProcessor.select(Arrays.asList(classFile, jarFile), deflate));
+            Assert.assertEquals(ResourceCodecs.NONE, ArchiveProcessor.select(Arrays.asList(classFile), Collections.<String>emptyList()));
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static void assertEntries(List<File> files, List<byte[]> received) throws IOException {
+        Assert.assertEquals(files.size(), received.size());
+        for (int i = 0; i < files.size(); i++) {
+            File file = files.get(i);
+            if (file.exists()) {
+                Assert.assertArrayEquals("Entry " + i, content(file), received.get(i));
+            } else {
+                Assert.assertNull("Entry " + i, received.get(i));
+            }
+        }
+    }
+
+    /**
+     * @return content of each entry in order entries were received; null for missing resources
+     */
+    private List<byte[]> sendAndReceive(List<File> files, ResourceCodec codec, boolean opcode, boolean sendToChannel, final boolean receiveFromChannel) throws IOException {
+        byte[] wire = send(files, codec, opcode, sendToChannel);
+
+        final List<byte[]> received = new ArrayList<byte[]>();
+        DataProcessor dataProcessor = new DataProcessor();
+        ArchiveProcessor receiver = new ArchiveProcessor(dataProcessor) {
+            @Override public OutputStream loadEntry(int index, long size) {
+                Assert.assertEquals(received.size(), index);
+                if (size < 0) {
+                    received.add(null);
+                    return null;
+                }
+                return receiveFromChannel ? new TransferEntryOutputStream(received, index, size) : new EntryOutputStream(received, index);
+            }
+        };
+        receive(wire, dataProcessor, receiver, receiveFromChannel);
+        return received;
+    }
+
+    private static byte[] send(List<File> files, ResourceCodec codec, boolean opcode, boolean sendToChannel) throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        // Not buffered so frames written to the stream and transfers to the channel stay in order
+        DataOutputStream dos = new DataOutputStream(wire);
+        ArchiveProcessor sender = new ArchiveProcessor();
+        sender.setSendOpcode(opcode);
+        sender.send(dos, sendToChannel ? Channels.newChannel(wire) : null, files, codec);
+        return wire.toByteArray();
+    }
+
+    private static void receive(byte[] wire, DataProcessor dataProcessor, ArchiveProcessor receiver, boolean fromChannel) throws IOException {
+        ProtocolStateMachine stateMachine = new ProtocolStateMachine();
+        stateMachine.register(dataProcessor);
+        stateMachine.register(receiver);
+        ByteArrayInputStream in = new ByteArrayInputStream(wire);
+        if (fromChannel) {
+            stateMachine.setChannel(Channels.newChannel(in));
+        }
+        DataInputStream dis = new DataInputStream(in);
+        while (dis.available() > 0) {
+            stateMachine.processInput(dis);
+        }
+    }
+
+    /**
+     * Missing file, empty file, files smaller and bigger than size transferred between channels and
+     * file bigger than one data frame.
+     */
+    private static List<File> createFiles(File dir) throws IOException {
+        List<File> files = new ArrayList<File>();
+        files.add(write(new File(dir, "Small.class"), compressible(1000)));
+        files.add(new File(dir, "Missing.class"));
+        files.add(write(new File(dir, "Empty.class"), new byte[0]));
+        files.add(write(new File(dir, "Big.class"), compressible((int)ArchiveProcessor.TRANSFER_MIN_SIZE * 3 + 17)));
+        files.add(write(new File(dir, "Exact.class"), compressible((int)ArchiveProcessor.TRANSFER_MIN_SIZE)));
+        files.add(write(new File(dir, "Last.class"), compressible(7)));
+        return files;
+    }
+
+    private static byte[] compressible(int size) {
+        Random random = new Random(size);
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte)('a' + random.nextInt(4));
+        }
+        return content;
+    }
+
+    private static File write(File file, byte[] content) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(content);
+        } finally {
+            fos.close();
+        }
+        return file;
+    }
+
+    private static byte[] content(File file) throws IOException {
+        byte[] content = new byte[(int)file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(content);
+        } finally {
+            in.close();
+        }
+        return content;
+    }
+
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile("remotevm-archive", "");
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Keeps content of an entry and adds it to the list, at entry's index, once it is closed.
+     */
+    private static class EntryOutputStream extends ByteArrayOutputStream {
+
+        private List<byte[]> received;
+        private int index;
+
+        private EntryOutputStream(List<byte[]> received, int index) {
+            this.received = received;
+            this.index = index;
+        }
+
+        @Override
+        public void close() {
+            Assert.assertEquals("Entries closed out of order", index, received.size());
+            received.add(toByteArray());
+        }
+    }
+
+    /**
+     * Entry that takes content from the channel when it is offered.
+     */
+    private class TransferEntryOutputStream extends EntryOutputStream implements TransferTarget {
+
+        private long transferred;
+        private long size;
+
+        private TransferEntryOutputStream(List<byte[]> received, int index, long size) {
+            super(received, index);
+            this.size = size;
+        }
+
+        public void transferFrom(ReadableByteChannel channel, long count) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate((int)count);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new IOException("Premature end of channel");
+                }
+            }
+            write(buffer.array(), 0, (int)count);
+            transferred = transferred + count;
+            transferredBytes = transferredBytes + count;
+        }
+
+        @Override
+        public void close() {
+            Assert.assertTrue("Transferred " + transferred + " of " + size + " bytes", transferred <= size);
+            super.close();
+        }
+    }
+}